@@ -21,109 +21,190 @@ document.addEventListener('DOMContentLoaded', () => {
         console.log("Preview stopped and reset.");
     }
 
-    function loadVideoList() {
-        fetch('/api/videos')
-            .then(response => {
-                if (!response.ok) {
-                    throw new Error(`HTTP error! status: ${response.status}`);
-                }
-                return response.json();
-            })
-            .then(videoFiles => {
-                videoListDiv.innerHTML = ''; // Clear previous list
-                if (videoFiles.length === 0) {
-                    videoListDiv.textContent = 'No videos uploaded yet.';
-                    return;
+    const PAGE_SIZE = 500;
+    let catalogVersion = null; // Version of the list we are showing
+    const videoItems = new Map(); // filename -> list element
+
+    function createVideoItem(filename) {
+        const item = document.createElement('div');
+        item.classList.add('video-item');
+        item.textContent = filename;
+        item.dataset.filename = filename; // Store filename
+
+        // --- Event Listeners ---
+
+        // Mouse Enter on list item: Start preview
+        item.addEventListener('mouseenter', () => {
+            // If there is already an active time update listener, remove it
+            if (timeUpdateHandler) {
+                previewPlayer.removeEventListener('timeupdate', timeUpdateHandler);
+            }
+
+            const file = item.dataset.filename;
+            console.log(`Hover Enter: Preview ${file}`);
+            previewTitle.textContent = `Previewing: ${file}`;
+
+            previewPlayer.src = `/videos/${encodeURIComponent(file)}`;
+            previewPlayer.load();
+            const playPromise = previewPlayer.play();
+
+            // Define the handler that checks playback time
+            timeUpdateHandler = () => {
+                if (previewPlayer.currentTime >= 10) {
+                    previewPlayer.pause();
+                    console.log(`Preview paused at 10 seconds for ${file}`);
+                    // Optionally, reset the time so that the preview always starts at 0
+                    previewPlayer.currentTime = 0;
+                    previewPlayer.removeEventListener('timeupdate', timeUpdateHandler);
+                    timeUpdateHandler = null;
                 }
+            };
+
+            // Attach the time update listener
+            previewPlayer.addEventListener('timeupdate', timeUpdateHandler);
 
-                console.log('Successfully fetched video list:', videoFiles);
-
-                videoFiles.forEach(filename => {
-                    const item = document.createElement('div');
-                    item.classList.add('video-item');
-                    item.textContent = filename;
-                    item.dataset.filename = filename; // Store filename
-
-                    // --- Event Listeners ---
-
-                    // Mouse Enter on list item: Start preview
-                    item.addEventListener('mouseenter', () => {
-                        // If there is already an active time update listener, remove it
-                        if (timeUpdateHandler) {
-                            previewPlayer.removeEventListener('timeupdate', timeUpdateHandler);
-                        }
-
-                        const file = item.dataset.filename;
-                        console.log(`Hover Enter: Preview ${file}`);
-                        previewTitle.textContent = `Previewing: ${file}`;
-
-                        previewPlayer.src = `/videos/${encodeURIComponent(file)}`;
-                        previewPlayer.load();
-                        const playPromise = previewPlayer.play();
-
-                        // Define the handler that checks playback time
-                        timeUpdateHandler = () => {
-                            if (previewPlayer.currentTime >= 10) {
-                                previewPlayer.pause();
-                                console.log(`Preview paused at 10 seconds for ${file}`);
-                                // Optionally, reset the time so that the preview always starts at 0
-                                previewPlayer.currentTime = 0;
-                                previewPlayer.removeEventListener('timeupdate', timeUpdateHandler);
-                                timeUpdateHandler = null;
-                            }
-                        };
-
-                        // Attach the time update listener
-                        previewPlayer.addEventListener('timeupdate', timeUpdateHandler);
-
-                        if (playPromise !== undefined) {
-                            playPromise.catch(error => {
-                                console.warn(`Preview autoplay prevented for ${file}:`, error);
-                            });
-                        }
-                    });
-
-                    // Mouse Leave from list item: Stop preview
-                    item.addEventListener('mouseleave', () => {
-                        console.log(`Hover Leave: Stop preview for ${item.dataset.filename}`);
-                        stopPreview();
-                    });
-
-                    // Click on list item: Play in main player
-                    item.addEventListener('click', () => {
-                        const file = item.dataset.filename;
-                        console.log(`Click: Play ${file} in main player`);
-                        mainPlayerTitle.textContent = `Now Playing: ${file}`;
-
-                        // Stop preview if it happens to be the same video
-                        if (previewPlayer.currentSrc.endsWith(encodeURIComponent(file))) {
-                            stopPreview();
-                        }
-
-                        mainPlayer.src = `/videos/${encodeURIComponent(file)}`;
-                        mainPlayer.load();
-                        const playPromise = mainPlayer.play();
-
-                        if (playPromise !== undefined) {
-                            playPromise.catch(error => {
-                                console.error(`Main player play error for ${file}:`, error);
-                                mainPlayerTitle.textContent = `Could not play: ${file}`;
-                            });
-                        }
-                    });
-
-                    videoListDiv.appendChild(item);
+            if (playPromise !== undefined) {
+                playPromise.catch(error => {
+                    console.warn(`Preview autoplay prevented for ${file}:`, error);
                 });
-            })
-            .catch(error => {
-                console.error('Error fetching video list:', error);
-                videoListDiv.innerHTML = 'Error loading video list. Is the consumer running?';
-            });
+            }
+        });
+
+        // Mouse Leave from list item: Stop preview
+        item.addEventListener('mouseleave', () => {
+            console.log(`Hover Leave: Stop preview for ${item.dataset.filename}`);
+            stopPreview();
+        });
+
+        // Click on list item: Play in main player
+        item.addEventListener('click', () => {
+            const file = item.dataset.filename;
+            console.log(`Click: Play ${file} in main player`);
+            mainPlayerTitle.textContent = `Now Playing: ${file}`;
+
+            // Stop preview if it happens to be the same video
+            if (previewPlayer.currentSrc.endsWith(encodeURIComponent(file))) {
+                stopPreview();
+            }
+
+            mainPlayer.src = `/videos/${encodeURIComponent(file)}`;
+            mainPlayer.load();
+            const playPromise = mainPlayer.play();
+
+            if (playPromise !== undefined) {
+                playPromise.catch(error => {
+                    console.error(`Main player play error for ${file}:`, error);
+                    mainPlayerTitle.textContent = `Could not play: ${file}`;
+                });
+            }
+        });
+
+        return item;
+    }
+
+    function fetchJson(url) {
+        return fetch(url).then(response => {
+            if (!response.ok) {
+                throw new Error(`HTTP error! status: ${response.status}`);
+            }
+            return response.json();
+        });
+    }
+
+    function addVideo(filename) {
+        if (!videoItems.has(filename)) {
+            const item = createVideoItem(filename);
+            videoItems.set(filename, item);
+            videoListDiv.appendChild(item);
+        }
+    }
+
+    function removeVideo(filename) {
+        const item = videoItems.get(filename);
+        if (item) {
+            item.remove();
+            videoItems.delete(filename);
+        }
     }
 
-    // Initial load
-    loadVideoList();
+    function showEmptyState() {
+        if (videoItems.size === 0) {
+            videoListDiv.textContent = 'No videos uploaded yet.';
+        } else if (videoListDiv.firstChild && videoListDiv.firstChild.nodeType === Node.TEXT_NODE) {
+            videoListDiv.firstChild.remove(); // Drop the placeholder text
+        }
+    }
+
+    // Full load, a page at a time. If the catalog changes while paging, start over so no name is skipped.
+    async function loadVideoList(attempt = 0) {
+        const names = [];
+        let version = null;
+        let total = Infinity;
+        while (names.length < total) {
+            const page = await fetchJson(`/api/videos?offset=${names.length}&limit=${PAGE_SIZE}`);
+            if (version !== null && page.version !== version && attempt < 3) {
+                return loadVideoList(attempt + 1);
+            }
+            version = page.version;
+            total = page.total;
+            if (page.videos.length === 0) {
+                break;
+            }
+            names.push(...page.videos);
+        }
 
-    // Optional: Periodically refresh the list
-    setInterval(loadVideoList, 30000); // Refresh every 30 seconds
+        videoListDiv.innerHTML = ''; // Clear previous list
+        videoItems.clear();
+        names.forEach(addVideo);
+        catalogVersion = version;
+        showEmptyState();
+        console.log(`Loaded ${names.length} videos (catalog version ${version})`);
+    }
+
+    function applyDelta(delta) {
+        delta.removed.forEach(removeVideo);
+        delta.added.forEach(addVideo);
+        catalogVersion = delta.version;
+        showEmptyState();
+        if (delta.added.length || delta.removed.length) {
+            console.log(`Video list updated: +${delta.added.length} -${delta.removed.length}`);
+        }
+    }
+
+    // Poll for what changed since the version we have (browsers without EventSource)
+    async function refreshVideoList() {
+        if (catalogVersion === null) {
+            return loadVideoList();
+        }
+        const delta = await fetchJson(`/api/videos?since=${catalogVersion}`);
+        if (delta.reset) {
+            return loadVideoList(); // Too far behind (or the consumer restarted)
+        }
+        applyDelta(delta);
+    }
+
+    // Server-pushed changes. The browser reconnects by itself and resumes with Last-Event-ID.
+    function subscribeToChanges() {
+        const events = new EventSource(`/api/events?since=${catalogVersion}`);
+        events.addEventListener('changes', event => applyDelta(JSON.parse(event.data)));
+        events.addEventListener('reset', () => {
+            events.close();
+            loadVideoList().then(subscribeToChanges).catch(reportError);
+        });
+    }
+
+    function reportError(error) {
+        console.error('Error fetching video list:', error);
+        if (videoItems.size === 0) {
+            videoListDiv.innerHTML = 'Error loading video list. Is the consumer running?';
+        }
+    }
+
+    // Initial load, then follow changes as they happen
+    if (window.EventSource) {
+        loadVideoList().then(subscribeToChanges).catch(reportError);
+    } else {
+        loadVideoList().catch(reportError);
+        setInterval(() => refreshVideoList().catch(reportError), 30000); // Refresh every 30 seconds
+    }
 });
@@ -0,0 +1,49 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Scratch folders and options shared by the benchmarks. */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /** Options with quiet logging (so the console is not measured) plus the given switches as key, value pairs. */
+    static ConsumerOptions options(String... switches) {
+        Properties properties = new Properties();
+        properties.setProperty("consumer.log.level", "warn");
+        for (int i = 0; i + 1 < switches.length; i += 2) {
+            properties.setProperty(switches[i], switches[i + 1]);
+        }
+        ConsumerOptions options = ConsumerOptions.fromProperties(properties);
+        Log.configure(options);
+        return options;
+    }
+
+    static Path createFolder(String prefix) throws IOException {
+        return Files.createTempDirectory("p3-jmh-" + prefix);
+    }
+
+    static void writeRandomFile(Path file, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content); // Fixed seed: same content in every run
+        Files.write(file, content);
+    }
+
+    static void delete(Path folder) throws IOException {
+        if (folder == null || !Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
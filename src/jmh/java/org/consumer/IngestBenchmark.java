@@ -0,0 +1,107 @@
+package org.consumer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One whole legacy upload over a loopback socket, as FileHandlerTask handles it: header, body
+ * copy into a temp file, commit and rename. The benchmark thread is the producer; a background
+ * thread accepts and runs each connection like a worker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"stream", "channel"})
+    public String receive;
+
+    @Param({"false", "true"})
+    public String fsync;
+
+    private Path outputFolder;
+    private IngestContext context;
+    private StorageVolumes storage;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private byte[] header;
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        outputFolder = BenchmarkFiles.createFolder("ingest");
+        ConsumerOptions options = BenchmarkFiles.options("consumer.receive", receive, "consumer.fsync", fsync);
+        ConsumerMetrics metrics = new ConsumerMetrics(1);
+        storage = StorageVolumes.open(List.of(outputFolder), StorageVolumes.Placement.HASH);
+        context = new IngestContext(storage, new VideoCatalog(), options, null, null, metrics, new AdmissionControl(metrics), null);
+
+        // Bound through a channel so accepted sockets have one, as in the app's channel receive mode
+        serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptor = new Thread(this::acceptLoop, "bench-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        byte[] name = "bench.mp4".getBytes(StandardCharsets.UTF_8);
+        header = ByteBuffer.allocate(Integer.BYTES + name.length + Long.BYTES)
+                .putInt(name.length).put(name).putLong(fileSize).array();
+        body = new byte[fileSize];
+        new Random(42).nextBytes(body);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket connection = serverSocket.accept();
+                new FileHandlerTask(connection, context).run(); // Closes the connection once the file is committed
+            } catch (IOException e) {
+                return; // Closed at tear-down
+            }
+        }
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+            OutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(header);
+            out.write(body);
+            out.flush();
+            socket.shutdownOutput();
+            // A legacy upload has no reply: the consumer closing the connection means it is saved
+            InputStream in = socket.getInputStream();
+            return in.read();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        serverSocket.close();
+        acceptor.join(5000);
+        context.closeGroupCommits();
+        context.getAdmission().close();
+        storage.close();
+        BenchmarkFiles.delete(outputFolder);
+    }
+}
@@ -0,0 +1,81 @@
+package org.consumer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GuiHttpHandler serving a video: a full response and a 64 KB range in the middle of the file
+ * (a seek), from disk, through the mapped-file cache, or with a warm head cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServeFileBenchmark {
+
+    private static final int RANGE_LENGTH = 64 * 1024;
+
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"disk", "mmap", "head"})
+    public String cache;
+
+    private Path guiFolder;
+    private Path videoFolder;
+    private StorageVolumes storage;
+    private VideoEvents videoEvents;
+    private GuiHttpHandler handler;
+    private String range;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        guiFolder = BenchmarkFiles.createFolder("gui");
+        videoFolder = BenchmarkFiles.createFolder("videos");
+        Files.writeString(guiFolder.resolve("index.html"), "<html></html>");
+        BenchmarkFiles.writeRandomFile(videoFolder.resolve("bench.mp4"), fileSize);
+
+        ConsumerOptions options = "mmap".equals(cache)
+                ? BenchmarkFiles.options("consumer.serve.mmapCacheMb", "256")
+                : BenchmarkFiles.options();
+        HeadCache headCache = "head".equals(cache) ? new HeadCache(64L * 1024 * 1024, fileSize) : null; // Whole file fits the head
+        storage = StorageVolumes.open(List.of(videoFolder), StorageVolumes.Placement.HASH);
+        storage.found(storage.getPrimary(), "bench.mp4");
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("bench.mp4");
+        videoEvents = new VideoEvents(catalog);
+        handler = new GuiHttpHandler(guiFolder, storage, catalog, videoEvents, null, headCache, new ConsumerMetrics(1), null, null, options);
+
+        long start = fileSize / 2;
+        range = "bytes=" + start + "-" + (start + RANGE_LENGTH - 1);
+    }
+
+    @Benchmark
+    public long fullFile() throws IOException {
+        StubExchange exchange = new StubExchange("GET", "/videos/bench.mp4");
+        handler.handle(exchange);
+        return exchange.bodyBytes();
+    }
+
+    @Benchmark
+    public long range() throws IOException {
+        StubExchange exchange = new StubExchange("GET", "/videos/bench.mp4").header("Range", range);
+        handler.handle(exchange);
+        return exchange.bodyBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        videoEvents.close();
+        storage.close();
+        BenchmarkFiles.delete(guiFolder);
+        BenchmarkFiles.delete(videoFolder);
+    }
+}
@@ -0,0 +1,76 @@
+package org.consumer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory request for driving GuiHttpHandler without a socket: the response body is counted
+ * and thrown away, so a benchmark measures the handler rather than the loopback stack.
+ */
+class StubExchange extends HttpExchange {
+
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final CountingSink responseBody = new CountingSink();
+    private int responseCode = -1;
+
+    StubExchange(String method, String uri) {
+        this.method = method;
+        this.uri = URI.create(uri);
+    }
+
+    StubExchange header(String name, String value) {
+        requestHeaders.set(name, value);
+        return this;
+    }
+
+    /** Response body bytes written by the handler. */
+    long bodyBytes() {
+        return responseBody.count;
+    }
+
+    @Override public Headers getRequestHeaders() { return requestHeaders; }
+    @Override public Headers getResponseHeaders() { return responseHeaders; }
+    @Override public URI getRequestURI() { return uri; }
+    @Override public String getRequestMethod() { return method; }
+    @Override public HttpContext getHttpContext() { return null; }
+    @Override public void close() { }
+    @Override public InputStream getRequestBody() { return new ByteArrayInputStream(new byte[0]); }
+    @Override public OutputStream getResponseBody() { return responseBody; }
+    @Override public void sendResponseHeaders(int rCode, long responseLength) { responseCode = rCode; }
+    @Override public InetSocketAddress getRemoteAddress() { return new InetSocketAddress("127.0.0.1", 50000); }
+    @Override public int getResponseCode() { return responseCode; }
+    @Override public InetSocketAddress getLocalAddress() { return new InetSocketAddress("127.0.0.1", 8000); }
+    @Override public String getProtocol() { return "HTTP/1.1"; }
+    @Override public Object getAttribute(String name) { return attributes.get(name); }
+    @Override public void setAttribute(String name, Object value) { attributes.put(name, value); }
+    @Override public void setStreams(InputStream i, OutputStream o) { }
+    @Override public HttpPrincipal getPrincipal() { return null; }
+
+    private static class CountingSink extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.consumer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** Header parsing as done by the blocking workers (stream) and the selector loop (buffer). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadHeaderBenchmark {
+
+    private byte[] legacy;
+    private byte[] extended;
+    private ByteBuffer legacyBuffer;
+    private ByteBuffer extendedBuffer;
+
+    @Setup
+    public void setUp() {
+        byte[] name = "holiday_2024_final_cut.mp4".getBytes(StandardCharsets.UTF_8);
+        legacy = ByteBuffer.allocate(Integer.BYTES + name.length + Long.BYTES)
+                .putInt(name.length).put(name).putLong(50_000_000L).array();
+        int flags = UploadProtocol.FLAG_CONTENT_HASH | UploadProtocol.FLAG_CHUNKED | UploadProtocol.FLAG_SESSION;
+        extended = ByteBuffer.allocate(2 * Integer.BYTES + UploadProtocol.CONTENT_HASH_LENGTH + Long.BYTES + 2 * Integer.BYTES + legacy.length)
+                .putInt(UploadProtocol.EXTENDED_MAGIC).putInt(flags)
+                .put(new byte[UploadProtocol.CONTENT_HASH_LENGTH])
+                .putLong(50_000_000L).putInt(4 * 1024 * 1024).putInt(3)
+                .putInt(name.length).put(name).putLong(4 * 1024 * 1024).array();
+        legacyBuffer = ByteBuffer.wrap(legacy);
+        extendedBuffer = ByteBuffer.wrap(extended);
+    }
+
+    @Benchmark
+    public UploadHeader streamLegacy() throws IOException {
+        return UploadHeader.read(new DataInputStream(new ByteArrayInputStream(legacy)));
+    }
+
+    @Benchmark
+    public UploadHeader streamExtended() throws IOException {
+        return UploadHeader.read(new DataInputStream(new ByteArrayInputStream(extended)));
+    }
+
+    @Benchmark
+    public UploadHeader bufferLegacy() throws IOException {
+        legacyBuffer.clear();
+        return UploadHeader.tryParse(legacyBuffer);
+    }
+
+    @Benchmark
+    public UploadHeader bufferExtended() throws IOException {
+        extendedBuffer.clear();
+        return UploadHeader.tryParse(extendedBuffer);
+    }
+}
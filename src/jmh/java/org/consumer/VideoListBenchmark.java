@@ -0,0 +1,82 @@
+package org.consumer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code /api/videos} with large catalogs: the full list right after a change (JSON rebuilt), the
+ * full list while nothing changed (cached JSON), a revalidation that ends in 304, and one page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoListBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private Path folder;
+    private VideoCatalog catalog;
+    private StorageVolumes storage;
+    private VideoEvents videoEvents;
+    private GuiHttpHandler handler;
+    private boolean toggled = false;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = BenchmarkFiles.createFolder("list");
+        catalog = new VideoCatalog();
+        for (int i = 0; i < entries; i++) {
+            catalog.add(String.format("video_%06d.mp4", i));
+        }
+        videoEvents = new VideoEvents(catalog);
+        storage = StorageVolumes.open(List.of(folder), StorageVolumes.Placement.HASH);
+        handler = new GuiHttpHandler(folder, storage, catalog, videoEvents, null, null, new ConsumerMetrics(1), null, null, BenchmarkFiles.options());
+    }
+
+    @Benchmark
+    public long changedList() throws IOException {
+        // One upload arrived (or was removed) since the last request: the JSON is built again
+        if (toggled) {
+            catalog.remove("extra.mp4");
+        } else {
+            catalog.add("extra.mp4");
+        }
+        toggled = !toggled;
+        return list(new StubExchange("GET", "/api/videos"));
+    }
+
+    @Benchmark
+    public long cachedList() throws IOException {
+        return list(new StubExchange("GET", "/api/videos"));
+    }
+
+    @Benchmark
+    public long notModified() throws IOException {
+        return list(new StubExchange("GET", "/api/videos").header("If-None-Match", "\"" + catalog.getVersionToken() + "\""));
+    }
+
+    @Benchmark
+    public long page() throws IOException {
+        return list(new StubExchange("GET", "/api/videos?offset=" + entries / 2 + "&limit=500"));
+    }
+
+    private long list(StubExchange exchange) throws IOException {
+        handler.handle(exchange);
+        return exchange.bodyBytes() + exchange.getResponseCode();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        videoEvents.close();
+        storage.close();
+        BenchmarkFiles.delete(folder);
+    }
+}
@@ -0,0 +1,420 @@
+package org.consumer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test on loopback: starts a consumer in-process on free ports, then runs
+ * simulated producers (uploads over the wire protocol, optionally paced like a slow link) and
+ * viewers (polling {@code /api/videos} and requesting preview ranges) for a fixed time, and
+ * reports uploads per second, MB/s, the rejection rate and latency percentiles.
+ * <p>
+ * Settings are {@code load.*} system properties (see the README); {@code consumer.*} switches
+ * configure the consumer under test as usual. Run it with {@code gradle loadTest}.
+ */
+public class LoadGenerator {
+
+    private static final int NAMES_PER_PRODUCER = 16; // Uploads reuse names, so the disk use stays bounded
+    private static final int PACING_SLICE = 16 * 1024;
+    private static final int PREVIEW_RANGE = 1024 * 1024;
+    private static final Pattern JSON_STRING = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    // --- Settings ---
+    private final int workerThreads = intSetting("load.c", 4);
+    private final int queueSize = intSetting("load.q", 10);
+    private final int producers = intSetting("load.producers", 8);
+    private final int slowProducers = Math.min(producers, intSetting("load.slowProducers", 0));
+    private final int slowKbps = intSetting("load.slowKbps", 256);
+    private final int viewers = intSetting("load.viewers", 4);
+    private final int viewerThinkMillis = intSetting("load.viewerThinkMs", 50);
+    private final int seconds = intSetting("load.seconds", 20);
+    private final int[] fileSizes = parseSizes(System.getProperty("load.fileSizes", "256k,1m,4m"));
+    private final String reportPath = System.getProperty("load.report");
+
+    // --- Results ---
+    private final AtomicLong uploadsSaved = new AtomicLong();
+    private final AtomicLong uploadsFailed = new AtomicLong();
+    private final AtomicLong uploadsRejected = new AtomicLong();
+    private final AtomicLong uploadErrors = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final Histogram uploadMicros = new Histogram();
+    private final Histogram retryAfterMillis = new Histogram();
+    private final AtomicLong listRequests = new AtomicLong();
+    private final AtomicLong listNotModified = new AtomicLong();
+    private final AtomicLong rangeRequests = new AtomicLong();
+    private final AtomicLong viewerErrors = new AtomicLong();
+    private final AtomicLong bytesViewed = new AtomicLong();
+    private final Histogram listMicros = new Histogram();
+    private final Histogram rangeMicros = new Histogram();
+
+    private byte[] content;
+    private long deadlineNanos;
+    private int uploadPort;
+    private int httpPort;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("consumer.log.level") == null) {
+            System.setProperty("consumer.log.level", "warn"); // Per-connection messages would swamp the report
+        }
+        new LoadGenerator().run();
+    }
+
+    private void run() throws Exception {
+        ConsumerOptions options = ConsumerOptions.fromSystemProperties();
+        Log.configure(options);
+        Path outputFolder = Files.createTempDirectory("p3-load-");
+        Path guiFolder = guiFolder();
+        ConsumerApp app = new ConsumerApp(new ConsumerConfig(workerThreads, queueSize, 0, 0, outputFolder, guiFolder), options);
+        app.start();
+        Thread listener = new Thread(app::listen, "consumer-listener");
+        listener.start();
+        uploadPort = app.getUploadPort();
+        httpPort = app.getHttpPort();
+
+        content = new byte[max(fileSizes)];
+        new Random(1).nextBytes(content);
+
+        System.out.println("--- Load test: " + seconds + " s, " + producers + " producers"
+                + (slowProducers > 0 ? " (" + slowProducers + " paced at " + slowKbps + " KB/s)" : "")
+                + ", " + viewers + " viewers, c=" + workerThreads + " q=" + queueSize
+                + ", ingest " + options.getIngestMode().name().toLowerCase() + " ---");
+
+        List<Thread> threads = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < producers; i++) {
+            int id = i;
+            threads.add(new Thread(() -> produce(id, id < slowProducers), "producer-" + i));
+        }
+        for (int i = 0; i < viewers; i++) {
+            threads.add(new Thread(this::view, "viewer-" + i));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+        app.close();
+        listener.join();
+        report(elapsedSeconds, app.getMetrics());
+        deleteFolder(outputFolder);
+        if (guiFolder.getFileName().toString().startsWith("p3-load-gui")) {
+            deleteFolder(guiFolder);
+        }
+    }
+
+    // --- Producers ---
+
+    private enum Outcome { SAVED, FAILED, BUSY, ERROR }
+
+    private void produce(int id, boolean paced) {
+        Random random = new Random(id);
+        int sequence = 0;
+        while (System.nanoTime() < deadlineNanos) {
+            int size = fileSizes[random.nextInt(fileSizes.length)];
+            String name = "load-" + id + "-" + (sequence++ % NAMES_PER_PRODUCER) + ".bin";
+            long started = System.nanoTime();
+            int[] retryAfter = new int[1];
+            Outcome outcome = upload(name, size, paced, retryAfter);
+            switch (outcome) {
+                case SAVED:
+                    uploadsSaved.incrementAndGet();
+                    bytesUploaded.addAndGet(size);
+                    uploadMicros.record((System.nanoTime() - started) / 1000);
+                    break;
+                case FAILED:
+                    uploadsFailed.incrementAndGet();
+                    break;
+                case BUSY:
+                    uploadsRejected.incrementAndGet();
+                    retryAfterMillis.record(retryAfter[0]);
+                    pause(Math.min(retryAfter[0], TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()))); // Back off as asked
+                    break;
+                default:
+                    uploadErrors.incrementAndGet();
+                    pause(50);
+            }
+        }
+    }
+
+    /** One upload in session mode, so the consumer acknowledges it with its stored status. */
+    private Outcome upload(String name, int size, boolean paced, int[] retryAfter) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), uploadPort)) {
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(60));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(UploadProtocol.EXTENDED_MAGIC);
+                out.writeInt(UploadProtocol.FLAG_SESSION);
+                out.writeInt(nameBytes.length);
+                out.write(nameBytes);
+                out.writeLong(size);
+                if (paced) {
+                    long bytesPerSecond = slowKbps * 1024L;
+                    long start = System.nanoTime();
+                    for (int offset = 0; offset < size; offset += PACING_SLICE) {
+                        out.write(content, offset, Math.min(PACING_SLICE, size - offset));
+                        out.flush();
+                        long due = start + (long) ((offset + PACING_SLICE) * 1e9 / bytesPerSecond);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    }
+                } else {
+                    out.write(content, 0, size);
+                }
+                out.flush();
+                socket.shutdownOutput(); // Ends the session after this upload
+            } catch (IOException e) {
+                // The consumer may have turned us away while we were still sending: look for its reply
+            }
+            int status = in.read();
+            if (status == UploadProtocol.REPLY_BUSY) {
+                retryAfter[0] = in.readInt();
+                return Outcome.BUSY;
+            }
+            if (status == -1) {
+                return Outcome.ERROR;
+            }
+            in.readFully(new byte[in.readInt()]); // Stored name
+            return status == UploadProtocol.REPLY_FILE_SAVED ? Outcome.SAVED : Outcome.FAILED;
+        } catch (IOException e) {
+            return Outcome.ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.ERROR;
+        }
+    }
+
+    // --- Viewers ---
+
+    private void view() {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+        String base = "http://127.0.0.1:" + httpPort;
+        String etag = null;
+        List<String> names = new ArrayList<>();
+        int smallest = min(fileSizes);
+        while (System.nanoTime() < deadlineNanos) {
+            try {
+                HttpRequest.Builder list = HttpRequest.newBuilder(URI.create(base + "/api/videos")).timeout(Duration.ofSeconds(30));
+                if (etag != null) {
+                    list.header("If-None-Match", etag);
+                }
+                long started = System.nanoTime();
+                HttpResponse<String> listing = client.send(list.build(), HttpResponse.BodyHandlers.ofString());
+                listMicros.record((System.nanoTime() - started) / 1000);
+                listRequests.incrementAndGet();
+                if (listing.statusCode() == 304) {
+                    listNotModified.incrementAndGet();
+                } else if (listing.statusCode() == 200) {
+                    etag = listing.headers().firstValue("ETag").orElse(null);
+                    names = parseNames(listing.body());
+                } else {
+                    viewerErrors.incrementAndGet();
+                }
+
+                if (!names.isEmpty()) {
+                    // Half hover previews (start of the file), half seeks somewhere inside it
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    String name = names.get(random.nextInt(names.size()));
+                    int length = Math.min(PREVIEW_RANGE, smallest);
+                    long start = random.nextBoolean() ? 0 : random.nextInt(Math.max(1, smallest - length + 1));
+                    HttpRequest range = HttpRequest.newBuilder(URI.create(base + "/videos/" + URLEncoder.encode(name, StandardCharsets.UTF_8)))
+                            .header("Range", "bytes=" + start + "-" + (start + length - 1))
+                            .timeout(Duration.ofSeconds(30)).build();
+                    started = System.nanoTime();
+                    HttpResponse<InputStream> video = client.send(range, HttpResponse.BodyHandlers.ofInputStream());
+                    long bytes = drain(video.body());
+                    rangeMicros.record((System.nanoTime() - started) / 1000);
+                    rangeRequests.incrementAndGet();
+                    bytesViewed.addAndGet(bytes);
+                    if (video.statusCode() != 206 && video.statusCode() != 200) {
+                        viewerErrors.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                viewerErrors.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            pause(viewerThinkMillis);
+        }
+    }
+
+    private static List<String> parseNames(String json) {
+        List<String> names = new ArrayList<>();
+        Matcher matcher = JSON_STRING.matcher(json);
+        while (matcher.find()) {
+            names.add(matcher.group(1)); // Upload names never need escaping
+        }
+        return names;
+    }
+
+    private static long drain(InputStream body) throws IOException {
+        try (body) {
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    // --- Report ---
+
+    private void report(double elapsedSeconds, ConsumerMetrics consumerMetrics) throws IOException {
+        long attempts = uploadsSaved.get() + uploadsFailed.get() + uploadsRejected.get() + uploadErrors.get();
+        double rejectionRate = attempts == 0 ? 0 : (double) uploadsRejected.get() / attempts;
+        double megabytesPerSecond = bytesUploaded.get() / (1024.0 * 1024.0) / elapsedSeconds;
+        System.out.printf("Uploads:        %d saved (%.1f/s), %d failed, %d errors, %d rejected (%.1f%% of %d attempts)%n",
+                uploadsSaved.get(), uploadsSaved.get() / elapsedSeconds, uploadsFailed.get(), uploadErrors.get(),
+                uploadsRejected.get(), rejectionRate * 100, attempts);
+        System.out.printf("Ingest:         %.1f MB/s%n", megabytesPerSecond);
+        System.out.printf("Upload latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                uploadMicros.valueAtPercentile(50) / 1e3, uploadMicros.valueAtPercentile(99) / 1e3, uploadMicros.getMax() / 1e3);
+        if (retryAfterMillis.getCount() > 0) {
+            System.out.printf("Retry-after:    p50 %d ms, max %d ms%n", retryAfterMillis.valueAtPercentile(50), retryAfterMillis.getMax());
+        }
+        System.out.printf("List requests:  %d (%.1f/s, %d not modified), p50 %.2f ms, p99 %.2f ms%n",
+                listRequests.get(), listRequests.get() / elapsedSeconds, listNotModified.get(),
+                listMicros.valueAtPercentile(50) / 1e3, listMicros.valueAtPercentile(99) / 1e3);
+        System.out.printf("Range requests: %d (%.1f/s, %.1f MB/s), p50 %.2f ms, p99 %.2f ms, %d viewer errors%n",
+                rangeRequests.get(), rangeRequests.get() / elapsedSeconds, bytesViewed.get() / (1024.0 * 1024.0) / elapsedSeconds,
+                rangeMicros.valueAtPercentile(50) / 1e3, rangeMicros.valueAtPercentile(99) / 1e3, viewerErrors.get());
+
+        if (reportPath != null) {
+            String json = "{\"settings\":{\"c\":" + workerThreads + ",\"q\":" + queueSize + ",\"producers\":" + producers
+                    + ",\"slowProducers\":" + slowProducers + ",\"viewers\":" + viewers + ",\"seconds\":" + seconds + "}"
+                    + ",\"elapsedSeconds\":" + elapsedSeconds
+                    + ",\"uploads\":{\"saved\":" + uploadsSaved.get() + ",\"failed\":" + uploadsFailed.get()
+                    + ",\"errors\":" + uploadErrors.get() + ",\"rejected\":" + uploadsRejected.get()
+                    + ",\"perSecond\":" + uploadsSaved.get() / elapsedSeconds + ",\"megabytesPerSecond\":" + megabytesPerSecond
+                    + ",\"rejectionRate\":" + rejectionRate + ",\"latencyMs\":" + percentilesJson(uploadMicros) + "}"
+                    + ",\"list\":{\"requests\":" + listRequests.get() + ",\"notModified\":" + listNotModified.get()
+                    + ",\"latencyMs\":" + percentilesJson(listMicros) + "}"
+                    + ",\"range\":{\"requests\":" + rangeRequests.get() + ",\"bytes\":" + bytesViewed.get()
+                    + ",\"latencyMs\":" + percentilesJson(rangeMicros) + "}"
+                    + ",\"viewerErrors\":" + viewerErrors.get()
+                    + ",\"consumer\":" + consumerMetrics.toJson() + "}";
+            Path report = Path.of(reportPath);
+            Files.createDirectories(report.toAbsolutePath().getParent());
+            Files.writeString(report, json);
+            System.out.println("Report written to " + report.toAbsolutePath());
+        }
+    }
+
+    private static String percentilesJson(Histogram micros) {
+        return "{\"p50\":" + micros.valueAtPercentile(50) / 1e3 + ",\"p99\":" + micros.valueAtPercentile(99) / 1e3
+                + ",\"max\":" + micros.getMax() / 1e3 + "}";
+    }
+
+    // --- Helpers ---
+
+    // The repository's GUI folder when given, otherwise a minimal stand-in
+    private static Path guiFolder() throws IOException {
+        String configured = System.getProperty("load.gui");
+        if (configured != null && Files.isDirectory(Path.of(configured))) {
+            return Path.of(configured);
+        }
+        Path folder = Files.createTempDirectory("p3-load-gui");
+        Files.writeString(folder.resolve("index.html"), "<html></html>");
+        return folder;
+    }
+
+    private static int intSetting(String property, int defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a whole number for " + property + ": " + value);
+        }
+    }
+
+    // "256k,1m,4m" -> bytes
+    private static int[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim().toLowerCase();
+            int multiplier = 1;
+            if (part.endsWith("k")) {
+                multiplier = 1024;
+            } else if (part.endsWith("m")) {
+                multiplier = 1024 * 1024;
+            }
+            if (multiplier > 1) {
+                part = part.substring(0, part.length() - 1);
+            }
+            sizes[i] = Math.multiplyExact(Integer.parseInt(part), multiplier);
+        }
+        return sizes;
+    }
+
+    private static int max(int[] values) {
+        int result = 0;
+        for (int value : values) {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+
+    private static int min(int[] values) {
+        int result = Integer.MAX_VALUE;
+        for (int value : values) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+
+    private static void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.consumer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * Runtime limits of the HTTP side, under {@code /api/admin/}.
+ * <p>
+ * {@code GET /api/admin/limits} shows the serving rate limits and the bounded executor;
+ * {@code POST /api/admin/limits} changes any of them, with the new values as query or form
+ * parameters ({@code globalKbPerSec}, {@code clientKbPerSec}, {@code ingestingKbPerSec},
+ * {@code priority}, {@code httpThreads}, {@code httpQueue}). Changes are not saved: a restart
+ * goes back to the startup options.
+ * <p>
+ * Only clients on this machine may use it, unless {@code consumer.admin.token} is set; then every
+ * client must send it as {@code Authorization: Bearer <token>}. Admin requests are answered even
+ * when the HTTP executor is overloaded, so limits can be changed while it is.
+ */
+public class AdminHttpHandler implements HttpHandler {
+
+    private static final int MAX_FORM_BYTES = 4096;
+
+    private final ServeThrottle throttle;
+    private final HttpRequestExecutor requestExecutor; // null unless the bounded executor is used
+    private final ConsumerMetrics metrics;
+    private final byte[] token; // null = local clients only
+
+    public AdminHttpHandler(ServeThrottle throttle, HttpRequestExecutor requestExecutor, ConsumerMetrics metrics, ConsumerOptions options) {
+        this.throttle = throttle;
+        this.requestExecutor = requestExecutor;
+        this.metrics = metrics;
+        this.token = options.getAdminToken() != null ? options.getAdminToken().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if (!isAllowed(exchange)) {
+                Log.warn("Admin request {} {} refused for {}", method, path, exchange.getRemoteAddress());
+                sendResponse(exchange, 403, "Forbidden", "text/plain");
+            } else if (!"/api/admin/limits".equals(path)) {
+                sendResponse(exchange, 404, "Not Found", "text/plain");
+            } else if ("GET".equalsIgnoreCase(method)) {
+                sendResponse(exchange, 200, limitsJson(), "application/json");
+            } else if ("POST".equalsIgnoreCase(method)) {
+                updateLimits(exchange);
+            } else {
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                sendResponse(exchange, 405, "Method Not Allowed", "text/plain");
+            }
+        } catch (Exception e) {
+            Log.error("Error handling admin request {}: {}", path, e.getMessage());
+            sendResponse(exchange, 500, "Internal Server Error", "text/plain");
+        } finally {
+            metrics.httpRequest(ConsumerMetrics.Route.ADMIN, exchange.getResponseCode(), System.nanoTime() - startNanos);
+        }
+    }
+
+    private boolean isAllowed(HttpExchange exchange) {
+        if (token == null) {
+            InetSocketAddress remote = exchange.getRemoteAddress();
+            return remote != null && remote.getAddress() != null && remote.getAddress().isLoopbackAddress();
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        byte[] presented = authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(presented, token); // Constant time
+    }
+
+    // Every value is checked before any is applied, so a bad request changes nothing
+    private void updateLimits(HttpExchange exchange) throws IOException {
+        Map<String, String> params = GuiHttpHandler.parseQuery(exchange.getRequestURI().getRawQuery());
+        byte[] form;
+        try (InputStream body = exchange.getRequestBody()) {
+            form = body.readNBytes(MAX_FORM_BYTES + 1);
+        }
+        if (form.length > MAX_FORM_BYTES) {
+            sendResponse(exchange, 413, "Payload Too Large", "text/plain");
+            return;
+        }
+        params.putAll(GuiHttpHandler.parseQuery(new String(form, StandardCharsets.UTF_8).trim()));
+
+        Long global, client, ingesting, threads, queue;
+        ServeThrottle.Priority priority = null;
+        try {
+            global = kbToBytes(params.get("globalKbPerSec"));
+            client = kbToBytes(params.get("clientKbPerSec"));
+            ingesting = kbToBytes(params.get("ingestingKbPerSec"));
+            threads = number(params.get("httpThreads"), 1, 10_000);
+            queue = number(params.get("httpQueue"), 0, 1_000_000);
+            if (params.containsKey("priority")) {
+                priority = priority(params.get("priority"));
+            }
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, "Bad Request: " + e.getMessage(), "text/plain");
+            return;
+        }
+        if ((threads != null || queue != null) && requestExecutor == null) {
+            sendResponse(exchange, 409, "Conflict: httpThreads and httpQueue need -Dconsumer.http.executor=bounded", "text/plain");
+            return;
+        }
+
+        if (global != null) {
+            throttle.setGlobalBytesPerSecond(global);
+        }
+        if (client != null) {
+            throttle.setClientBytesPerSecond(client);
+        }
+        if (ingesting != null) {
+            throttle.setIngestingBytesPerSecond(ingesting);
+        }
+        if (priority != null) {
+            throttle.setPriority(priority);
+        }
+        if (threads != null) {
+            requestExecutor.setThreads(threads.intValue());
+        }
+        if (queue != null) {
+            requestExecutor.setQueueLimit(queue.intValue());
+        }
+        String limits = limitsJson();
+        Log.info("Limits changed by {}: {}", exchange.getRemoteAddress(), limits);
+        sendResponse(exchange, 200, limits, "application/json");
+    }
+
+    private static ServeThrottle.Priority priority(String value) {
+        for (ServeThrottle.Priority priority : ServeThrottle.Priority.values()) {
+            if (priority.name().equalsIgnoreCase(value.trim())) {
+                return priority;
+            }
+        }
+        throw new IllegalArgumentException("priority must be equal or ingest");
+    }
+
+    private static Long kbToBytes(String value) {
+        Long kb = number(value, 0, Long.MAX_VALUE / 1024);
+        return kb == null ? null : kb * 1024;
+    }
+
+    private static Long number(String value, long min, long max) {
+        if (value == null) {
+            return null;
+        }
+        long number = Long.parseLong(value.trim()); // NumberFormatException is an IllegalArgumentException
+        if (number < min || number > max) {
+            throw new IllegalArgumentException(value + " is out of range " + min + ".." + max);
+        }
+        return number;
+    }
+
+    private String limitsJson() {
+        return "{\"serve\":" + throttle.statsJson()
+                + ",\"http\":" + (requestExecutor != null ? requestExecutor.statsJson() : "{\"bounded\":false}") + "}";
+    }
+
+    private void sendResponse(HttpExchange exchange, int statusCode, String responseBody, String contentType) throws IOException {
+        byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+        metrics.bytesServed(responseBytes.length);
+    }
+}
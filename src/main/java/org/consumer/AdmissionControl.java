@@ -0,0 +1,156 @@
+package org.consumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns away connections the consumer has no room for with a busy reply
+ * ({@link UploadProtocol#REPLY_BUSY} and a retry-after hint) instead of a bare close, so producers
+ * back off for a while rather than reconnecting straight away all at once.
+ * <p>
+ * The hint is the time the current backlog needs to drain at the recently observed drain rate
+ * (connections taken off the queue, or finished, per second), with some jitter so the rejected
+ * producers do not all come back at the same moment.
+ */
+public class AdmissionControl implements Closeable {
+
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+    private static final long DEFAULT_RETRY_MILLIS = 1_000; // Nothing has drained yet
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double RATE_SMOOTHING = 0.3; // Weight of the newest rate sample
+    private static final double JITTER = 0.25; // Hint is spread over +/- 25%
+
+    // The busy reply is written right away, then the socket lingers briefly before it is closed
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final int MAX_LINGERING = 4096;
+    private static final int DISCARD_LIMIT_BYTES = 64 * 1024;
+
+    private final ConsumerMetrics metrics;
+    private final AtomicLong drained = new AtomicLong();
+    private final BlockingQueue<Lingering> lingering = new ArrayBlockingQueue<>(MAX_LINGERING); // In close order
+    private final Thread closer;
+
+    // Drain rate estimate, refreshed when a hint is needed (guarded by this)
+    private long sampledDrained = 0;
+    private long sampledAtNanos = System.nanoTime();
+    private double drainPerSecond = -1; // -1 = no estimate yet
+
+    private static class Lingering {
+        final Socket socket;
+        final long closeAtNanos;
+
+        Lingering(Socket socket, long closeAtNanos) {
+            this.socket = socket;
+            this.closeAtNanos = closeAtNanos;
+        }
+    }
+
+    public AdmissionControl(ConsumerMetrics metrics) {
+        this.metrics = metrics;
+        this.closer = new Thread(this::closeLingering, "busy-replies");
+        this.closer.setDaemon(true);
+        this.closer.start();
+    }
+
+    /** A connection left the backlog (taken by a worker, or closed in nio/virtual mode). */
+    public void connectionDrained() {
+        drained.incrementAndGet();
+    }
+
+    /** How long a producer turned away now should wait, given {@code backlog} connections ahead of it. */
+    public synchronized long retryAfterMillis(int backlog) {
+        long now = System.nanoTime();
+        long elapsed = now - sampledAtNanos;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            long total = drained.get();
+            double rate = (total - sampledDrained) * 1e9 / elapsed;
+            boolean stale = drainPerSecond < 0 || elapsed > 10 * RATE_WINDOW_NANOS;
+            drainPerSecond = stale ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * drainPerSecond;
+            sampledDrained = total;
+            sampledAtNanos = now;
+        }
+
+        double millis = drainPerSecond > 0 ? (backlog + 1) * 1000.0 / drainPerSecond : DEFAULT_RETRY_MILLIS;
+        millis *= 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, Math.round(millis)));
+    }
+
+    /**
+     * Sends the busy reply on a blocking socket and closes it. Never blocks the caller: the reply
+     * is a few bytes on a new connection, so it always fits the empty send buffer.
+     * <p>
+     * The output is shut down right behind the reply, but the socket is only closed
+     * {@link #LINGER_NANOS} later, after discarding what the producer sent meanwhile: closing with
+     * unread input resets the connection, which can destroy the reply before the producer has read
+     * it. One thread closes all lingering sockets in turn, without ever waiting on one of them.
+     */
+    public void reject(Socket socket, int backlog) {
+        long retryAfter = retryAfterMillis(backlog);
+        metrics.busyReply(retryAfter);
+        try {
+            byte[] reply = ByteBuffer.allocate(1 + Integer.BYTES).put(UploadProtocol.REPLY_BUSY).putInt((int) retryAfter).array();
+            socket.getOutputStream().write(reply);
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            closeQuietly(socket); // Producer is already gone
+            return;
+        }
+        if (!lingering.offer(new Lingering(socket, System.nanoTime() + LINGER_NANOS))) {
+            discardInput(socket); // Too many lingering: close now
+            closeQuietly(socket);
+        }
+    }
+
+    private void closeLingering() {
+        try {
+            while (true) {
+                Lingering next = lingering.take();
+                long waitNanos = next.closeAtNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                discardInput(next.socket);
+                closeQuietly(next.socket);
+            }
+        } catch (InterruptedException e) {
+            lingering.forEach(next -> closeQuietly(next.socket)); // close()
+        }
+    }
+
+    // Reads only what has already arrived, so it never blocks
+    private static void discardInput(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] discard = new byte[8192];
+            int total = 0;
+            int available;
+            while (total < DISCARD_LIMIT_BYTES && (available = in.available()) > 0) {
+                int read = in.read(discard, 0, Math.min(available, discard.length));
+                if (read <= 0) {
+                    break;
+                }
+                total += read;
+            }
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException e) { /* Ignore close error */ }
+    }
+
+    @Override
+    public void close() {
+        closer.interrupt();
+    }
+}
@@ -0,0 +1,128 @@
+package org.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses the {@code Range} header of a file request (RFC 9110, section 14): {@code bytes=a-b},
+ * {@code bytes=a-}, suffix ranges {@code bytes=-n} (the last n bytes, which players use to read
+ * an MP4 index at the end of the file) and comma-separated lists of these.
+ * <p>
+ * Overlapping and adjacent ranges are merged and sorted, so a client cannot make the server send
+ * the same bytes many times over; a request for more than {@link #MAX_RANGES} pieces is answered
+ * with the whole file instead.
+ */
+public final class ByteRanges {
+
+    static final int MAX_RANGES = 16;
+
+    /** One satisfiable range, both ends inclusive. */
+    public static final class Range {
+        private final long start;
+        private final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+    }
+
+    private ByteRanges() {
+    }
+
+    /**
+     * Ranges of a file of {@code size} bytes requested by {@code header}.
+     *
+     * @return null if the header is missing, malformed or asks for too many pieces (serve the
+     *         whole file), an empty list if no range is satisfiable (416), else the merged ranges
+     */
+    public static List<Range> parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, "bytes=".length())) {
+            return null; // Other units are ignored
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    long suffix = parseDigits(last);
+                    if (suffix == 0) {
+                        continue; // Unsatisfiable: asks for nothing
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = parseDigits(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : parseDigits(last);
+                    if (end < start) {
+                        return null; // Invalid: the whole header is ignored
+                    }
+                    end = Math.min(end, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < size) {
+                ranges.add(new Range(start, end));
+            }
+        }
+        return merge(ranges);
+    }
+
+    // Digits only: Long.parseLong would also take a sign
+    private static long parseDigits(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            throw new NumberFormatException(value);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                throw new NumberFormatException(value);
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    private static List<Range> merge(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort((a, b) -> Long.compare(a.start, b.start));
+        List<Range> merged = new ArrayList<>(ranges.size());
+        Range current = ranges.get(0);
+        for (Range next : ranges.subList(1, ranges.size())) {
+            if (next.start <= current.end + 1) {
+                current = new Range(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return Collections.unmodifiableList(merged);
+    }
+}
@@ -0,0 +1,190 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * On-disk list of the videos in the output folder, so startup does not have to list a huge
+ * folder before the catalog is ready.
+ * <p>
+ * The manifest is an append-only text file in the state folder, one record per line:
+ * {@code + <size> <mtime millis> <sha-256 or -> <name>} when a file is committed or found, and
+ * {@code - <name>} when it is gone. Names cannot contain line breaks (the catalog skips such
+ * files). It is read through a memory mapping at startup and replayed; when most records are
+ * superseded it is rewritten compactly (temp file, atomic rename).
+ * Records are not flushed to disk one by one: a record lost in a crash is restored by the
+ * reconciliation scan ({@link CatalogSync}), which compares the manifest with the folder.
+ */
+public class CatalogManifest {
+
+    private static final String MANIFEST_FILE_NAME = "manifest";
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    /** What the manifest knows about one file. */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash; // Hex SHA-256, or null if not known
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    private final Path manifestFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(); // Guarded by this; manifest order
+    private FileChannel appender; // Guarded by this
+    private long records = 0; // Lines in the file, live or superseded
+    private long completeLength = 0; // Bytes up to the end of the last complete line
+
+    private CatalogManifest(Path manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public static CatalogManifest load(Path stateFolder) throws IOException {
+        Files.createDirectories(stateFolder);
+        CatalogManifest manifest = new CatalogManifest(stateFolder.resolve(MANIFEST_FILE_NAME));
+        if (Files.exists(manifest.manifestFile)) {
+            manifest.replay();
+        }
+        if (manifest.records > COMPACT_MIN_RECORDS && manifest.records > 2L * manifest.entries.size()) {
+            manifest.compact();
+        }
+        manifest.appender = FileChannel.open(manifest.manifestFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (manifest.appender.size() > manifest.completeLength) {
+            // Torn record from a crash: new records must start on a line of their own
+            manifest.appender.truncate(manifest.completeLength);
+        }
+        Log.info("Loaded catalog manifest: {} videos ({} records)", manifest.entries.size(), manifest.records);
+        return manifest;
+    }
+
+    // Parses the mapped file in place: only the fields of each line become objects
+    private void replay() throws IOException {
+        try (FileChannel channel = FileChannel.open(manifestFile, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length == 0) {
+                return;
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Catalog manifest too large: " + length + " bytes");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (mapped.get(i) == '\n') {
+                    applyLine(mapped, lineStart, i);
+                    records++;
+                    lineStart = i + 1;
+                }
+            }
+            completeLength = lineStart; // Anything after the last newline is a torn record: ignored
+        }
+    }
+
+    private void applyLine(ByteBuffer mapped, int start, int end) {
+        String line = new String(bytes(mapped, start, end), StandardCharsets.UTF_8);
+        try {
+            String[] parts = line.split(" ", line.startsWith("+") ? 5 : 2); // The name is the rest of the line
+            if (parts.length == 5 && "+".equals(parts[0])) {
+                entries.remove(parts[4]); // A re-added name moves to the end, as in the catalog
+                String hash = "-".equals(parts[3]) ? null : parts[3];
+                entries.put(parts[4], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), hash));
+            } else if (parts.length == 2 && "-".equals(parts[0])) {
+                entries.remove(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            // Damaged record: the reconciliation scan corrects whatever it described
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return bytes;
+    }
+
+    private void compact() throws IOException {
+        Path temp = manifestFile.resolveSibling(MANIFEST_FILE_NAME + ".tmp");
+        StringBuilder text = new StringBuilder(entries.size() * 64);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            appendAdded(text, entry.getKey(), entry.getValue());
+        }
+        Files.writeString(temp, text, StandardCharsets.UTF_8);
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Log.info("Compacted catalog manifest: {} records -> {}", records, entries.size());
+        records = entries.size();
+        completeLength = Files.size(manifestFile);
+    }
+
+    /** Names in manifest order (oldest first). */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Records a committed or discovered file. */
+    public synchronized void recordAdded(String name, long size, long lastModified, String hash) throws IOException {
+        Entry entry = new Entry(size, lastModified, hash);
+        entries.remove(name);
+        entries.put(name, entry);
+        StringBuilder line = new StringBuilder(64);
+        appendAdded(line, name, entry);
+        append(line);
+    }
+
+    /** Records that a file is gone; does nothing if the manifest does not list it. */
+    public synchronized void recordRemoved(String name) throws IOException {
+        if (entries.remove(name) != null) {
+            append(new StringBuilder(name.length() + 3).append("- ").append(name).append('\n'));
+        }
+    }
+
+    private static void appendAdded(StringBuilder text, String name, Entry entry) {
+        text.append("+ ").append(entry.size).append(' ').append(entry.lastModified).append(' ')
+                .append(entry.hash == null ? "-" : entry.hash).append(' ').append(name).append('\n');
+    }
+
+    private void append(CharSequence line) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(line.toString());
+        while (bytes.hasRemaining()) {
+            appender.write(bytes);
+        }
+        records++;
+    }
+
+    public synchronized void close() {
+        try {
+            appender.close();
+        } catch (IOException e) {
+            // Ignore closing error
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.consumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the catalog and the manifest of one storage volume in line with the volume's folder.
+ * <p>
+ * At startup the catalog comes from the {@link CatalogManifest}; this class then scans the folder
+ * once in the background, lists files the manifest does not know (or knows with another size or
+ * modification time) and drops names whose file is gone. After that a {@link WatchService}
+ * reports files that other programs copy into or delete from the folder. A name is only looked
+ * at once its events have been quiet for a second, so a file that is still being copied is not
+ * listed half written. If the watch service loses events (overflow), the folder is scanned again.
+ * <p>
+ * Uploads record themselves in the manifest when they are committed, so the events caused by the
+ * consumer's own renames find nothing to change.
+ */
+public class CatalogSync implements Closeable {
+
+    private static final long QUIET_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long POLL_MILLIS = 250;
+
+    private final StorageVolumes.Volume volume;
+    private final Path folder;
+    private final StorageVolumes storage;
+    private final VideoCatalog catalog;
+    private final CatalogManifest manifest;
+    private final DedupIndex dedupIndex; // null unless dedup is on
+    private final boolean watch;
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private volatile WatchService watchService;
+
+    public CatalogSync(StorageVolumes.Volume volume, StorageVolumes storage, VideoCatalog catalog, DedupIndex dedupIndex, boolean watch) {
+        this.volume = volume;
+        this.folder = volume.getFolder();
+        this.storage = storage;
+        this.catalog = catalog;
+        this.manifest = volume.getManifest();
+        this.dedupIndex = dedupIndex;
+        this.watch = watch;
+        this.thread = new Thread(this::run, "catalog-sync-" + volume.getIndex());
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        if (watch) {
+            try {
+                // Registered before the scan, so nothing that changes during the scan is missed
+                watchService = folder.getFileSystem().newWatchService();
+                folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException e) {
+                Log.warn("Cannot watch {}; files added or removed by other programs are picked up at the next start: {}", folder, e.getMessage());
+                closeWatchService();
+            }
+        }
+        scan();
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                watchLoop(service);
+            } catch (ClosedWatchServiceException e) {
+                // Closed by close()
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // --- Reconciliation scan ---
+
+    /** Compares the whole folder with the manifest and fixes both the manifest and the catalog. */
+    private void scan() {
+        long started = System.nanoTime();
+        Set<String> seen = new HashSet<>();
+        int changed = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path file : stream) {
+                if (closed) {
+                    return;
+                }
+                String name = file.getFileName().toString();
+                seen.add(name);
+                if (reconcile(name)) {
+                    changed++;
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            Log.warn("Could not scan {}: {}", folder, e.getMessage());
+            return;
+        }
+        for (String name : manifest.getNames()) {
+            if (!seen.contains(name) && reconcile(name)) {
+                changed++;
+            }
+        }
+        Log.info("Catalog reconciled with {} in {} ms: {} change(s), {} files listed.",
+                folder, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), changed, manifest.size());
+    }
+
+    /**
+     * Brings one name in line with the folder: a regular file is recorded and listed, a missing
+     * one is forgotten (unless another volume holds the name, or it is a dedup alias, which has no
+     * file and stays listed).
+     *
+     * @return true if the manifest or the catalog changed
+     */
+    private boolean reconcile(String name) {
+        if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+            return false; // Cannot be recorded or served
+        }
+        try {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(folder.resolve(name), BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                attributes = null;
+            }
+
+            if (attributes != null && attributes.isRegularFile()) {
+                long size = attributes.size();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                CatalogManifest.Entry entry = manifest.get(name);
+                boolean recorded = entry == null || entry.getSize() != size || entry.getLastModified() != lastModified;
+                if (recorded) {
+                    manifest.recordAdded(name, size, lastModified, null);
+                    Log.debug("Catalog: {} found in {} ({} bytes)", name, folder, size);
+                }
+                storage.found(volume, name);
+                return catalog.add(name) || recorded;
+            }
+
+            boolean forgotten = manifest.get(name) != null;
+            manifest.recordRemoved(name);
+            if (!storage.removed(volume, name)) {
+                return forgotten; // Stored on another volume
+            }
+            if (dedupIndex != null && !dedupIndex.resolve(name).equals(name)) {
+                return forgotten; // Alias of another file's content
+            }
+            if (catalog.remove(name)) {
+                Log.info("{} is no longer in {}, removed from the list.", name, folder);
+                return true;
+            }
+            return forgotten;
+        } catch (IOException e) {
+            Log.warn("Could not check {} in {}: {}", name, folder, e.getMessage());
+            return false;
+        }
+    }
+
+    // --- Watching for changes by other programs ---
+
+    private void watchLoop(WatchService service) throws InterruptedException {
+        Map<String, Long> dirty = new LinkedHashMap<>(); // Name -> time of its last event
+        while (!closed) {
+            WatchKey key = service.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            long now = System.nanoTime();
+            if (key != null) {
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else {
+                        String name = ((Path) event.context()).toString();
+                        dirty.remove(name); // Keep the map ordered by last event
+                        dirty.put(name, now);
+                    }
+                }
+                if (!key.reset()) {
+                    Log.warn("{} is no longer accessible, stopped watching it.", folder);
+                    return;
+                }
+                if (overflow) {
+                    Log.info("Too many changes in {} to follow one by one, scanning it again.", folder);
+                    dirty.clear();
+                    scan();
+                    continue;
+                }
+            }
+
+            Iterator<Map.Entry<String, Long>> quiet = dirty.entrySet().iterator();
+            while (quiet.hasNext()) {
+                Map.Entry<String, Long> entry = quiet.next();
+                if (now - entry.getValue() < QUIET_NANOS) {
+                    break; // Later entries had events even more recently
+                }
+                quiet.remove();
+                reconcile(entry.getKey());
+            }
+        }
+    }
+
+    private void closeWatchService() {
+        WatchService service = watchService;
+        watchService = null;
+        if (service != null) {
+            try { service.close(); } catch (IOException e) { /* Ignore close error */ }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeWatchService();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
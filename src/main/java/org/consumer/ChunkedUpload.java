@@ -0,0 +1,205 @@
+package org.consumer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.BitSet;
+
+/**
+ * One file being assembled from offset-addressed chunks (see {@link UploadProtocol#FLAG_CHUNKED}).
+ * <p>
+ * Chunks are written with positional writes into a part file preallocated to the total size; which
+ * chunks are present is tracked in a bitmap that is saved next to it after every chunk, so an upload
+ * can be resumed after a dropped connection or a consumer restart.
+ * <p>
+ * The chunk that makes the bitmap full moves the upload to <i>completing</i>: no more chunks are
+ * opened, and once the other open chunks are closed the part file is checked and moved into place.
+ * Only then ({@link #committed()}) is the bitmap deleted; if the move fails
+ * ({@link #completionFailed()}) the complete bitmap stays and a resent chunk tries again.
+ */
+public class ChunkedUpload {
+
+    private final String fileName;
+    private final StorageVolumes.Volume volume; // Where the part file is, and so where the file ends up
+    private final long totalSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final Path partFile;
+    private final Path chunkMapFile;
+    private final BitSet received;
+    private int openChunks = 0;
+    private boolean completing = false; // Full bitmap, being checked and moved into place
+    private boolean completed = false; // Moved into place
+    private boolean discarded = false; // Restarted, or its content was rejected
+
+    private ChunkedUpload(String fileName, StorageVolumes.Volume volume, long totalSize, int chunkSize, Path partFile, Path chunkMapFile, BitSet received) {
+        this.fileName = fileName;
+        this.volume = volume;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) Math.max(1, (totalSize + chunkSize - 1) / chunkSize); // An empty file is one empty chunk
+        this.partFile = partFile;
+        this.chunkMapFile = chunkMapFile;
+        this.received = received;
+    }
+
+    static ChunkedUpload create(StorageVolumes.Volume volume, Path partialFolder, String fileName, long totalSize, int chunkSize) throws IOException {
+        if ((totalSize + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+            throw new IOException("Chunk size " + chunkSize + " too small for " + totalSize + " bytes");
+        }
+        Files.createDirectories(partialFolder);
+        ChunkedUpload upload = new ChunkedUpload(fileName, volume, totalSize, chunkSize,
+                partialFolder.resolve(fileName + ".part"), partialFolder.resolve(fileName + ".chunks"), new BitSet());
+        try (FileChannel channel = FileChannel.open(upload.partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (totalSize > 0) {
+                channel.write(ByteBuffer.allocate(1), totalSize - 1); // Preallocate the whole file
+            }
+        }
+        upload.saveChunkMap();
+        return upload;
+    }
+
+    /** Picks up an upload left by an earlier connection or run, or returns null if there is none. */
+    static ChunkedUpload load(StorageVolumes.Volume volume, Path partialFolder, String fileName) {
+        Path partFile = partialFolder.resolve(fileName + ".part");
+        Path chunkMapFile = partialFolder.resolve(fileName + ".chunks");
+        if (!Files.isRegularFile(partFile) || !Files.isRegularFile(chunkMapFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(chunkMapFile)))) {
+            long totalSize = in.readLong();
+            int chunkSize = in.readInt();
+            byte[] bitmap = in.readAllBytes();
+            return new ChunkedUpload(fileName, volume, totalSize, chunkSize, partFile, chunkMapFile, BitSet.valueOf(bitmap));
+        } catch (IOException e) {
+            Log.warn("Discarding unreadable chunk map for {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public StorageVolumes.Volume getVolume() {
+        return volume;
+    }
+
+    public Path getPartFile() {
+        return partFile;
+    }
+
+    boolean matches(long totalSize, int chunkSize) {
+        return this.totalSize == totalSize && this.chunkSize == chunkSize;
+    }
+
+    /** Expected body length of a chunk. */
+    long chunkLength(int chunkIndex) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= chunkCount) {
+            throw new IOException("Chunk index " + chunkIndex + " out of range for " + fileName + " (" + chunkCount + " chunks)");
+        }
+        return Math.min(chunkSize, totalSize - (long) chunkIndex * chunkSize);
+    }
+
+    /** Opens the part file positioned at the start of the chunk; pair with {@link #chunkClosed()}. */
+    synchronized FileChannel openChunk(int chunkIndex) throws IOException {
+        if (discarded) {
+            throw new IOException("Chunked upload of " + fileName + " was restarted");
+        }
+        if (completing || completed) {
+            throw new IOException("Chunked upload of " + fileName + " is already complete");
+        }
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE);
+        channel.position((long) chunkIndex * chunkSize);
+        openChunks++;
+        return channel;
+    }
+
+    synchronized void chunkClosed() {
+        openChunks--;
+        notifyAll();
+    }
+
+    synchronized boolean hasOpenChunks() {
+        return openChunks > 0;
+    }
+
+    /**
+     * Records a fully written chunk.
+     *
+     * @return true exactly once per attempt: for the chunk that made the bitmap full, which must
+     *         then call {@link #committed()} or {@link #completionFailed()}
+     */
+    synchronized boolean markReceived(int chunkIndex) throws IOException {
+        if (discarded) {
+            throw new IOException("Chunked upload of " + fileName + " was restarted");
+        }
+        if (completing || completed) {
+            return false;
+        }
+        received.set(chunkIndex);
+        saveChunkMap(); // Also when full: a crash before the move leaves a resumable upload
+        if (received.cardinality() < chunkCount) {
+            return false;
+        }
+        completing = true;
+        return true;
+    }
+
+    /**
+     * Waits until no other chunk is being written, so the part file no longer changes.
+     *
+     * @return false if chunks were still open after {@code timeoutMillis}
+     */
+    synchronized boolean awaitChunksClosed(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (openChunks > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /** The part file was moved into place: the bitmap is no longer needed. */
+    synchronized void committed() {
+        completed = true;
+        completing = false;
+        try { Files.deleteIfExists(chunkMapFile); } catch (IOException e) { /* Ignore */ }
+    }
+
+    /** The move failed: the next chunk that arrives tries again. */
+    synchronized void completionFailed() {
+        completing = false;
+    }
+
+    synchronized byte[] chunkBitmap() {
+        return received.toByteArray();
+    }
+
+    synchronized int receivedChunks() {
+        return received.cardinality();
+    }
+
+    int chunkCount() {
+        return chunkCount;
+    }
+
+    /** Deletes the part file and bitmap; chunks still being written to it fail. */
+    synchronized void discard() {
+        discarded = true;
+        try { Files.deleteIfExists(chunkMapFile); } catch (IOException e) { /* Ignore */ }
+        try { Files.deleteIfExists(partFile); } catch (IOException e) { /* Ignore */ }
+    }
+
+    private void saveChunkMap() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(chunkMapFile)))) {
+            out.writeLong(totalSize);
+            out.writeInt(chunkSize);
+            out.write(received.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of chunked uploads in progress, keyed by file name. Part files and chunk maps live in
+ * the {@code partial} folder of the state folder of the volume the file is placed on, so they are
+ * never listed as videos and the finished file is renamed within one disk.
+ */
+public class ChunkedUploads {
+
+    private final StorageVolumes storage;
+    private final Map<String, ChunkedUpload> uploads = new HashMap<>();
+
+    public ChunkedUploads(StorageVolumes storage) {
+        this.storage = storage;
+    }
+
+    private static Path partialFolderOf(StorageVolumes.Volume volume) {
+        return IngestContext.stateFolderOf(volume.getFolder()).resolve("partial");
+    }
+
+    /**
+     * Returns the upload a chunk belongs to, creating it on first use. A chunk announcing a different
+     * total or chunk size starts the upload over, unless chunks of the old layout are still being
+     * written (they would write into the new part file).
+     */
+    public synchronized ChunkedUpload begin(UploadHeader header) throws IOException {
+        String fileName = header.getFileName();
+        ChunkedUpload upload = find(fileName);
+        if (upload != null && !upload.matches(header.getTotalSize(), header.getChunkSize())) {
+            if (upload.hasOpenChunks()) {
+                throw new IOException("Chunked upload of " + fileName + " cannot restart with a different layout while chunks are being written");
+            }
+            Log.info("Chunked upload of {} restarted with a different layout.", fileName);
+            upload.discard();
+            upload = null;
+        }
+        if (upload == null) {
+            StorageVolumes.Volume volume = storage.place(fileName, header.getTotalSize());
+            upload = ChunkedUpload.create(volume, partialFolderOf(volume), fileName, header.getTotalSize(), header.getChunkSize());
+        }
+        uploads.put(fileName, upload);
+
+        long expected = upload.chunkLength(header.getChunkIndex());
+        if (header.getFileSize() != expected) {
+            throw new IOException("Chunk " + header.getChunkIndex() + " of " + fileName + " should be " + expected + " bytes, header says " + header.getFileSize());
+        }
+        return upload;
+    }
+
+    /** Bitmap of the chunks present for a file (empty if no upload is in progress). */
+    public synchronized byte[] chunkBitmap(String fileName) {
+        ChunkedUpload upload = find(fileName);
+        return upload == null ? new byte[0] : upload.chunkBitmap();
+    }
+
+    /** Called once the assembled file has been moved into place, or rejected and discarded. */
+    public synchronized void completed(ChunkedUpload upload) {
+        uploads.remove(upload.getFileName(), upload);
+    }
+
+    private ChunkedUpload find(String fileName) {
+        ChunkedUpload upload = uploads.get(fileName);
+        if (upload == null) {
+            // Left by an earlier run: it may be on any volume
+            for (StorageVolumes.Volume volume : storage.getVolumes()) {
+                upload = ChunkedUpload.load(volume, partialFolderOf(volume), fileName);
+                if (upload != null) {
+                    uploads.put(fileName, upload);
+                    break;
+                }
+            }
+        }
+        return upload;
+    }
+}
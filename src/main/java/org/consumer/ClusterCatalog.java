@@ -0,0 +1,339 @@
+package org.consumer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The video list of the whole cluster: this node's own catalog merged with the catalogs of its
+ * peers, as one {@link VideoCatalog} with versions, deltas and events like a local one, so
+ * {@code /api/videos} and {@code /api/events} work unchanged on every node.
+ * <p>
+ * A gossip thread asks every peer for the changes to its own catalog since the version it last
+ * saw ({@code /api/cluster/catalog?since=v}, see {@link ClusterHttpHandler}), every
+ * {@code consumer.cluster.gossipMs}. A peer that does not answer {@link #MAX_FAILURES} times in a
+ * row is taken as down and its names leave the list until it answers again. A name stays listed
+ * while any node has it, so a file being handed to its owner never disappears in between.
+ */
+public class ClusterCatalog implements Closeable {
+
+    static final int MAX_FAILURES = 3;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+
+    private static class Peer {
+        final ClusterNode node;
+        final Set<String> names = new HashSet<>();
+        String version; // Version token of the peer's catalog we have; null = ask for all of it
+        int failures;
+        boolean up;
+        String ring; // Fingerprint of the peer's node list
+        long lastSeenMillis;
+
+        Peer(ClusterNode node) {
+            this.node = node;
+        }
+    }
+
+    private final ClusterNode self;
+    private final ClusterRing ring;
+    private final VideoCatalog local;
+    private final VideoCatalog merged = new VideoCatalog();
+    private final long gossipMillis;
+    private final HttpClient httpClient;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    // Guarded by this
+    private final Map<ClusterNode, Peer> peers = new LinkedHashMap<>();
+    private final Map<String, Integer> holders = new HashMap<>(); // Name -> nodes that have it
+    private final Set<String> localNames = new HashSet<>();
+    private long localVersion;
+
+    public ClusterCatalog(ClusterNode self, ClusterRing ring, VideoCatalog local, long gossipMillis) {
+        this.self = self;
+        this.ring = ring;
+        this.local = local;
+        this.gossipMillis = gossipMillis;
+        for (ClusterNode node : ring.getNodes()) {
+            if (!node.equals(self)) {
+                peers.put(node, new Peer(node));
+            }
+        }
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(2))
+                .followRedirects(HttpClient.Redirect.NEVER) // A redirect is passed on to the viewer as it is
+                .build();
+        synchronized (this) {
+            localVersion = local.getVersion();
+            for (String name : local.snapshot().getNames()) {
+                localNames.add(name);
+                hold(name);
+            }
+        }
+        local.addChangeListener(this::syncLocal);
+        this.thread = new Thread(this::run, "cluster-gossip");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** The merged list, served by the GUI handler. */
+    public VideoCatalog getMerged() {
+        return merged;
+    }
+
+    public ClusterNode getSelf() {
+        return self;
+    }
+
+    public ClusterRing getRing() {
+        return ring;
+    }
+
+    /** Client for talking to peers; does not follow redirects. */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    // --- Merged list ---
+
+    private void hold(String name) {
+        if (holders.merge(name, 1, Integer::sum) == 1) {
+            merged.add(name);
+        }
+    }
+
+    private void release(String name) {
+        Integer count = holders.get(name);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            holders.put(name, count - 1);
+        } else {
+            holders.remove(name);
+            merged.remove(name);
+        }
+    }
+
+    // Runs after every change of the local catalog
+    private synchronized void syncLocal() {
+        VideoCatalog.Delta delta = local.changesSince(localVersion);
+        if (delta == null) {
+            replace(localNames, new HashSet<>(local.snapshot().getNames()));
+            localVersion = local.getVersion();
+            return;
+        }
+        for (String name : delta.getAdded()) {
+            if (localNames.add(name)) {
+                hold(name);
+            }
+        }
+        for (String name : delta.getRemoved()) {
+            if (localNames.remove(name)) {
+                release(name);
+            }
+        }
+        localVersion = delta.getVersion();
+    }
+
+    private void replace(Set<String> current, Set<String> names) {
+        for (String name : names) {
+            if (!current.contains(name)) {
+                hold(name);
+            }
+        }
+        for (String name : current) {
+            if (!names.contains(name)) {
+                release(name);
+            }
+        }
+        current.clear();
+        current.addAll(names);
+    }
+
+    /**
+     * A peer that has {@code fileName}, preferring its owner, or null if no peer that is up lists
+     * it (this node's own files are not looked at).
+     */
+    public synchronized ClusterNode locate(String fileName) {
+        ClusterNode owner = ring.ownerOf(fileName);
+        Peer ownerPeer = peers.get(owner);
+        if (ownerPeer != null && ownerPeer.up && ownerPeer.names.contains(fileName)) {
+            return owner;
+        }
+        for (Peer peer : peers.values()) {
+            if (peer.up && peer.names.contains(fileName)) {
+                return peer.node;
+            }
+        }
+        return null;
+    }
+
+    /** Whether the last gossip from {@code node} listed {@code fileName}. */
+    public synchronized boolean lists(ClusterNode node, String fileName) {
+        Peer peer = peers.get(node);
+        return peer != null && peer.names.contains(fileName);
+    }
+
+    /** Whether {@code node} answers and places names the way this node does. */
+    public synchronized boolean isReady(ClusterNode node) {
+        Peer peer = peers.get(node);
+        return peer != null && peer.up && ring.getFingerprint().equals(peer.ring);
+    }
+
+    // --- Gossip ---
+
+    private void run() {
+        while (!closed) {
+            for (ClusterNode node : ring.getNodes()) {
+                if (!node.equals(self) && !closed) {
+                    pull(node);
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(gossipMillis);
+            } catch (InterruptedException e) {
+                return; // close()
+            }
+        }
+    }
+
+    // One round with one peer: the changes to its catalog since the version we have
+    private void pull(ClusterNode node) {
+        String since;
+        synchronized (this) {
+            since = peers.get(node).version;
+        }
+        HttpRequest request = HttpRequest.newBuilder(node.httpUri("/api/cluster/catalog", since != null ? "since=" + since : null))
+                .timeout(REQUEST_TIMEOUT)
+                .header("X-Consumer-Node", self.getId())
+                .GET().build();
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+                apply(node, reader);
+            }
+        } catch (IOException e) {
+            failed(node, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    // Reads "version <v> ring <fingerprint> full|delta" and then "+ name" / "- name" lines
+    private void apply(ClusterNode node, BufferedReader reader) throws IOException {
+        String[] first = String.valueOf(reader.readLine()).split(" ");
+        if (first.length != 5 || !first[0].equals("version") || !first[2].equals("ring")) {
+            throw new IOException("Unexpected catalog response");
+        }
+        String version = first[1];
+        boolean full = first[4].equals("full");
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("+ ")) {
+                added.add(line.substring(2));
+            } else if (line.startsWith("- ")) {
+                removed.add(line.substring(2));
+            }
+        }
+
+        synchronized (this) {
+            Peer peer = peers.get(node);
+            boolean wasUp = peer.up;
+            if (!first[3].equals(ring.getFingerprint()) && !first[3].equals(peer.ring)) {
+                Log.warn("Cluster node {} was started with another node list; no files are handed to it.", node);
+            }
+            peer.ring = first[3];
+            peer.up = true;
+            peer.failures = 0;
+            peer.lastSeenMillis = System.currentTimeMillis();
+            if (full) {
+                replace(peer.names, added);
+            } else {
+                for (String name : added) {
+                    if (peer.names.add(name)) {
+                        hold(name);
+                    }
+                }
+                for (String name : removed) {
+                    if (peer.names.remove(name)) {
+                        release(name);
+                    }
+                }
+            }
+            peer.version = version;
+            if (!wasUp) {
+                Log.info("Cluster node {} is up, {} of its videos listed.", node, peer.names.size());
+            }
+        }
+    }
+
+    private synchronized void failed(ClusterNode node, String reason) {
+        Peer peer = peers.get(node);
+        if (++peer.failures != MAX_FAILURES) {
+            return; // Not yet taken as down, or already down
+        }
+        Log.warn("Cluster node {} is not answering ({}); its videos are not listed until it does.", node, reason);
+        peer.up = false;
+        replace(peer.names, new HashSet<>());
+        peer.version = null; // Start over with the whole list when it is back
+    }
+
+    // --- Status ---
+
+    synchronized String statsJson() {
+        StringBuilder json = new StringBuilder(256).append("{\"self\":\"").append(self.getId())
+                .append("\",\"ring\":\"").append(ring.getFingerprint())
+                .append("\",\"videos\":").append(holders.size())
+                .append(",\"localVideos\":").append(localNames.size())
+                .append(",\"peers\":[");
+        boolean firstPeer = true;
+        for (Peer peer : peers.values()) {
+            if (!firstPeer) {
+                json.append(',');
+            }
+            firstPeer = false;
+            json.append("{\"node\":\"").append(peer.node.getId())
+                    .append("\",\"up\":").append(peer.up)
+                    .append(",\"sameRing\":").append(ring.getFingerprint().equals(peer.ring))
+                    .append(",\"videos\":").append(peer.names.size())
+                    .append(",\"version\":").append(peer.version == null ? "null" : "\"" + peer.version + "\"")
+                    .append(",\"lastSeenMsAgo\":").append(peer.lastSeenMillis > 0 ? System.currentTimeMillis() - peer.lastSeenMillis : -1)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
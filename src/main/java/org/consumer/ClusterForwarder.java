@@ -0,0 +1,246 @@
+package org.consumer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands files this node stores but does not own to their owner on the hash ring.
+ * <p>
+ * Producers send to any node, and every ingest path saves the upload here as usual; once it is
+ * published, a non-owned file is queued for its owner. One thread per peer sends it as an
+ * ordinary session upload ({@link UploadProtocol#FLAG_SESSION}) and waits for the owner's
+ * {@code REPLY_FILE_SAVED}; only then is the local copy deleted. Until that happens the file is
+ * listed and served from here, so a producer never waits for the owner and nothing is lost while
+ * the owner is down: sending is retried with a growing pause, and at the next start every stored
+ * name the node does not own is queued again (which also moves files after the node list changed).
+ * <p>
+ * Dedup aliases and files that aliases point to stay where they are.
+ */
+public class ClusterForwarder implements Closeable {
+
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+    private static final long LISTED_WAIT_MILLIS = 10_000; // For the owner's gossip to list a handed file
+
+    // A stored file to send
+    private static class Job {
+        final StorageVolumes.Volume volume;
+        final String fileName;
+
+        Job(StorageVolumes.Volume volume, String fileName) {
+            this.volume = volume;
+            this.fileName = fileName;
+        }
+    }
+
+    private final ClusterCatalog cluster;
+    private final StorageVolumes storage;
+    private final VideoCatalog catalog;
+    private final DedupIndex dedupIndex; // null unless dedup is on
+    private final Map<ClusterNode, BlockingQueue<Job>> queues = new LinkedHashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicLong forwarded = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public ClusterForwarder(ClusterCatalog cluster, StorageVolumes storage, VideoCatalog catalog, DedupIndex dedupIndex) {
+        this.cluster = cluster;
+        this.storage = storage;
+        this.catalog = catalog;
+        this.dedupIndex = dedupIndex;
+        for (ClusterNode node : cluster.getRing().getNodes()) {
+            if (!node.equals(cluster.getSelf())) {
+                BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+                queues.put(node, queue);
+                Thread thread = new Thread(() -> run(node, queue), "cluster-forward-" + node.getHost() + "-" + node.getUploadPort());
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+        }
+    }
+
+    public void start() {
+        threads.forEach(Thread::start);
+    }
+
+    /** Queues every listed file this node stores but does not own (after a restart or a node list change). */
+    public void rebalance() {
+        int queued = 0;
+        for (String name : catalog.snapshot().getNames()) {
+            StorageVolumes.Volume volume = storage.locationOf(name);
+            if (volume != null && published(volume, name)) {
+                queued++;
+            }
+        }
+        if (queued > 0) {
+            Log.info("Cluster: {} stored file(s) belong to other nodes and are being handed over.", queued);
+        }
+    }
+
+    /**
+     * Called once {@code fileName} is stored on {@code volume}; queues it if another node owns it.
+     *
+     * @return true if it was queued
+     */
+    public boolean published(StorageVolumes.Volume volume, String fileName) {
+        ClusterNode owner = cluster.getRing().ownerOf(fileName);
+        BlockingQueue<Job> queue = queues.get(owner);
+        if (queue == null || closed) {
+            return false; // Owned by this node
+        }
+        if (dedupIndex != null && (!dedupIndex.resolve(fileName).equals(fileName) || dedupIndex.hasAliases(fileName))) {
+            return false;
+        }
+        try {
+            if (!UploadProtocol.sanitizeFileName(fileName.getBytes(StandardCharsets.UTF_8)).equals(fileName)) {
+                return false; // Copied in by another program under a name the owner would change
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return queue.offer(new Job(volume, fileName));
+    }
+
+    private void run(ClusterNode owner, BlockingQueue<Job> queue) {
+        long retryMillis = MIN_RETRY_MILLIS;
+        Job job = null;
+        while (!closed) {
+            try {
+                if (job == null) {
+                    job = queue.take();
+                }
+                if (!cluster.isReady(owner)) {
+                    TimeUnit.MILLISECONDS.sleep(retryMillis); // Down, or started with another node list
+                    retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+                    continue;
+                }
+                forward(owner, job);
+                job = null;
+                retryMillis = MIN_RETRY_MILLIS;
+            } catch (InterruptedException e) {
+                return; // close()
+            } catch (IOException e) {
+                Log.warn("Could not hand {} to {}, retrying in {} ms: {}", job.fileName, owner, retryMillis, e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+            }
+        }
+    }
+
+    private void forward(ClusterNode owner, Job job) throws IOException, InterruptedException {
+        if (storage.locationOf(job.fileName) != job.volume) {
+            return; // Replaced on another volume, or deleted: its own publish decides
+        }
+        Path file = job.volume.resolve(job.fileName);
+        BasicFileAttributes before;
+        try {
+            before = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return; // Gone meanwhile
+        }
+
+        long started = System.nanoTime();
+        byte[] name = job.fileName.getBytes(StandardCharsets.UTF_8);
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(owner.getHost(), owner.getUploadPort()), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            out.writeInt(UploadProtocol.EXTENDED_MAGIC);
+            out.writeInt(UploadProtocol.FLAG_SESSION); // For the ack frame
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeLong(before.size());
+            Files.copy(file, out);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte status = in.readByte();
+            if (status == UploadProtocol.REPLY_BUSY) {
+                throw new IOException("owner busy, retry after " + in.readInt() + " ms");
+            }
+            in.readFully(new byte[in.readInt()]); // Stored name
+            if (status != UploadProtocol.REPLY_FILE_SAVED) {
+                throw new IOException("owner replied " + status);
+            }
+        }
+
+        // Keep the local copy listed until the merged list has the owner's, so the name never disappears
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LISTED_WAIT_MILLIS);
+        while (!cluster.lists(owner, job.fileName) && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        // Delete the local copy only if it is still the file that was sent
+        BasicFileAttributes after;
+        try {
+            after = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            after = null;
+        }
+        if (after == null || after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())
+                || storage.locationOf(job.fileName) != job.volume) {
+            return;
+        }
+        Files.deleteIfExists(file);
+        job.volume.getManifest().recordRemoved(job.fileName);
+        if (storage.removed(job.volume, job.fileName)) {
+            catalog.remove(job.fileName); // Still listed through the owner
+        }
+        forwarded.incrementAndGet();
+        Log.info("Handed {} ({} bytes) to {} in {} ms.", job.fileName, before.size(), owner,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /** Files handed to their owner since the start. */
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    /** Files waiting to be handed over. */
+    public int getQueued() {
+        int queued = 0;
+        for (BlockingQueue<Job> queue : queues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.consumer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What a node tells the rest of its cluster, under {@code /api/cluster/}.
+ * <p>
+ * {@code GET /api/cluster/catalog[?since=v]} lists this node's own videos (not the merged list)
+ * for the gossip of {@link ClusterCatalog}, as text: a first line
+ * {@code version <v> ring <fingerprint> full|delta}, then one {@code + name} or {@code - name}
+ * line per video. With {@code since} it is the changes after that version token, or the whole
+ * list ({@code full}) if that version is too old or from before a restart. {@code GET /api/cluster/status} shows the peers as
+ * this node sees them.
+ */
+public class ClusterHttpHandler implements HttpHandler {
+
+    private final ClusterCatalog cluster;
+    private final ClusterForwarder forwarder;
+    private final VideoCatalog local;
+    private final ConsumerMetrics metrics;
+
+    public ClusterHttpHandler(ClusterCatalog cluster, ClusterForwarder forwarder, VideoCatalog local, ConsumerMetrics metrics) {
+        this.cluster = cluster;
+        this.forwarder = forwarder;
+        this.local = local;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed", "text/plain");
+            } else if ("/api/cluster/catalog".equals(path)) {
+                serveCatalog(exchange);
+            } else if ("/api/cluster/status".equals(path)) {
+                String status = cluster.statsJson();
+                sendResponse(exchange, 200, status.substring(0, status.length() - 1)
+                        + ",\"handedOver\":" + forwarder.getForwarded() + ",\"waitingToHandOver\":" + forwarder.getQueued() + "}", "application/json");
+            } else {
+                sendResponse(exchange, 404, "Not Found", "text/plain");
+            }
+        } catch (Exception e) {
+            Log.error("Error handling cluster request {}: {}", path, e.getMessage());
+            sendResponse(exchange, 500, "Internal Server Error", "text/plain");
+        } finally {
+            metrics.httpRequest(ConsumerMetrics.Route.CLUSTER, exchange.getResponseCode(), System.nanoTime() - startNanos);
+        }
+    }
+
+    private void serveCatalog(HttpExchange exchange) throws IOException {
+        String since = GuiHttpHandler.parseQuery(exchange.getRequestURI().getRawQuery()).get("since");
+        VideoCatalog.Delta delta = null;
+        if (since != null) {
+            try {
+                delta = local.changesSince(local.versionOf(since));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Bad Request: Invalid version", "text/plain");
+                return;
+            }
+        }
+        String ring = cluster.getRing().getFingerprint();
+        StringBuilder text;
+        if (delta != null) {
+            text = new StringBuilder(64 + 32 * (delta.getAdded().size() + delta.getRemoved().size()));
+            text.append("version ").append(local.tokenOf(delta.getVersion())).append(" ring ").append(ring).append(" delta\n");
+            delta.getAdded().forEach(name -> text.append("+ ").append(name).append('\n'));
+            delta.getRemoved().forEach(name -> text.append("- ").append(name).append('\n'));
+        } else {
+            VideoCatalog.Snapshot snapshot = local.snapshot();
+            text = new StringBuilder(64 + 32 * snapshot.getNames().size());
+            text.append("version ").append(local.tokenOf(snapshot.getVersion())).append(" ring ").append(ring).append(" full\n");
+            snapshot.getNames().forEach(name -> text.append("+ ").append(name).append('\n'));
+        }
+        sendResponse(exchange, 200, text.toString(), "text/plain");
+    }
+
+    private void sendResponse(HttpExchange exchange, int statusCode, String responseBody, String contentType) throws IOException {
+        byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+        metrics.bytesServed(responseBytes.length);
+    }
+}
@@ -0,0 +1,83 @@
+package org.consumer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/** One consumer of a cluster: its host, upload port and HTTP port ({@code host:uploadPort:httpPort}). */
+public final class ClusterNode {
+
+    private final String host;
+    private final int uploadPort;
+    private final int httpPort;
+    private final String id;
+
+    public ClusterNode(String host, int uploadPort, int httpPort) {
+        this.host = host;
+        this.uploadPort = uploadPort;
+        this.httpPort = httpPort;
+        this.id = host + ":" + uploadPort + ":" + httpPort;
+    }
+
+    /**
+     * Parses {@code host:uploadPort:httpPort}.
+     *
+     * @throws IllegalArgumentException if it is not in that form
+     */
+    public static ClusterNode parse(String value) {
+        String[] parts = value.trim().split(":");
+        if (parts.length != 3 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("Expected host:uploadPort:httpPort, got '" + value.trim() + "'");
+        }
+        try {
+            int uploadPort = Integer.parseInt(parts[1]);
+            int httpPort = Integer.parseInt(parts[2]);
+            if (uploadPort < 1 || uploadPort > 65535 || httpPort < 1 || httpPort > 65535) {
+                throw new IllegalArgumentException("Port out of range in '" + value.trim() + "'");
+            }
+            return new ClusterNode(parts[0], uploadPort, httpPort);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in '" + value.trim() + "'");
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getUploadPort() {
+        return uploadPort;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    /** {@code host:uploadPort:httpPort}; also the node's position on the hash ring. */
+    public String getId() {
+        return id;
+    }
+
+    /** URL of {@code path} (not yet encoded) on this node's HTTP server. */
+    public URI httpUri(String path, String query) {
+        try {
+            return new URI("http", null, host, httpPort, path, query, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ClusterNode && ((ClusterNode) other).id.equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
@@ -0,0 +1,56 @@
+package org.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of video names onto the nodes of a cluster. Each node has
+ * {@link #POINTS_PER_NODE} points on a 64-bit ring; a name belongs to the node of the first point
+ * at or after the name's hash. Adding or removing a node only moves the names next to its points,
+ * and the points spread those evenly over the other nodes.
+ * <p>
+ * Every node must be started with the same node list: nodes compare {@link #getFingerprint()}
+ * and do not hand files to a node that places them differently.
+ */
+public class ClusterRing {
+
+    static final int POINTS_PER_NODE = 128;
+
+    private final List<ClusterNode> nodes;
+    private final TreeMap<Long, ClusterNode> points = new TreeMap<>();
+    private final String fingerprint;
+
+    public ClusterRing(List<ClusterNode> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                points.putIfAbsent(StorageVolumes.mix(StorageVolumes.hash64(node.getId() + "#" + i)), node);
+            }
+        }
+        List<String> ids = new ArrayList<>();
+        nodes.forEach(node -> ids.add(node.getId()));
+        Collections.sort(ids);
+        this.fingerprint = Long.toHexString(StorageVolumes.mix(StorageVolumes.hash64(String.join(",", ids))));
+    }
+
+    /** The node that stores {@code fileName}. */
+    public ClusterNode ownerOf(String fileName) {
+        Map.Entry<Long, ClusterNode> point = points.ceilingEntry(StorageVolumes.mix(StorageVolumes.hash64(fileName)));
+        return (point != null ? point : points.firstEntry()).getValue(); // Past the last point: wrap around
+    }
+
+    public List<ClusterNode> getNodes() {
+        return nodes;
+    }
+
+    /** Identifies the node list, so nodes can tell when they were started with different ones. */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+}
@@ -2,22 +2,62 @@ package org.consumer;
 
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.*; // Import Files, Paths, Path, InvalidPathException
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.InputMismatchException; // Import for error handling
 import java.util.List;
 import java.util.Scanner; // Import Scanner
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class ConsumerApp {
+/**
+ * The consumer: upload listener, ingest workers and the GUI web server.
+ * <p>
+ * {@link #main} asks for the configuration (or takes it as six arguments, in the order of the
+ * prompts) and runs the listener on the main thread. Tools and tests can run a consumer
+ * in-process instead: {@link #start()}, then {@link #listen()} on a thread of their own, and
+ * {@link #close()} to stop it.
+ */
+public class ConsumerApp implements Closeable {
 
     public static void main(String[] args) {
 
+        // Optional switches come from -D system properties
+        ConsumerOptions options = ConsumerOptions.fromSystemProperties();
+        Log.configure(options);
+
+        ConsumerConfig config;
+        if (args.length > 0) {
+            try {
+                config = ConsumerConfig.fromArgs(args);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+        } else {
+            config = promptForConfig();
+        }
+        printConfiguration(config, options);
+
+        ConsumerApp app = new ConsumerApp(config, options);
+        try {
+            app.start();
+        } catch (IOException e) {
+            Log.error("Could not start consumer: {}", e.getMessage());
+            Log.flush();
+            System.exit(1);
+        }
+        app.listen(); // Runs until the process is stopped
+    }
+
+    private static ConsumerConfig promptForConfig() {
         // Use Scanner for interactive input
         Scanner scanner = new Scanner(System.in);
 
@@ -134,121 +174,456 @@ public class ConsumerApp {
         }
 
 
+
         // Close the scanner
         scanner.close();
+        return new ConsumerConfig(c, q, listenPort, httpPort, outputFolder, guiFolder);
+    }
 
-        // --- Display Final Configuration ---
+    private static void printConfiguration(ConsumerConfig config, ConsumerOptions options) {
+        int c = config.getWorkerThreads();
         System.out.println("\n--- Starting Consumer with Configuration ---");
         System.out.println("Worker Threads (c): " + c);
-        System.out.println("Max Queue Size (q): " + q);
-        System.out.println("Upload Listen Port: " + listenPort);
-        System.out.println("GUI HTTP Port:      " + httpPort);
-        System.out.println("Output Folder:      " + outputFolder.toAbsolutePath());
-        System.out.println("GUI Folder:         " + guiFolder.toAbsolutePath());
+        System.out.println("Max Queue Size (q): " + config.getQueueSize());
+        System.out.println("Upload Listen Port: " + config.getListenPort());
+        System.out.println("GUI HTTP Port:      " + config.getHttpPort());
+        System.out.println("Output Folder:      " + config.getOutputFolder().toAbsolutePath());
+        System.out.println("GUI Folder:         " + config.getGuiFolder().toAbsolutePath());
+        System.out.println("Ingest Mode:        " + options.getIngestMode().name().toLowerCase());
+        System.out.println("Receive Mode:       " + options.getReceiveMode().name().toLowerCase() + (options.isPreallocate() ? " (preallocate)" : "") + (options.isFsync() ? "" : " (no fsync)"));
+        System.out.println("HTTP Executor:      " + options.getHttpExecutor().name().toLowerCase()
+                + (options.getHttpExecutor() == ConsumerOptions.HttpExecutor.BOUNDED ? " (" + options.getHttpThreads() + " threads, queue " + options.getHttpQueue() + ")" : ""));
+        if (options.getServeGlobalBytesPerSecond() > 0 || options.getServeClientBytesPerSecond() > 0 || options.getServePriority() == ServeThrottle.Priority.INGEST) {
+            System.out.println("Serve Limits:       global " + kbPerSec(options.getServeGlobalBytesPerSecond())
+                    + ", per client " + kbPerSec(options.getServeClientBytesPerSecond())
+                    + (options.getServePriority() == ServeThrottle.Priority.INGEST ? ", while ingesting " + kbPerSec(options.getServeIngestingBytesPerSecond()) : ""));
+        }
+        if (options.getIngestMode() == ConsumerOptions.IngestMode.BLOCKING && options.getMaxWorkers() > c) {
+            System.out.println("Elastic Workers:    up to " + options.getMaxWorkers() + " (target queue wait " + options.getTargetQueueWaitMillis() + " ms)");
+        }
+        if (!options.getClusterNodes().isEmpty()) {
+            System.out.println("Cluster Nodes:      " + options.getClusterNodes() + " (" + options.getClusterServe().name().toLowerCase()
+                    + " to other nodes, gossip every " + options.getClusterGossipMillis() + " ms)");
+        }
+        if (!options.getExtraVolumes().isEmpty()) {
+            System.out.println("Extra Volumes:      " + options.getExtraVolumes() + " (" + options.getPlacement().name().toLowerCase() + " placement)");
+        }
+        System.out.println("Catalog Watch:      " + (options.isCatalogWatch() ? "on" : "off"));
+        System.out.println("Deduplication:      " + (options.isDedup() ? "on" : "off"));
+        System.out.println("Head Cache:         " + (options.getHeadCacheBytes() > 0
+                ? (options.getHeadCacheBytes() / (1024 * 1024)) + " MB, " + (options.getHeadBytes() / 1024) + " KB per video" + (options.isHeadCacheAtIngest() ? ", filled at ingest" : "")
+                : "off"));
         System.out.println("------------------------------------------");
+    }
+
+    private final ConsumerConfig config;
+    private final ConsumerOptions options;
+
+    // --- Running state, set up by start() ---
+    private VideoCatalog catalog;
+    private StorageVolumes storage;
+    private final List<CatalogSync> catalogSyncs = new ArrayList<>();
+    private ConsumerMetrics metrics;
+    private AdmissionControl admission;
+    private final AtomicInteger openUploads = new AtomicInteger(); // Virtual mode: connections being handled
+    private ExecutorService workerPool;
+    private IngestContext ingestContext;
+    private UploadWorkers uploadWorkers; // Blocking mode: connection queue and its workers
+    private VideoEvents videoEvents;
+    private ClusterCatalog clusterCatalog; // Cluster mode only
+    private ClusterForwarder clusterForwarder; // Cluster mode only
+    private ExecutorService httpExecutor;
+    private HttpServer httpServer;
+    private NioIngestServer nioServer; // NIO mode
+    private ServerSocket serverSocket; // Blocking and virtual mode
+    private volatile boolean closing = false;
+
+    public ConsumerApp(ConsumerConfig config, ConsumerOptions options) {
+        this.config = config;
+        this.options = options;
+    }
 
+    /**
+     * Prepares the output folder, loads the catalog and starts the workers, the HTTP server and
+     * the upload socket. Uploads are only accepted once {@link #listen()} runs.
+     */
+    public void start() throws IOException {
+        int c = config.getWorkerThreads();
+        int q = config.getQueueSize();
+        Path outputFolder = config.getOutputFolder();
+
+        // --- Cluster options are checked before anything is started ---
+        ClusterRing ring = null;
+        ClusterNode self = null;
+        if (!options.getClusterNodes().isEmpty()) {
+            ring = openClusterRing();
+            self = findClusterSelf(ring);
+        }
 
         // --- Setup (Output folder creation - same as before) ---
         try {
             if (!Files.exists(outputFolder)) {
                 Files.createDirectories(outputFolder);
-                System.out.println("Created output directory: " + outputFolder);
+                Log.info("Created output directory: {}", outputFolder);
             }
             // GUI folder existence already checked during input
         } catch (IOException e) {
-            System.err.println("ERROR: Could not create output directory: " + outputFolder + " - " + e.getMessage());
-            System.exit(1);
+            throw new IOException("Could not create output directory: " + outputFolder + " - " + e.getMessage(), e);
         }
 
+        // Whatever fails from here on, the threads and files opened so far are released again
+        try {
+            // --- Storage volumes: the output folder, plus any extra folders ---
+            List<Path> volumeFolders = new ArrayList<>();
+            volumeFolders.add(outputFolder);
+            volumeFolders.addAll(options.getExtraVolumes());
+            try {
+                storage = StorageVolumes.open(volumeFolders, options.getPlacement());
+                for (Path folder : volumeFolders) {
+                    int leftovers = IncomingFile.deleteLeftoverTempFiles(folder);
+                    if (leftovers > 0) {
+                        Log.info("Deleted {} unfinished upload(s) left from the last run in {}.", leftovers, folder);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IOException("Could not open storage volume " + e.getMessage(), e);
+            }
 
-        // --- The rest of the logic remains the same ---
+            // Catalog of filenames for the GUI handler, listed from the manifests instead of the folders
+            catalog = new VideoCatalog();
+            storage.listInto(catalog);
 
-        // Use ArrayBlockingQueue for fixed-size bounded queue
-        BlockingQueue<Socket> connectionQueue = new ArrayBlockingQueue<>(q);
-        // Use a synchronized list to store filenames for the GUI handler
-        List<String> uploadedFiles = Collections.synchronizedList(new ArrayList<>());
-        // Populate initial list from existing files in output dir
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputFolder)) {
-            for (Path file : stream) {
-                if (Files.isRegularFile(file)) {
-                    uploadedFiles.add(file.getFileName().toString());
+            // --- Load Dedup Index (optional) ---
+            DedupIndex dedupIndex = null;
+            if (options.isDedup()) {
+                try {
+                    dedupIndex = DedupIndex.load(storage, IngestContext.stateFolderOf(outputFolder));
+                    // Alias names have no file of their own but are still videos
+                    for (String alias : dedupIndex.getAliasNames()) {
+                        catalog.add(alias);
+                    }
+                } catch (IOException e) {
+                    throw new IOException("Could not load dedup index: " + e.getMessage(), e);
                 }
             }
-            System.out.println("Found existing files in output folder: " + uploadedFiles);
-        } catch (IOException e) {
-            System.err.println("Warning: Could not list existing files in output directory: " + e.getMessage());
+
+            // Checks the listed files against each folder in the background, then follows changes to it
+            for (StorageVolumes.Volume volume : storage.getVolumes()) {
+                CatalogSync sync = new CatalogSync(volume, storage, catalog, dedupIndex, options.isCatalogWatch());
+                catalogSyncs.add(sync);
+                sync.start();
+            }
+
+            // --- Cluster (optional): names are owned by nodes on a hash ring, the list is merged ---
+            if (ring != null) {
+                clusterCatalog = new ClusterCatalog(self, ring, catalog, options.getClusterGossipMillis());
+                clusterForwarder = new ClusterForwarder(clusterCatalog, storage, catalog, dedupIndex);
+            }
+
+            // --- Head Cache for hover previews (optional) ---
+            HeadCache headCache = options.getHeadCacheBytes() > 0 ? new HeadCache(options.getHeadCacheBytes(), options.getHeadBytes()) : null;
+            HeadCache ingestHeadCache = options.isHeadCacheAtIngest() ? headCache : null;
+
+            // --- Metrics (served at /api/metrics) ---
+            metrics = new ConsumerMetrics(c);
+            metrics.setHeadCache(headCache);
+            metrics.setStorage(storage);
+            admission = new AdmissionControl(metrics); // Busy replies for connections over the limit
+
+            // --- Start Worker Threads ---
+            int writersPerVolume = options.getWritersPerVolume() > 0 ? options.getWritersPerVolume() : c;
+            ingestContext = new IngestContext(storage, catalog, options, dedupIndex, ingestHeadCache, metrics, admission, clusterForwarder);
+            if (options.getIngestMode() == ConsumerOptions.IngestMode.VIRTUAL) {
+                // One thread per accepted connection; c (per volume) only limits concurrent disk writes
+                workerPool = VirtualThreads.newThreadPerTaskExecutor("upload connections");
+                storage.limitWrites(writersPerVolume);
+                metrics.setQueueDepthGauge(openUploads::get);
+            } else if (options.getIngestMode() == ConsumerOptions.IngestMode.NIO) {
+                // The pool threads are the disk writers of the selector loop; with several volumes
+                // they only open files, and each volume has writer threads of its own
+                workerPool = Executors.newFixedThreadPool(c);
+                if (!storage.isSingle()) {
+                    storage.startWriterPools(writersPerVolume);
+                }
+            } else {
+                // An elastic pool needs room for threads beyond c; idle extra workers end on their own
+                workerPool = options.getMaxWorkers() > c ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(c);
+                if (!storage.isSingle()) {
+                    storage.limitWrites(writersPerVolume); // Workers stuck on a slow disk leave the rest to the other volumes
+                }
+                uploadWorkers = new UploadWorkers(q, c, ingestContext, workerPool);
+                metrics.setQueueDepthGauge(uploadWorkers::queueSize);
+                metrics.setWorkerCountGauge(uploadWorkers::getLiveWorkers);
+                uploadWorkers.start();
+            }
+
+            // --- Start HTTP Server for GUI ---
+            VideoCatalog listed = clusterCatalog != null ? clusterCatalog.getMerged() : catalog; // What viewers see
+            videoEvents = new VideoEvents(listed);
+            HttpRequestExecutor requestExecutor = null;
+            switch (options.getHttpExecutor()) {
+                case VIRTUAL:
+                    httpExecutor = VirtualThreads.newThreadPerTaskExecutor("HTTP requests");
+                    break;
+                case BOUNDED:
+                    requestExecutor = new HttpRequestExecutor(options.getHttpThreads(), options.getHttpQueue());
+                    httpExecutor = requestExecutor;
+                    break;
+                default:
+                    httpExecutor = Executors.newCachedThreadPool();
+            }
+            // Uploads in progress on any volume, for the ingest priority of the serving limits
+            ServeThrottle throttle = new ServeThrottle(options, () -> {
+                int uploads = 0;
+                for (StorageVolumes.Volume volume : storage.getVolumes()) {
+                    uploads += volume.getOpenUploads();
+                }
+                return uploads;
+            }, metrics);
+            try {
+                httpServer = HttpServer.create(new InetSocketAddress(config.getHttpPort()), 0);
+                httpServer.createContext("/", new GuiHttpHandler(config.getGuiFolder(), storage, listed, videoEvents, dedupIndex, headCache, metrics, throttle, clusterCatalog, options));
+                httpServer.createContext("/api/admin/", new AdminHttpHandler(throttle, requestExecutor, metrics, options));
+                if (clusterCatalog != null) {
+                    httpServer.createContext("/api/cluster/", new ClusterHttpHandler(clusterCatalog, clusterForwarder, catalog, metrics));
+                }
+                httpServer.setExecutor(httpExecutor);
+                httpServer.start();
+                Log.info("HTTP server started on port {}", getHttpPort());
+            } catch (IOException e) {
+                httpServer = null;
+                throw new IOException("Could not start HTTP server on port " + config.getHttpPort() + ": " + e.getMessage(), e);
+            }
+
+            // --- Open the upload socket ---
+            try {
+                if (options.getIngestMode() == ConsumerOptions.IngestMode.NIO) {
+                    nioServer = new NioIngestServer(config.getListenPort(), ingestContext, workerPool, q);
+                } else if (options.getReceiveMode() == ConsumerOptions.ReceiveMode.CHANNEL) {
+                    // Sockets accepted through a channel expose getChannel() for the zero-copy receive path
+                    serverSocket = ServerSocketChannel.open().socket();
+                    serverSocket.bind(new InetSocketAddress(config.getListenPort()));
+                } else {
+                    serverSocket = new ServerSocket(config.getListenPort());
+                }
+            } catch (IOException e) {
+                throw new IOException("Could not start server socket on port " + config.getListenPort() + ": " + e.getMessage(), e);
+            }
+        } catch (IOException | RuntimeException e) {
+            shutdown();
+            throw e;
         }
 
-        // --- Start Worker Threads ---
-        ExecutorService workerPool = Executors.newFixedThreadPool(c);
-        for (int i = 0; i < c; i++) {
-            workerPool.submit(new FileHandlerTask(connectionQueue, outputFolder, uploadedFiles));
+        if (clusterCatalog != null) {
+            clusterCatalog.start();
+            clusterForwarder.start();
+            clusterForwarder.rebalance(); // Files stored here before the node list changed
         }
+    }
 
-        // --- Start HTTP Server for GUI ---
-        HttpServer httpServer = null;
+    private ClusterRing openClusterRing() throws IOException {
+        List<ClusterNode> nodes = new ArrayList<>();
         try {
-            httpServer = HttpServer.create(new InetSocketAddress(httpPort), 0);
-            httpServer.createContext("/", new GuiHttpHandler(guiFolder, outputFolder, uploadedFiles));
-            httpServer.setExecutor(Executors.newCachedThreadPool());
-            httpServer.start();
-            System.out.println("HTTP server started on port " + httpPort);
-        } catch (IOException e) {
-            System.err.println("ERROR: Could not start HTTP server on port " + httpPort + ": " + e.getMessage());
-            workerPool.shutdownNow();
-            System.exit(1);
+            for (String node : options.getClusterNodes()) {
+                nodes.add(ClusterNode.parse(node));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid consumer.cluster.nodes: " + e.getMessage(), e);
+        }
+        return new ClusterRing(nodes);
+    }
+
+    // The node named by consumer.cluster.self, else the only one with this consumer's ports
+    private ClusterNode findClusterSelf(ClusterRing ring) throws IOException {
+        ClusterNode self = null;
+        if (options.getClusterSelf() != null) {
+            try {
+                self = ClusterNode.parse(options.getClusterSelf());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid consumer.cluster.self: " + e.getMessage(), e);
+            }
+            if (!ring.getNodes().contains(self)) {
+                throw new IOException("consumer.cluster.self " + self + " is not in consumer.cluster.nodes");
+            }
+            return self;
         }
+        for (ClusterNode node : ring.getNodes()) {
+            if (node.getUploadPort() == config.getListenPort() && node.getHttpPort() == config.getHttpPort()) {
+                if (self != null) {
+                    throw new IOException("Several cluster nodes have ports " + config.getListenPort() + "/" + config.getHttpPort() + "; set consumer.cluster.self");
+                }
+                self = node;
+            }
+        }
+        if (self == null) {
+            throw new IOException("No node in consumer.cluster.nodes has this consumer's ports " + config.getListenPort() + "/" + config.getHttpPort());
+        }
+        return self;
+    }
+
+    /** Port the upload listener is bound to (the chosen one when configured as 0). */
+    public int getUploadPort() {
+        return nioServer != null ? nioServer.getLocalPort() : serverSocket.getLocalPort();
+    }
 
-        // --- Start Network Listener (Main Thread) ---
-        // ... (Rest of the try/finally block for ServerSocket and shutdown is identical to before) ...
-        ServerSocket serverSocket = null;
+    /** Port of the GUI web server (the chosen one when configured as 0). */
+    public int getHttpPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public ConsumerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public VideoCatalog getCatalog() {
+        return catalog;
+    }
+
+    /** Accepts uploads on the calling thread until {@link #close()}, then shuts the consumer down. */
+    public void listen() {
+        int q = config.getQueueSize();
         try {
-            serverSocket = new ServerSocket(listenPort);
-            System.out.println("Consumer listening on port " + listenPort + "...");
+            if (nioServer != null) {
+                Log.info("Consumer listening on port {} (non-blocking)...", getUploadPort());
+                nioServer.run(); // Runs the selector loop on this thread
+                return;
+            }
 
-            while (!Thread.currentThread().isInterrupted()) {
+            Log.info("Consumer listening on port {}...", getUploadPort());
+            while (!closing && !Thread.currentThread().isInterrupted()) {
                 try {
                     Socket clientSocket = serverSocket.accept(); // Blocks until connection
-                    boolean accepted = connectionQueue.offer(clientSocket);
+                    if (options.getIngestMode() == ConsumerOptions.IngestMode.VIRTUAL) {
+                        dispatchConnection(clientSocket, q);
+                        continue;
+                    }
+                    boolean accepted = uploadWorkers.offer(clientSocket);
                     if (accepted) {
-                        System.out.println("Connection accepted from " + clientSocket.getRemoteSocketAddress() + ", added to queue (" + connectionQueue.size() + "/" + q + ")");
+                        metrics.connectionAccepted(uploadWorkers.queueSize());
+                        Log.info("Connection accepted from {}, added to queue ({}/{})", clientSocket.getRemoteSocketAddress(), uploadWorkers.queueSize(), q);
                     } else {
-                        System.out.println("Connection rejected from " + clientSocket.getRemoteSocketAddress() + " - Queue full (" + connectionQueue.size() + "/" + q + ")");
-                        try { clientSocket.close(); } catch (IOException e) { /* Ignore close error */ }
+                        metrics.connectionRejected();
+                        Log.info("Connection rejected from {} - Queue full ({}/{})", clientSocket.getRemoteSocketAddress(), uploadWorkers.queueSize(), q);
+                        admission.reject(clientSocket, uploadWorkers.queueSize()); // Busy reply, then close
                     }
                 } catch (IOException e) {
                     if (serverSocket.isClosed()){
-                        System.out.println("Server socket closed, stopping listener loop.");
+                        Log.info("Server socket closed, stopping listener loop.");
                         break;
                     }
-                    System.err.println("Error accepting connection: " + e.getMessage());
+                    Log.error("Error accepting connection: {}", e.getMessage());
                     try { Thread.sleep(100); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
                 }
             }
-        } catch (IOException e) {
-            System.err.println("ERROR: Could not start server socket on port " + listenPort + ": " + e.getMessage());
         } finally {
-            System.out.println("Shutting down consumer...");
-            if (httpServer != null) {
-                httpServer.stop(1);
-                System.out.println("HTTP server stopped.");
-            }
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                try { serverSocket.close(); } catch (IOException e) { /* Ignore */ }
+            shutdown();
+        }
+    }
+
+    /** Stops the listener; {@link #listen()} then shuts the consumer down and returns. */
+    @Override
+    public void close() {
+        closing = true;
+        if (nioServer != null) {
+            nioServer.close();
+        }
+        if (serverSocket != null) {
+            try { serverSocket.close(); } catch (IOException e) { /* Ignore */ }
+        }
+    }
+
+    // Also undoes a start() that failed part way, so every step checks what was set up
+    private void shutdown() {
+        Log.info("Shutting down consumer...");
+        if (videoEvents != null) {
+            videoEvents.close(); // Ends the open event streams so the HTTP server can stop
+        }
+        if (clusterForwarder != null) {
+            clusterForwarder.close(); // Files not handed over yet are queued again at the next start
+            clusterCatalog.close();
+        }
+        if (httpServer != null) {
+            httpServer.stop(1);
+            Log.info("HTTP server stopped.");
+        }
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try { serverSocket.close(); } catch (IOException e) { /* Ignore */ }
+        }
+        if (httpExecutor != null) {
+            shutdownAndAwait(httpExecutor, "HTTP executor");
+        }
+        if (uploadWorkers != null) {
+            uploadWorkers.stop(); // Queued uploads are still received
+        }
+        if (workerPool != null) {
+            shutdownAndAwait(workerPool, "Worker pool");
+        }
+        if (storage != null) {
+            for (StorageVolumes.Volume volume : storage.getVolumes()) {
+                if (volume.getWriterPool() != null) {
+                    shutdownAndAwait(volume.getWriterPool(), "Writers of " + volume.getFolder());
+                }
             }
-            workerPool.shutdown();
-            try {
-                if (!workerPool.awaitTermination(30, TimeUnit.SECONDS)) {
-                    workerPool.shutdownNow();
-                    if (!workerPool.awaitTermination(30, TimeUnit.SECONDS))
-                        System.err.println("Worker pool did not terminate");
+        }
+        if (ingestContext != null) {
+            ingestContext.closeGroupCommits();
+        }
+        for (CatalogSync sync : catalogSyncs) {
+            sync.close();
+        }
+        if (storage != null) {
+            storage.close();
+        }
+        if (admission != null) {
+            admission.close();
+        }
+        Log.info("Consumer finished.");
+        Log.flush();
+    }
+
+    /** Virtual ingest mode: start a thread for the connection unless q connections are already open. */
+    private void dispatchConnection(Socket clientSocket, int q) {
+        int open = openUploads.incrementAndGet();
+        if (open > q) {
+            openUploads.decrementAndGet();
+            metrics.connectionRejected();
+            Log.info("Connection rejected from {} - Too many open uploads ({}/{})", clientSocket.getRemoteSocketAddress(), open - 1, q);
+            admission.reject(clientSocket, open - 1); // Busy reply, then close
+            return;
+        }
+        metrics.connectionAccepted(open);
+        Log.info("Connection accepted from {} ({}/{} open)", clientSocket.getRemoteSocketAddress(), open, q);
+        try {
+            workerPool.execute(() -> {
+                try {
+                    new FileHandlerTask(clientSocket, ingestContext).run();
+                } finally {
+                    openUploads.decrementAndGet();
+                    admission.connectionDrained();
                 }
-            } catch (InterruptedException ie) {
-                workerPool.shutdownNow();
-                Thread.currentThread().interrupt();
+            });
+        } catch (RejectedExecutionException e) {
+            openUploads.decrementAndGet();
+            try { clientSocket.close(); } catch (IOException ce) { /* Ignore close error */ }
+        }
+    }
+
+    private static String kbPerSec(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? bytesPerSecond / 1024 + " KB/s" : "unlimited";
+    }
+
+    private static void shutdownAndAwait(ExecutorService pool, String name) {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+                if (!pool.awaitTermination(30, TimeUnit.SECONDS))
+                    Log.error("{} did not terminate", name);
             }
-            System.out.println("Worker pool shut down.");
-            System.out.println("Consumer finished.");
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
         }
+        Log.info("{} shut down.", name);
     }
 }
\ No newline at end of file
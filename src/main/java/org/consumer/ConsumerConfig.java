@@ -0,0 +1,70 @@
+package org.consumer;
+
+import java.nio.file.Path;
+
+/**
+ * The six values the consumer is configured with: entered at the prompts, passed as command
+ * line arguments, or built in code when the consumer is started in-process (port 0 picks a free
+ * port; see {@link ConsumerApp#getUploadPort()} and {@link ConsumerApp#getHttpPort()}).
+ */
+public class ConsumerConfig {
+
+    private final int workerThreads; // c
+    private final int queueSize; // q
+    private final int listenPort;
+    private final int httpPort;
+    private final Path outputFolder;
+    private final Path guiFolder;
+
+    public ConsumerConfig(int workerThreads, int queueSize, int listenPort, int httpPort, Path outputFolder, Path guiFolder) {
+        if (workerThreads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("Worker threads and queue size must be positive");
+        }
+        if (listenPort < 0 || listenPort > 65535 || httpPort < 0 || httpPort > 65535 || (listenPort != 0 && listenPort == httpPort)) {
+            throw new IllegalArgumentException("Invalid or clashing ports: " + listenPort + ", " + httpPort);
+        }
+        this.workerThreads = workerThreads;
+        this.queueSize = queueSize;
+        this.listenPort = listenPort;
+        this.httpPort = httpPort;
+        this.outputFolder = outputFolder;
+        this.guiFolder = guiFolder;
+    }
+
+    /** {@code c q listenPort httpPort outputFolder guiFolder}, in the order of the prompts. */
+    public static ConsumerConfig fromArgs(String[] args) {
+        if (args.length != 6) {
+            throw new IllegalArgumentException("Expected 6 arguments: c q listenPort httpPort outputFolder guiFolder");
+        }
+        try {
+            return new ConsumerConfig(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]), Path.of(args[4]), Path.of(args[5]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a whole number: " + e.getMessage());
+        }
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    public Path getOutputFolder() {
+        return outputFolder;
+    }
+
+    public Path getGuiFolder() {
+        return guiFolder;
+    }
+}
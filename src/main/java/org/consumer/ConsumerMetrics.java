@@ -0,0 +1,299 @@
+package org.consumer;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and histograms for {@code /api/metrics}, shared by the ingest paths and the HTTP
+ * handler. Everything recorded on a hot path is an atomic add: no locks, no allocation. The
+ * text is only built when the endpoint is read, as JSON or in the Prometheus text format.
+ */
+public class ConsumerMetrics {
+
+    /** Routes of GuiHttpHandler, each with its own latency histogram. */
+    public enum Route { INDEX, SCRIPT, VIDEO_LIST, EVENTS, HEAD_CACHE, METRICS, VIDEO, ADMIN, CLUSTER, OTHER }
+
+    // Bucket bounds used for the Prometheus histograms (the JSON form reports percentiles instead)
+    private static final double[] LATENCY_BOUNDS_SECONDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+    private static final double[] THROUGHPUT_BOUNDS_BYTES = { 1e4, 1e5, 1e6, 1e7, 2.5e7, 5e7, 1e8, 2.5e8, 5e8, 1e9, 1e10 };
+    private static final MathContext SIGNIFICANT_DIGITS = new MathContext(6);
+    private static final double[] DEPTH_BOUNDS = { 0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+    private final long startNanos = System.nanoTime();
+    private volatile IntSupplier workerThreads;
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile HeadCache headCache;
+    private volatile StorageVolumes storage;
+
+    // --- Ingest ---
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong connectionsRejected = new AtomicLong();
+    private final Histogram queueDepthOnAccept = new Histogram();
+    private final Histogram queueWaitMicros = new Histogram(); // Blocking mode: queued -> taken by a worker
+    private final Histogram retryAfterMillis = new Histogram(); // Hint of each busy reply
+    private final AtomicLong uploadsSaved = new AtomicLong();
+    private final AtomicLong uploadsFailed = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final Histogram uploadLatencyMicros = new Histogram(); // Header parsed -> file saved
+    private final Histogram uploadBytesPerSecond = new Histogram();
+    private final AtomicLong workerBusyNanos = new AtomicLong();
+
+    // --- Serving ---
+    private final Histogram[] httpLatencyMicros = new Histogram[Route.values().length];
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong responses200 = new AtomicLong();
+    private final AtomicLong responses206 = new AtomicLong();
+    private final AtomicLong responses304 = new AtomicLong();
+    private final AtomicLong responses4xx = new AtomicLong();
+    private final AtomicLong responses5xx = new AtomicLong();
+    private final AtomicLong httpOverloaded = new AtomicLong();
+    private final AtomicLong serveThrottledNanos = new AtomicLong();
+
+    public ConsumerMetrics(int workerThreads) {
+        this.workerThreads = () -> workerThreads;
+        for (int i = 0; i < httpLatencyMicros.length; i++) {
+            httpLatencyMicros[i] = new Histogram();
+        }
+    }
+
+    /** Where the current connection backlog comes from (queue size, or open uploads). */
+    public void setQueueDepthGauge(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /** Where the current worker count comes from, when the pool is elastic. */
+    public void setWorkerCountGauge(IntSupplier workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setHeadCache(HeadCache headCache) {
+        this.headCache = headCache;
+    }
+
+    public void setStorage(StorageVolumes storage) {
+        this.storage = storage;
+    }
+
+    // --- Recording (hot paths) ---
+
+    public void connectionAccepted(int depthAfterAccept) {
+        connectionsAccepted.incrementAndGet();
+        queueDepthOnAccept.record(depthAfterAccept);
+    }
+
+    public void connectionRejected() {
+        connectionsRejected.incrementAndGet();
+    }
+
+    public void busyReply(long retryAfter) {
+        retryAfterMillis.record(retryAfter);
+    }
+
+    public void queueWait(long nanos) {
+        queueWaitMicros.record(nanos / 1000);
+    }
+
+    public void uploadFinished(boolean saved, long bytes, long elapsedNanos) {
+        (saved ? uploadsSaved : uploadsFailed).incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+        if (saved) {
+            uploadLatencyMicros.record(elapsedNanos / 1000);
+            if (elapsedNanos > 0) {
+                uploadBytesPerSecond.record((long) (bytes * 1e9 / elapsedNanos));
+            }
+        }
+    }
+
+    public void workerBusy(long nanos) {
+        workerBusyNanos.addAndGet(nanos);
+    }
+
+    public void httpRequest(Route route, int status, long elapsedNanos) {
+        httpLatencyMicros[route.ordinal()].record(elapsedNanos / 1000);
+        if (status == 200) {
+            responses200.incrementAndGet();
+        } else if (status == 206) {
+            responses206.incrementAndGet();
+        } else if (status == 304) {
+            responses304.incrementAndGet();
+        } else if (status >= 400 && status < 500) {
+            responses4xx.incrementAndGet();
+        } else if (status >= 500) {
+            responses5xx.incrementAndGet();
+        }
+    }
+
+    /** A request answered with 503 because the HTTP executor's queue was full. */
+    public void httpOverloaded() {
+        httpOverloaded.incrementAndGet();
+    }
+
+    public void serveThrottled(long nanos) {
+        serveThrottledNanos.addAndGet(nanos);
+    }
+
+    public void bytesServed(long bytes) {
+        bytesServed.addAndGet(bytes);
+    }
+
+    // --- Reporting ---
+
+    public String toJson() {
+        double uptimeSeconds = (System.nanoTime() - startNanos) / 1e9;
+        double busySeconds = workerBusyNanos.get() / 1e9;
+        int workers = workerThreads.getAsInt();
+        StringBuilder json = new StringBuilder(2048).append('{');
+        json.append("\"uptimeSeconds\":").append(format(uptimeSeconds));
+        json.append(",\"ingest\":{");
+        json.append("\"connectionsAccepted\":").append(connectionsAccepted.get());
+        json.append(",\"connectionsRejected\":").append(connectionsRejected.get());
+        json.append(",\"queueDepth\":").append(queueDepth.getAsInt());
+        json.append(",\"queueDepthOnAccept\":");
+        appendJson(json, queueDepthOnAccept, 1);
+        json.append(",\"queueWaitMs\":");
+        appendJson(json, queueWaitMicros, 1e-3);
+        json.append(",\"retryAfterMs\":");
+        appendJson(json, retryAfterMillis, 1);
+        json.append(",\"uploadsSaved\":").append(uploadsSaved.get());
+        json.append(",\"uploadsFailed\":").append(uploadsFailed.get());
+        json.append(",\"bytesReceived\":").append(bytesReceived.get());
+        json.append(",\"uploadLatencyMs\":");
+        appendJson(json, uploadLatencyMicros, 1e-3);
+        json.append(",\"uploadBytesPerSecond\":");
+        appendJson(json, uploadBytesPerSecond, 1);
+        json.append(",\"workerThreads\":").append(workers);
+        json.append(",\"workerBusySeconds\":").append(format(busySeconds));
+        json.append(",\"workerUtilization\":").append(format(uptimeSeconds > 0 ? busySeconds / (Math.max(1, workers) * uptimeSeconds) : 0));
+        json.append("},\"http\":{");
+        json.append("\"bytesServed\":").append(bytesServed.get());
+        json.append(",\"responses\":{\"200\":").append(responses200.get())
+                .append(",\"206\":").append(responses206.get())
+                .append(",\"304\":").append(responses304.get())
+                .append(",\"4xx\":").append(responses4xx.get())
+                .append(",\"5xx\":").append(responses5xx.get()).append('}');
+        json.append(",\"overloaded\":").append(httpOverloaded.get());
+        json.append(",\"throttledSeconds\":").append(format(serveThrottledNanos.get() / 1e9));
+        json.append(",\"latencyMs\":{");
+        for (Route route : Route.values()) {
+            if (route.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(route.name().toLowerCase()).append("\":");
+            appendJson(json, httpLatencyMicros[route.ordinal()], 1e-3);
+        }
+        json.append("}}");
+        HeadCache cache = headCache;
+        if (cache != null) {
+            json.append(",\"headCache\":").append(cache.statsJson());
+        }
+        StorageVolumes volumes = storage;
+        if (volumes != null) {
+            json.append(",\"volumes\":").append(volumes.statsJson());
+        }
+        json.append(",\"logEventsDropped\":").append(Log.getDroppedCount());
+        return json.append('}').toString();
+    }
+
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder(8192);
+        gauge(text, "consumer_uptime_seconds", "Seconds since the consumer started", (System.nanoTime() - startNanos) / 1e9);
+        counter(text, "consumer_connections_accepted_total", "Upload connections accepted", connectionsAccepted.get());
+        counter(text, "consumer_connections_rejected_total", "Upload connections rejected because the queue or connection limit was full", connectionsRejected.get());
+        gauge(text, "consumer_connection_queue_depth", "Connections waiting for a worker (open uploads in nio/virtual mode)", queueDepth.getAsInt());
+        histogram(text, "consumer_connection_queue_depth_on_accept", "Queue depth seen by each accepted connection", queueDepthOnAccept, 1, DEPTH_BOUNDS);
+        histogram(text, "consumer_connection_queue_wait_seconds", "Time a connection waited in the queue for a worker", queueWaitMicros, 1e-6, LATENCY_BOUNDS_SECONDS);
+        histogram(text, "consumer_busy_retry_after_seconds", "Retry-after hint sent with each busy reply", retryAfterMillis, 1e-3, LATENCY_BOUNDS_SECONDS);
+        counter(text, "consumer_uploads_saved_total", "Uploads (or chunks) saved", uploadsSaved.get());
+        counter(text, "consumer_uploads_failed_total", "Uploads (or chunks) discarded as incomplete or invalid", uploadsFailed.get());
+        counter(text, "consumer_received_bytes_total", "Upload body bytes received", bytesReceived.get());
+        histogram(text, "consumer_upload_duration_seconds", "Time from upload header to saved file", uploadLatencyMicros, 1e-6, LATENCY_BOUNDS_SECONDS);
+        histogram(text, "consumer_upload_throughput_bytes_per_second", "Body transfer rate of each saved upload", uploadBytesPerSecond, 1, THROUGHPUT_BOUNDS_BYTES);
+        gauge(text, "consumer_worker_threads", "Worker threads (c, or the current size of an elastic pool)", workerThreads.getAsInt());
+        counter(text, "consumer_worker_busy_seconds_total", "Time worker threads spent handling uploads", workerBusyNanos.get() / 1e9);
+        counter(text, "consumer_http_served_bytes_total", "Response body bytes sent by the HTTP server", bytesServed.get());
+        text.append("# HELP consumer_http_responses_total HTTP responses by status\n# TYPE consumer_http_responses_total counter\n");
+        text.append("consumer_http_responses_total{code=\"200\"} ").append(responses200.get()).append('\n');
+        text.append("consumer_http_responses_total{code=\"206\"} ").append(responses206.get()).append('\n');
+        text.append("consumer_http_responses_total{code=\"304\"} ").append(responses304.get()).append('\n');
+        text.append("consumer_http_responses_total{code=\"4xx\"} ").append(responses4xx.get()).append('\n');
+        text.append("consumer_http_responses_total{code=\"5xx\"} ").append(responses5xx.get()).append('\n');
+        counter(text, "consumer_http_overloaded_total", "HTTP requests answered with 503 because the request queue was full", httpOverloaded.get());
+        counter(text, "consumer_http_throttled_seconds_total", "Time file responses waited for the serving rate limits", serveThrottledNanos.get() / 1e9);
+        text.append("# HELP consumer_http_request_duration_seconds HTTP request latency by route\n# TYPE consumer_http_request_duration_seconds histogram\n");
+        for (Route route : Route.values()) {
+            histogramSeries(text, "consumer_http_request_duration_seconds", "route=\"" + route.name().toLowerCase() + "\"",
+                    httpLatencyMicros[route.ordinal()], 1e-6, LATENCY_BOUNDS_SECONDS);
+        }
+        counter(text, "consumer_log_events_dropped_total", "Log events dropped because the log buffer was full", Log.getDroppedCount());
+        HeadCache cache = headCache;
+        if (cache != null) {
+            counter(text, "consumer_head_cache_hits_total", "Requests answered from a cached video head", cache.getHits());
+            counter(text, "consumer_head_cache_misses_total", "Requests that had to read a video head from disk", cache.getMisses());
+            counter(text, "consumer_head_cache_evictions_total", "Video heads dropped to stay within the budget", cache.getEvictions());
+        }
+        StorageVolumes volumes = storage;
+        if (volumes != null) {
+            text.append("# HELP consumer_volume_open_uploads Uploads being written to each storage volume\n# TYPE consumer_volume_open_uploads gauge\n");
+            for (StorageVolumes.Volume volume : volumes.getVolumes()) {
+                text.append("consumer_volume_open_uploads{volume=\"").append(volume.getIndex()).append("\"} ").append(volume.getOpenUploads()).append('\n');
+            }
+            text.append("# HELP consumer_volume_usable_bytes Free space of each storage volume\n# TYPE consumer_volume_usable_bytes gauge\n");
+            for (StorageVolumes.Volume volume : volumes.getVolumes()) {
+                text.append("consumer_volume_usable_bytes{volume=\"").append(volume.getIndex()).append("\"} ").append(volume.getUsableBytes()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static void appendJson(StringBuilder json, Histogram histogram, double scale) {
+        json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"mean\":").append(format(histogram.getMean() * scale))
+                .append(",\"p50\":").append(format(histogram.valueAtPercentile(50) * scale))
+                .append(",\"p90\":").append(format(histogram.valueAtPercentile(90) * scale))
+                .append(",\"p99\":").append(format(histogram.valueAtPercentile(99) * scale))
+                .append(",\"max\":").append(format(histogram.getMax() * scale)).append('}');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void histogram(StringBuilder text, String name, String help, Histogram histogram, double scale, double[] bounds) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" histogram\n");
+        histogramSeries(text, name, null, histogram, scale, bounds);
+    }
+
+    // Buckets are cumulative; a fine bucket straddling a bound is counted in the next one
+    private static void histogramSeries(StringBuilder text, String name, String labels, Histogram histogram, double scale, double[] bounds) {
+        String prefix = labels == null ? "" : labels + ",";
+        long count = histogram.getCount();
+        for (double bound : bounds) {
+            long cumulative = histogram.countAtOrBelow((long) (bound / scale));
+            count = Math.max(count, cumulative); // Values recorded while we read
+            text.append(name).append("_bucket{").append(prefix).append("le=\"").append(format(bound)).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        text.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        text.append(name).append("_sum").append(suffix).append(' ').append(format(histogram.getSum() * scale)).append('\n');
+        text.append(name).append("_count").append(suffix).append(' ').append(count).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).round(SIGNIFICANT_DIGITS).stripTrailingZeros().toPlainString();
+    }
+}
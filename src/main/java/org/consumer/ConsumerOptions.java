@@ -0,0 +1,308 @@
+package org.consumer;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Optional startup switches, read from system properties so the interactive configuration
+ * prompts stay unchanged (e.g. {@code java -Dconsumer.ingest=nio -jar P3_Consumer.jar}).
+ */
+public class ConsumerOptions {
+
+    public enum IngestMode { BLOCKING, NIO, VIRTUAL }
+
+    // How FileHandlerTask moves the upload body to disk
+    public enum ReceiveMode { STREAM, CHANNEL }
+
+    // Threads used by the HTTP server for GuiHttpHandler
+    public enum HttpExecutor { CACHED, VIRTUAL, BOUNDED }
+
+    // How a node answers a request for a video stored on another node of the cluster
+    public enum ClusterServe { REDIRECT, PROXY }
+
+    private final Properties properties;
+
+    private final IngestMode ingestMode;
+    private final ReceiveMode receiveMode;
+    private final boolean preallocate;
+    private final boolean fsync;
+    private final long mmapCacheBytes;
+    private final long headCacheBytes;
+    private final int headBytes;
+    private final boolean headCacheAtIngest;
+    private final long videoMaxAgeSeconds;
+    private final HttpExecutor httpExecutor;
+    private final int httpThreads;
+    private final int httpQueue;
+    private final long serveGlobalBytesPerSecond;
+    private final long serveClientBytesPerSecond;
+    private final long serveIngestingBytesPerSecond;
+    private final ServeThrottle.Priority servePriority;
+    private final String adminToken;
+    private final boolean dedup;
+    private final boolean catalogWatch;
+    private final List<Path> extraVolumes;
+    private final StorageVolumes.Placement placement;
+    private final int writersPerVolume;
+    private final List<String> clusterNodes;
+    private final String clusterSelf;
+    private final long clusterGossipMillis;
+    private final ClusterServe clusterServe;
+    private final int maxWorkers;
+    private final long targetQueueWaitMillis;
+    private final Log.Level logLevel;
+    private final int logSampleEvery;
+
+    private ConsumerOptions(Properties properties) {
+        this.properties = properties;
+        this.ingestMode = getEnum(IngestMode.class, "consumer.ingest", IngestMode.BLOCKING);
+        this.receiveMode = getEnum(ReceiveMode.class, "consumer.receive", ReceiveMode.STREAM);
+        this.preallocate = getBoolean("consumer.preallocate", false);
+        this.fsync = getBoolean("consumer.fsync", true);
+        this.mmapCacheBytes = getLong("consumer.serve.mmapCacheMb", 0) * 1024 * 1024;
+        this.headCacheBytes = getLong("consumer.serve.headCacheMb", 0) * 1024 * 1024;
+        this.headBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, getLong("consumer.serve.headKb", 2048)) * 1024);
+        this.headCacheAtIngest = getBoolean("consumer.serve.headCacheAtIngest", false);
+        this.videoMaxAgeSeconds = Math.max(0, getLong("consumer.serve.videoMaxAgeSec", 0));
+        this.httpExecutor = getEnum(HttpExecutor.class, "consumer.http.executor", HttpExecutor.CACHED);
+        this.httpThreads = (int) Math.max(1, Math.min(10_000, getLong("consumer.http.threads", 64)));
+        this.httpQueue = (int) Math.max(0, Math.min(1_000_000, getLong("consumer.http.queue", 256)));
+        this.serveGlobalBytesPerSecond = Math.max(0, getLong("consumer.serve.globalKbPerSec", 0)) * 1024;
+        this.serveClientBytesPerSecond = Math.max(0, getLong("consumer.serve.clientKbPerSec", 0)) * 1024;
+        this.serveIngestingBytesPerSecond = Math.max(0, getLong("consumer.serve.ingestingKbPerSec", 0)) * 1024;
+        this.servePriority = getEnum(ServeThrottle.Priority.class, "consumer.serve.priority", ServeThrottle.Priority.EQUAL);
+        this.adminToken = get("consumer.admin.token");
+        this.dedup = getBoolean("consumer.dedup", false);
+        this.catalogWatch = getBoolean("consumer.catalog.watch", true);
+        this.extraVolumes = getPaths("consumer.volumes");
+        this.placement = getEnum(StorageVolumes.Placement.class, "consumer.volumes.placement", StorageVolumes.Placement.HASH);
+        this.writersPerVolume = (int) Math.max(0, Math.min(10_000, getLong("consumer.volumes.writers", 0)));
+        this.clusterNodes = getList("consumer.cluster.nodes");
+        this.clusterSelf = get("consumer.cluster.self");
+        this.clusterGossipMillis = Math.max(100, getLong("consumer.cluster.gossipMs", 1000));
+        this.clusterServe = getEnum(ClusterServe.class, "consumer.cluster.serve", ClusterServe.REDIRECT);
+        this.maxWorkers = (int) Math.max(0, Math.min(10_000, getLong("consumer.workers.max", 0)));
+        this.targetQueueWaitMillis = Math.max(1, getLong("consumer.workers.targetWaitMs", 500));
+        this.logLevel = getEnum(Log.Level.class, "consumer.log.level", Log.Level.INFO);
+        this.logSampleEvery = (int) Math.max(1, Math.min(Integer.MAX_VALUE, getLong("consumer.log.sampleEvery", 1)));
+    }
+
+    public static ConsumerOptions fromSystemProperties() {
+        return fromProperties(System.getProperties());
+    }
+
+    public static ConsumerOptions fromProperties(Properties properties) {
+        return new ConsumerOptions(properties);
+    }
+
+    public IngestMode getIngestMode() {
+        return ingestMode;
+    }
+
+    public ReceiveMode getReceiveMode() {
+        return receiveMode;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    /** Whether uploads are flushed to disk before they are renamed into place and listed. */
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    /** Budget of the shared mapped-file cache used for serving; 0 disables it. */
+    public long getMmapCacheBytes() {
+        return mmapCacheBytes;
+    }
+
+    /** Budget of the off-heap cache of video heads used for serving; 0 disables it. */
+    public long getHeadCacheBytes() {
+        return headCacheBytes;
+    }
+
+    /** Leading bytes of each video kept by the head cache. */
+    public int getHeadBytes() {
+        return headBytes;
+    }
+
+    /** Whether uploads fill the head cache as they are received. */
+    public boolean isHeadCacheAtIngest() {
+        return headCacheAtIngest;
+    }
+
+    /** How long browsers may use a cached video without asking; 0 makes them revalidate every time. */
+    public long getVideoMaxAgeSeconds() {
+        return videoMaxAgeSeconds;
+    }
+
+    public HttpExecutor getHttpExecutor() {
+        return httpExecutor;
+    }
+
+    /** Threads of the bounded HTTP executor. */
+    public int getHttpThreads() {
+        return httpThreads;
+    }
+
+    /** Requests the bounded HTTP executor queues before it answers 503. */
+    public int getHttpQueue() {
+        return httpQueue;
+    }
+
+    /** Serving rate over all clients together; 0 means unlimited. */
+    public long getServeGlobalBytesPerSecond() {
+        return serveGlobalBytesPerSecond;
+    }
+
+    /** Serving rate per client address; 0 means unlimited. */
+    public long getServeClientBytesPerSecond() {
+        return serveClientBytesPerSecond;
+    }
+
+    /** Serving rate over all clients while uploads are in progress, with the ingest priority; 0 means unlimited. */
+    public long getServeIngestingBytesPerSecond() {
+        return serveIngestingBytesPerSecond;
+    }
+
+    public ServeThrottle.Priority getServePriority() {
+        return servePriority;
+    }
+
+    /** Token the admin endpoint requires from remote clients; null allows only local clients. */
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /** Whether files added to or removed from the output folder by other programs are picked up while running. */
+    public boolean isCatalogWatch() {
+        return catalogWatch;
+    }
+
+    /** Storage folders used besides the output folder, ideally on other disks. */
+    public List<Path> getExtraVolumes() {
+        return extraVolumes;
+    }
+
+    /** How the storage volume of a new upload is chosen. */
+    public StorageVolumes.Placement getPlacement() {
+        return placement;
+    }
+
+    /** Concurrent disk writers per storage volume; 0 means c. */
+    public int getWritersPerVolume() {
+        return writersPerVolume;
+    }
+
+    /** Every node of the cluster as {@code host:uploadPort:httpPort}, this one included; empty = no cluster. */
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /** Which of the cluster nodes this is; null = the one with this consumer's ports. */
+    public String getClusterSelf() {
+        return clusterSelf;
+    }
+
+    /** Pause between two rounds of asking every peer for its catalog changes. */
+    public long getClusterGossipMillis() {
+        return clusterGossipMillis;
+    }
+
+    public ClusterServe getClusterServe() {
+        return clusterServe;
+    }
+
+    /** Upper bound of the elastic worker pool in blocking mode; 0 (or at most c) keeps it at c threads. */
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /** Queue wait above which the elastic worker pool adds a thread. */
+    public long getTargetQueueWaitMillis() {
+        return targetQueueWaitMillis;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /** Only one in this many high-frequency log events (HTTP requests, served files) is written. */
+    public int getLogSampleEvery() {
+        return logSampleEvery;
+    }
+
+    // --- Property parsing helpers ---
+
+    private String get(String property) {
+        String value = properties.getProperty(property);
+        return (value == null || value.isBlank()) ? null : value.trim();
+    }
+
+    private boolean getBoolean(String property, boolean defaultValue) {
+        String value = get(property);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private long getLong(String property, long defaultValue) {
+        String value = get(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid number '{}' for {}, using {}", value, property, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Comma-separated list of values
+    private List<String> getList(String property) {
+        List<String> values = new ArrayList<>();
+        String value = get(property);
+        if (value != null) {
+            for (String part : value.split(",")) {
+                if (!part.isBlank()) {
+                    values.add(part.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    // Comma-separated list of folders
+    private List<Path> getPaths(String property) {
+        List<Path> paths = new ArrayList<>();
+        for (String part : getList(property)) {
+            try {
+                paths.add(Paths.get(part));
+            } catch (InvalidPathException e) {
+                Log.warn("Invalid path '{}' in {}, ignored", part, property);
+            }
+        }
+        return paths;
+    }
+
+    private <E extends Enum<E>> E getEnum(Class<E> type, String property, E defaultValue) {
+        String value = get(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("Unknown value '{}' for {}, using {}", value, property, defaultValue.name().toLowerCase());
+            return defaultValue;
+        }
+    }
+}
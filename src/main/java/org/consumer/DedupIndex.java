@@ -0,0 +1,169 @@
+package org.consumer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Persistent content-hash index of the output folder (opt-in with {@code -Dconsumer.dedup=true}).
+ * <p>
+ * Maps the SHA-256 of each stored file to its name, so a re-upload of the same content under
+ * another name becomes a hard link to the existing file. Where hard links are not supported the
+ * new name is recorded as an alias of the stored name instead, and {@link #resolve} maps it back
+ * when serving. The stored file of a name that aliases point to is never deleted while they do:
+ * when that name is replaced, one alias takes the file over and the others are repointed to it
+ * ({@link #recordHandOver}).
+ * <p>
+ * The index is an append-only text file of records, replayed at startup:
+ * {@code H <hash> <name>} (name holds content), {@code A <alias> <target>} (alias record),
+ * {@code D <name> -} (name no longer means what an earlier record said).
+ */
+public class DedupIndex {
+
+    private static final String INDEX_FILE_NAME = "dedup-index";
+
+    private final StorageVolumes storage;
+    private final Path indexFile;
+    private final Map<String, String> nameByHash = new HashMap<>();
+    private final Map<String, String> hashByName = new HashMap<>();
+    private final Map<String, String> aliasTargets = new HashMap<>();
+    private final Map<String, Integer> aliasCounts = new HashMap<>(); // Target -> aliases pointing at it
+
+    private DedupIndex(StorageVolumes storage, Path indexFile) {
+        this.storage = storage;
+        this.indexFile = indexFile;
+    }
+
+    public static DedupIndex load(StorageVolumes storage, Path stateFolder) throws IOException {
+        Files.createDirectories(stateFolder);
+        DedupIndex index = new DedupIndex(storage, stateFolder.resolve(INDEX_FILE_NAME));
+        if (Files.exists(index.indexFile)) {
+            for (String line : Files.readAllLines(index.indexFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                if (parts.length != 3) {
+                    continue; // Torn last line after a crash
+                }
+                if ("H".equals(parts[0])) {
+                    index.applyStored(parts[1], parts[2]);
+                } else if ("A".equals(parts[0])) {
+                    index.applyAlias(parts[1], parts[2]);
+                } else if ("D".equals(parts[0])) {
+                    index.forget(parts[1]);
+                }
+            }
+        }
+        Log.info("Loaded dedup index: {} stored contents, {} aliases", index.nameByHash.size(), index.aliasTargets.size());
+        return index;
+    }
+
+    /** Name of a stored file with this content that still exists, or null. */
+    public synchronized String findStored(String hash) {
+        String name = nameByHash.get(hash);
+        Path file = name == null ? null : storage.locate(name);
+        if (name != null && (file == null || !Files.isRegularFile(file))) {
+            forget(name); // Removed out of band
+            return null;
+        }
+        return name;
+    }
+
+    public synchronized void recordStored(String hash, String name) throws IOException {
+        applyStored(hash, name);
+        append("H " + hash + " " + name);
+    }
+
+    public synchronized void recordAlias(String alias, String target) throws IOException {
+        applyAlias(alias, target);
+        append("A " + alias + " " + target);
+    }
+
+    /** Called when a name was replaced by something the index does not track (e.g. a hard link). */
+    public synchronized void recordReplaced(String name) throws IOException {
+        if (forget(name)) {
+            append("D " + name + " -");
+        }
+    }
+
+    /** Name of the file that holds the content for {@code name} (itself unless it is an alias). */
+    public synchronized String resolve(String name) {
+        return aliasTargets.getOrDefault(name, name);
+    }
+
+    /** Whether other names are aliases of {@code name}'s file, so the file must stay where it is. */
+    public synchronized boolean hasAliases(String name) {
+        return aliasCounts.containsKey(name);
+    }
+
+    /** Aliases of {@code name}, or an empty list. */
+    public synchronized List<String> aliasesOf(String name) {
+        if (!aliasCounts.containsKey(name)) {
+            return Collections.emptyList();
+        }
+        List<String> aliases = new ArrayList<>();
+        aliasTargets.forEach((alias, target) -> {
+            if (target.equals(name)) {
+                aliases.add(alias);
+            }
+        });
+        Collections.sort(aliases);
+        return aliases;
+    }
+
+    /**
+     * Called once {@code name}'s file was renamed to {@code heir}, one of its aliases: the heir now
+     * holds the content (and its hash) and the other aliases point at the heir.
+     */
+    public synchronized void recordHandOver(String name, String heir) throws IOException {
+        List<String> others = aliasesOf(name);
+        others.remove(heir);
+        String hash = hashByName.get(name);
+        if (hash != null) {
+            recordStored(hash, heir);
+        } else {
+            recordReplaced(heir);
+        }
+        for (String alias : others) {
+            recordAlias(alias, heir);
+        }
+        recordReplaced(name);
+    }
+
+    public synchronized Set<String> getAliasNames() {
+        return new HashSet<>(aliasTargets.keySet());
+    }
+
+    private void applyStored(String hash, String name) {
+        forget(name);
+        nameByHash.put(hash, name);
+        hashByName.put(name, hash);
+    }
+
+    private void applyAlias(String alias, String target) {
+        forget(alias);
+        aliasTargets.put(alias, target);
+        aliasCounts.merge(target, 1, Integer::sum);
+    }
+
+    // Drops whatever the name meant before it is given a new meaning; true if it meant anything
+    private boolean forget(String name) {
+        String oldHash = hashByName.remove(name);
+        if (oldHash != null && name.equals(nameByHash.get(oldHash))) {
+            nameByHash.remove(oldHash);
+        }
+        String oldTarget = aliasTargets.remove(name);
+        if (oldTarget != null) {
+            aliasCounts.computeIfPresent(oldTarget, (target, count) -> count > 1 ? count - 1 : null);
+        }
+        return oldTarget != null || oldHash != null;
+    }
+
+    private void append(String record) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writer.write(record);
+            writer.newLine();
+        }
+    }
+}
@@ -2,99 +2,95 @@ package org.consumer;
 
 import java.io.*;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
-import java.util.List; // Import List
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 public class FileHandlerTask implements Runnable {
 
-    private final BlockingQueue<Socket> connectionQueue;
-    private final Path outputFolderPath;
-    private final List<String> uploadedFiles; // Thread-safe list
+    private final UploadWorkers workers; // Worker mode
+    private final Socket connection; // Connection-per-task mode
+    private final IngestContext context;
+    private final ConsumerOptions options;
+
+    private static final int WORKER_CHANNEL_BUFFER_SIZE = 1024 * 1024; // 1MB, reused for every upload of a worker
+    private static final int CONNECTION_CHANNEL_BUFFER_SIZE = 64 * 1024; // 64KB, one per open connection
+    private ByteBuffer channelBuffer; // Direct buffer for channel receive mode
+    private boolean channelFallbackLogged = false;
+
+    /** Long-lived worker: takes connections from the queue until interrupted (or retired by an elastic pool). */
+    public FileHandlerTask(UploadWorkers workers, IngestContext context) {
+        this.workers = workers;
+        this.connection = null;
+        this.context = context;
+        this.options = context.getOptions();
+    }
 
-    public FileHandlerTask(BlockingQueue<Socket> connectionQueue, Path outputFolderPath, List<String> uploadedFiles) {
-        this.connectionQueue = connectionQueue;
-        this.outputFolderPath = outputFolderPath;
-        this.uploadedFiles = uploadedFiles;
+    /** Handles exactly one connection (one virtual thread per upload). */
+    public FileHandlerTask(Socket connection, IngestContext context) {
+        this.workers = null;
+        this.connection = connection;
+        this.context = context;
+        this.options = context.getOptions();
     }
 
     @Override
     public void run() {
-        System.out.println("[" + Thread.currentThread().getName() + "] Worker started.");
+        if (connection != null) {
+            handleConnection(connection);
+            return;
+        }
+
+        Log.info("Worker started.");
         try {
             while (!Thread.currentThread().isInterrupted()) {
-                Socket clientSocket = connectionQueue.take(); // Blocks until a connection is available
-                System.out.println("[" + Thread.currentThread().getName() + "] Processing connection from: " + clientSocket.getRemoteSocketAddress());
+                Socket clientSocket = workers.next(); // Blocks until a connection is available
+                if (clientSocket == null) {
+                    break; // Idle worker above the core count, or the pool is stopping
+                }
+                Log.info("Processing connection from: {}", clientSocket.getRemoteSocketAddress());
+                long busySince = System.nanoTime();
                 handleConnection(clientSocket);
+                context.getMetrics().workerBusy(System.nanoTime() - busySince);
             }
         } catch (InterruptedException e) {
-            System.out.println("[" + Thread.currentThread().getName() + "] Worker interrupted.");
+            Log.info("Worker interrupted.");
             Thread.currentThread().interrupt(); // Preserve interrupt status
         }
-        System.out.println("[" + Thread.currentThread().getName() + "] Worker stopped.");
+        Log.info("Worker stopped.");
     }
 
     private void handleConnection(Socket clientSocket) {
         // Try-with-resources for socket streams
         try (InputStream socketInputStream = clientSocket.getInputStream();
              DataInputStream dataIn = new DataInputStream(socketInputStream)) { // Wrap for easier primitive reading
-
-            // 1. Read filename length
-            int fileNameLength = dataIn.readInt();
-            if (fileNameLength <= 0 || fileNameLength > 1024) { // Basic sanity check
-                throw new IOException("Invalid filename length received: " + fileNameLength);
-            }
-
-            // 2. Read filename bytes
-            byte[] fileNameBytes = new byte[fileNameLength];
-            dataIn.readFully(fileNameBytes);
-            String fileName = new String(fileNameBytes, StandardCharsets.UTF_8);
-
-            // Sanitize filename (important for security!)
-            fileName = fileName.replaceAll("[^a-zA-Z0-9.\\-_]", "_"); // Replace unsafe chars
-            if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
-                throw new IOException("Invalid filename after sanitization.");
-            }
-
-
-            // 3. Read file size
-            long fileSize = dataIn.readLong();
-            if (fileSize < 0) {
-                throw new IOException("Invalid file size received: " + fileSize);
-            }
-
-            Path outputFile = outputFolderPath.resolve(fileName);
-
-            System.out.println("[" + Thread.currentThread().getName() + "] Receiving file: " + fileName + " (" + fileSize + " bytes) -> " + outputFile);
-
-
-            // 4. Read file content and save
-            long bytesReceived = 0;
-            try (OutputStream fileOutputStream = Files.newOutputStream(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                byte[] buffer = new byte[8192]; // 8KB buffer
-                int bytesRead;
-                while (bytesReceived < fileSize && (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesReceived))) != -1) {
-                    fileOutputStream.write(buffer, 0, bytesRead);
-                    bytesReceived += bytesRead;
+            DataOutputStream replyOut = new DataOutputStream(clientSocket.getOutputStream());
+
+            int uploadsInSession = 0;
+            while (true) {
+                // 1.-3. Read header (filename length, filename, file size, optional extensions)
+                UploadHeader header;
+                try {
+                    header = UploadHeader.read(dataIn);
+                } catch (EOFException e) {
+                    if (uploadsInSession > 0) {
+                        break; // Session producer closed the connection between uploads
+                    }
+                    throw e;
                 }
-            } // File stream closed here
 
-            if (bytesReceived != fileSize) {
-                System.err.println("[" + Thread.currentThread().getName() + "] File size mismatch for " + fileName + ". Expected " + fileSize + ", received " + bytesReceived + ". Deleting partial file.");
-                try { Files.deleteIfExists(outputFile); } catch (IOException delEx) { /* Ignore delete error */ }
-            } else {
-                System.out.println("[" + Thread.currentThread().getName() + "] Successfully received and saved: " + fileName);
-                // Add to the list *after* successful save
-                synchronized(uploadedFiles) { // Ensure thread safety for add
-                    if (!uploadedFiles.contains(fileName)) {
-                        uploadedFiles.add(fileName);
-                    }
+                byte status = receiveUpload(clientSocket, dataIn, replyOut, header);
+                uploadsInSession++;
+                if (!header.isSession()) {
+                    break;
+                }
+                if (!header.isChunkStatusQuery()) {
+                    replyOut.write(UploadProtocol.ackFrame(status, header.getFileName()));
+                    replyOut.flush();
                 }
             }
 
         } catch (IOException e) {
-            System.err.println("[" + Thread.currentThread().getName() + "] Error handling connection: " + e.getMessage());
+            Log.error("Error handling connection: {}", e.getMessage());
             // e.printStackTrace(); // For debugging
         } finally {
             try {
@@ -104,4 +100,77 @@ public class FileHandlerTask implements Runnable {
             }
         }
     }
+
+    /**
+     * Handles one upload after its header: replies that precede the body, the body itself and the
+     * chunk acknowledgement outside sessions.
+     *
+     * @return the status for the session ack frame
+     */
+    private byte receiveUpload(Socket clientSocket, DataInputStream dataIn, DataOutputStream replyOut, UploadHeader header) throws IOException {
+        long fileSize = header.getFileSize();
+
+        if (header.isChunkStatusQuery()) {
+            // Resuming producer asks which chunks we already have
+            byte[] bitmap = context.getChunkedUploads().chunkBitmap(header.getFileName());
+            replyOut.writeInt(bitmap.length);
+            replyOut.write(bitmap);
+            replyOut.flush();
+            return UploadProtocol.REPLY_FILE_SAVED;
+        }
+        if (header.hasContentHash()) {
+            // Producer waits for this reply and skips the body if we already have the content
+            boolean duplicate = IncomingFile.tryLinkDuplicate(context, header);
+            replyOut.write(duplicate ? UploadProtocol.REPLY_DUPLICATE : UploadProtocol.REPLY_SEND_BODY);
+            replyOut.flush();
+            if (duplicate) {
+                return UploadProtocol.REPLY_FILE_SAVED;
+            }
+        }
+
+        // 4. Read file content and save
+        IncomingFile incomingFile = IncomingFile.open(context, header);
+        try {
+            SocketChannel socketChannel = useChannel(clientSocket);
+            if (socketChannel != null) {
+                // Socket -> direct buffer -> FileChannel, no heap copy
+                incomingFile.receiveFrom(socketChannel, channelBuffer(fileSize));
+            } else {
+                byte[] buffer = new byte[8192]; // 8KB buffer
+                int bytesRead;
+                while (incomingFile.remaining() > 0 && (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, incomingFile.remaining()))) != -1) {
+                    incomingFile.write(buffer, 0, bytesRead);
+                }
+            }
+        } finally {
+            incomingFile.finish(); // File closed here; partial file deleted on mismatch
+        }
+        if (incomingFile.isChunk() && !header.isSession()) {
+            replyOut.write(incomingFile.chunkReply());
+            replyOut.flush();
+        }
+        return incomingFile.ackStatus();
+    }
+
+    /** Returns the socket's channel if channel receive mode is on and available, otherwise null (stream copy). */
+    private SocketChannel useChannel(Socket clientSocket) {
+        if (options.getReceiveMode() != ConsumerOptions.ReceiveMode.CHANNEL) {
+            return null;
+        }
+        SocketChannel socketChannel = clientSocket.getChannel();
+        if (socketChannel == null && !channelFallbackLogged) {
+            Log.warn("Socket has no channel, falling back to stream copy.");
+            channelFallbackLogged = true;
+        }
+        return socketChannel;
+    }
+
+    private ByteBuffer channelBuffer(long fileSize) {
+        if (channelBuffer == null) {
+            int size = connection != null ? (int) Math.max(1, Math.min(CONNECTION_CHANNEL_BUFFER_SIZE, fileSize)) : WORKER_CHANNEL_BUFFER_SIZE;
+            channelBuffer = ByteBuffer.allocateDirect(size);
+        }
+        // Small uploads only use the part of the buffer they need
+        return fileSize < channelBuffer.capacity() ? channelBuffer.duplicate().limit(Math.max(1, (int) fileSize)).slice() : channelBuffer;
+    }
 }
@@ -0,0 +1,165 @@
+package org.consumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves finished uploads into place and makes the renames durable, in batches. There is one per
+ * volume.
+ * <p>
+ * Only the directory flushes are batched. Each upload still flushes its own file's content on its
+ * own thread, one flush per file (Java cannot flush several files at once), so a slow disk only
+ * holds up uploads to that disk. The upload thread then hands over the rename and waits. The
+ * committer thread takes every rename waiting at that moment, does them, and flushes the volume
+ * folder once for the whole batch, so the renames survive a crash as well. Renames requested while
+ * a batch is being flushed form the next batch.
+ * <p>
+ * With {@code consumer.fsync=false} nothing is flushed; the rename is still atomic.
+ */
+public class GroupCommit implements Closeable {
+
+    // One rename waiting to be committed (or only a directory to flush, when source is null)
+    private static class Request {
+        final Path source;
+        final Path target;
+        final Path directory;
+        boolean done = false; // Guarded by the GroupCommit monitor
+        IOException failure;
+
+        Request(Path source, Path target, Path directory) {
+            this.source = source;
+            this.target = target;
+            this.directory = directory;
+        }
+    }
+
+    private final boolean fsync;
+    private final List<Request> pending = new ArrayList<>(); // Guarded by this
+    private final Thread committer;
+    private volatile boolean closed = false;
+
+    public GroupCommit(boolean fsync, String threadName) {
+        this.fsync = fsync;
+        this.committer = new Thread(this::run, threadName);
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Flushes the content of {@code channel} on the calling thread and, if {@code target} is
+     * given, renames {@code source} (the file the channel writes) to it, replacing any existing
+     * file. Returns once both are durable.
+     */
+    public void commit(FileChannel channel, Path source, Path target) throws IOException {
+        if (channel != null && fsync) {
+            channel.force(true);
+        }
+        if (target != null) {
+            await(new Request(source, target, target.toAbsolutePath().getParent()));
+        }
+    }
+
+    /** Waits until entries just created or removed in {@code directory} are durable. */
+    public void syncDirectory(Path directory) throws IOException {
+        await(new Request(null, null, directory.toAbsolutePath()));
+    }
+
+    private synchronized void await(Request request) throws IOException {
+        if (closed) {
+            process(List.of(request)); // Shutting down: commit on the caller's thread
+        } else {
+            pending.add(request);
+            notifyAll();
+            try {
+                while (!request.done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the file to be committed");
+            }
+        }
+        if (request.failure != null) {
+            throw request.failure;
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch.addAll(pending);
+                pending.clear();
+            }
+
+            process(batch);
+            synchronized (this) {
+                for (Request request : batch) {
+                    request.done = true;
+                }
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private void process(List<Request> batch) {
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Request request : batch) {
+            try {
+                if (request.target != null) {
+                    Files.move(request.source, request.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                if (request.directory != null) {
+                    directories.add(request.directory);
+                }
+            } catch (IOException e) {
+                request.failure = e;
+            }
+        }
+        if (!fsync) {
+            return;
+        }
+        for (Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Some platforms (Windows) cannot open or flush a directory; the rename itself is done
+                Log.debug("Could not flush directory {}: {}", directory, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
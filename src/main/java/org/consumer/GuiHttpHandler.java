@@ -1,46 +1,115 @@
 package org.consumer;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.*;
 import java.net.URI;
+import java.net.URLDecoder;
 import java.net.URLConnection; // For MIME types
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 public class GuiHttpHandler implements HttpHandler {
 
     private final Path guiBasePath; // Path to the 'gui' folder
-    private final Path videoBasePath; // Path to the 'output_videos' folder
-    private final List<String> uploadedFiles; // Shared, thread-safe list
+    private final StorageVolumes storage; // Folders holding the videos
+    private final VideoCatalog catalog;
+    private final VideoEvents videoEvents;
+    private final DedupIndex dedupIndex; // null unless dedup is on
+    private final MappedFileCache mappedFileCache; // null unless enabled
+    private final HeadCache headCache; // null unless enabled
+    private final ConsumerMetrics metrics;
+    private final ServeThrottle throttle; // null = serve as fast as clients read
+    private final StaticFileCache staticFiles = new StaticFileCache();
+    private final ClusterCatalog cluster; // null unless cluster mode
+    private final boolean clusterProxy; // Fetch videos of other nodes instead of redirecting to them
+    private final String videoCacheControl;
 
-    public GuiHttpHandler(Path guiBasePath, Path videoBasePath, List<String> uploadedFiles) {
+    private static final int SERVE_BUFFER_SIZE = 64 * 1024; // 64KB
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // Cluster mode: marks a request proxied from another node, which must not be proxied again
+    private static final String PROXIED_HEADER = "X-Consumer-Proxied";
+    private static final List<String> PROXIED_REQUEST_HEADERS = List.of("Range", "If-Range", "If-None-Match", "If-Modified-Since");
+    private static final List<String> PROXIED_RESPONSE_HEADERS = List.of("Content-Type", "Content-Range", "Accept-Ranges", "ETag", "Last-Modified", "Cache-Control");
+
+    // Per-request log lines are sampled (consumer.log.sampleEvery)
+    private static final Log.Sampler REQUEST_LOG = new Log.Sampler();
+    private static final Log.Sampler SERVED_LOG = new Log.Sampler();
+
+    public GuiHttpHandler(Path guiBasePath, StorageVolumes storage, VideoCatalog catalog, VideoEvents videoEvents, DedupIndex dedupIndex, HeadCache headCache, ConsumerMetrics metrics, ServeThrottle throttle, ClusterCatalog cluster, ConsumerOptions options) {
         this.guiBasePath = guiBasePath;
-        this.videoBasePath = videoBasePath;
-        this.uploadedFiles = uploadedFiles;
+        this.storage = storage;
+        this.catalog = catalog;
+        this.videoEvents = videoEvents;
+        this.dedupIndex = dedupIndex;
+        this.headCache = headCache;
+        this.metrics = metrics;
+        this.throttle = throttle;
+        this.cluster = cluster;
+        this.clusterProxy = options.getClusterServe() == ConsumerOptions.ClusterServe.PROXY;
+        this.videoCacheControl = options.getVideoMaxAgeSeconds() > 0 ? "public, max-age=" + options.getVideoMaxAgeSeconds() : "no-cache";
+        this.mappedFileCache = options.getMmapCacheBytes() > 0 ? new MappedFileCache(options.getMmapCacheBytes()) : null;
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
         String requestMethod = exchange.getRequestMethod();
         URI requestURI = exchange.getRequestURI();
         String path = requestURI.getPath();
-        System.out.println("HTTP Request: " + requestMethod + " " + path);
-
+        if (REQUEST_LOG.sample()) {
+            Log.info("HTTP Request: {} {}", requestMethod, path);
+        }
 
+        ConsumerMetrics.Route route = ConsumerMetrics.Route.OTHER;
         try {
-            if ("GET".equalsIgnoreCase(requestMethod)) {
+            if (HttpRequestExecutor.isOverloaded()) {
+                // The request queue is full (bounded executor): refuse at once instead of queueing without limit
+                metrics.httpOverloaded();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(exchange, 503, "Service Unavailable", "text/plain");
+            } else if ("GET".equalsIgnoreCase(requestMethod)) {
                 if ("/".equals(path) || "/index.html".equals(path)) {
-                    serveFile(exchange, guiBasePath.resolve("index.html"), "text/html");
+                    route = ConsumerMetrics.Route.INDEX;
+                    serveStatic(exchange, guiBasePath.resolve("index.html"), "text/html");
                 } else if ("/script.js".equals(path)) {
-                    serveFile(exchange, guiBasePath.resolve("script.js"), "application/javascript");
+                    route = ConsumerMetrics.Route.SCRIPT;
+                    serveStatic(exchange, guiBasePath.resolve("script.js"), "application/javascript");
                 } else if ("/api/videos".equals(path)) {
+                    route = ConsumerMetrics.Route.VIDEO_LIST;
                     serveVideoList(exchange);
+                } else if ("/api/head-cache".equals(path)) {
+                    route = ConsumerMetrics.Route.HEAD_CACHE;
+                    sendResponse(exchange, 200, headCache != null ? headCache.statsJson() : "{\"enabled\":false}", "application/json");
+                } else if ("/api/metrics".equals(path)) {
+                    route = ConsumerMetrics.Route.METRICS;
+                    serveMetrics(exchange);
+                } else if ("/api/events".equals(path)) {
+                    route = ConsumerMetrics.Route.EVENTS;
+                    serveEvents(exchange);
                 } else if (path.startsWith("/videos/")) {
+                    route = ConsumerMetrics.Route.VIDEO;
                     serveVideoFile(exchange, path);
                 } else {
                     sendResponse(exchange, 404, "Not Found", "text/plain");
@@ -49,23 +118,111 @@ public class GuiHttpHandler implements HttpHandler {
                 sendResponse(exchange, 405, "Method Not Allowed", "text/plain"); // Only GET is supported
             }
         } catch (Exception e) {
-            System.err.println("Error handling HTTP request " + path + ": " + e.getMessage());
+            Log.error("Error handling HTTP request {}: {}", path, e.getMessage());
             // e.printStackTrace(); // For debugging
             // Avoid sending detailed errors to client in production
             sendResponse(exchange, 500, "Internal Server Error", "text/plain");
+        } finally {
+            metrics.httpRequest(route, exchange.getResponseCode(), System.nanoTime() - startNanos);
         }
     }
 
+    // GET /api/metrics                     -> JSON
+    // GET /api/metrics?format=prometheus   -> Prometheus text format (also chosen by a scraper's Accept header)
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        String format = parseQuery(exchange.getRequestURI().getRawQuery()).get("format");
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        boolean prometheus = format != null
+                ? format.equalsIgnoreCase("prometheus")
+                : accept != null && (accept.contains("text/plain") || accept.contains("openmetrics")) && !accept.contains("application/json");
+        if (prometheus) {
+            sendResponse(exchange, 200, metrics.toPrometheus(), "text/plain; version=0.0.4");
+        } else {
+            sendResponse(exchange, 200, metrics.toJson(), "application/json");
+        }
+    }
 
+    // GET /api/videos                    -> JSON array of every name (cached per catalog version)
+    // GET /api/videos?offset=0&limit=500  -> {"version":v,"total":n,"offset":o,"videos":[...]}
+    // GET /api/videos?since=v             -> {"version":v,"added":[...],"removed":[...]},
+    //                                        or {"version":v,"reset":true} if v is too old: reload
+    // v is a version token (see VideoCatalog). Every form carries it as its ETag, so unchanged
+    // polls get a 304.
     private void serveVideoList(HttpExchange exchange) throws IOException {
-        // Create JSON manually (or use a library like Jackson/Gson)
-        String json;
-        synchronized (uploadedFiles) { // Access the list safely
-            json = uploadedFiles.stream()
-                    .map(f -> "\"" + f.replace("\\", "\\\\").replace("\"", "\\\"") + "\"") // Basic JSON escaping
-                    .collect(Collectors.joining(",", "[", "]"));
+        String version = catalog.getVersionToken();
+        String etag = "\"" + version + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache"); // Always revalidate
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            exchange.sendResponseHeaders(304, -1); // Not Modified
+            exchange.close();
+            return;
+        }
+
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        try {
+            if (query.containsKey("since")) {
+                VideoCatalog.Delta delta = catalog.changesSince(catalog.versionOf(query.get("since")));
+                String deltaVersion = delta == null ? null : catalog.tokenOf(delta.getVersion());
+                String json = delta == null
+                        ? "{\"version\":\"" + version + "\",\"reset\":true}"
+                        : "{\"version\":\"" + deltaVersion
+                            + "\",\"added\":" + VideoCatalog.toJsonArray(delta.getAdded())
+                            + ",\"removed\":" + VideoCatalog.toJsonArray(delta.getRemoved()) + "}";
+                if (delta != null) {
+                    exchange.getResponseHeaders().set("ETag", "\"" + deltaVersion + "\"");
+                }
+                sendResponse(exchange, 200, json, "application/json");
+            } else if (query.containsKey("offset") || query.containsKey("limit")) {
+                VideoCatalog.Snapshot snapshot = catalog.snapshot();
+                List<String> names = snapshot.getNames();
+                int offset = (int) Math.min(names.size(), Math.max(0, Long.parseLong(query.getOrDefault("offset", "0"))));
+                int limit = (int) Math.min(MAX_PAGE_SIZE, Math.max(0, Long.parseLong(query.getOrDefault("limit", String.valueOf(MAX_PAGE_SIZE)))));
+                int end = Math.min(names.size(), offset + limit);
+                String snapshotVersion = catalog.tokenOf(snapshot.getVersion());
+                String json = "{\"version\":\"" + snapshotVersion + "\",\"total\":" + names.size() + ",\"offset\":" + offset
+                        + ",\"videos\":" + VideoCatalog.toJsonArray(names.subList(offset, end)) + "}";
+                exchange.getResponseHeaders().set("ETag", "\"" + snapshotVersion + "\"");
+                sendResponse(exchange, 200, json, "application/json");
+            } else {
+                VideoCatalog.Snapshot snapshot = catalog.snapshot();
+                exchange.getResponseHeaders().set("ETag", "\"" + catalog.tokenOf(snapshot.getVersion()) + "\"");
+                sendResponse(exchange, 200, snapshot.getJson(), "application/json");
+            }
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Bad Request: Invalid number in query", "text/plain");
+        }
+    }
+
+    // GET /api/events[?since=v] -> text/event-stream of catalog changes (see VideoEvents).
+    // A reconnecting browser sends Last-Event-ID, which wins over ?since.
+    private void serveEvents(HttpExchange exchange) throws IOException {
+        String since = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (since == null) {
+            since = parseQuery(exchange.getRequestURI().getRawQuery()).get("since");
+        }
+        long sinceVersion;
+        try {
+            sinceVersion = since == null ? -1 : catalog.versionOf(since.trim());
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Bad Request: Invalid event id", "text/plain");
+            return;
         }
-        sendResponse(exchange, 200, json, "application/json");
+        videoEvents.subscribe(exchange, sinceVersion); // Returns at once; the stream stays open
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
     }
 
     private void serveVideoFile(HttpExchange exchange, String path) throws IOException {
@@ -78,13 +235,19 @@ public class GuiHttpHandler implements HttpHandler {
             return;
         }
 
-        Path videoFile = videoBasePath.resolve(requestedFilename);
+        // Deduplicated names may be aliases of another stored file; the file may be on any volume
+        String storedFilename = dedupIndex != null ? dedupIndex.resolve(requestedFilename) : requestedFilename;
+        Path videoFile = storage.locate(storedFilename);
+        if (videoFile == null && cluster != null && !exchange.getRequestHeaders().containsKey(PROXIED_HEADER)) {
+            ClusterNode node = cluster.locate(requestedFilename);
+            if (node != null) {
+                serveFromNode(exchange, node, requestedFilename);
+                return;
+            }
+        }
 
         // Check if the file actually exists and is in our list (optional check)
-        boolean exists;
-        synchronized(uploadedFiles){
-            exists = uploadedFiles.contains(requestedFilename) && Files.exists(videoFile) && Files.isRegularFile(videoFile);
-        }
+        boolean exists = videoFile != null && catalog.contains(requestedFilename) && Files.exists(videoFile) && Files.isRegularFile(videoFile);
 
         if (exists) {
             // Try to guess content type
@@ -94,87 +257,347 @@ public class GuiHttpHandler implements HttpHandler {
             }
             serveFile(exchange, videoFile, contentType);
         } else {
-            System.err.println("Video file not found or not listed: " + videoFile);
+            Log.warn("Video file not found or not listed: {}", videoFile != null ? videoFile : requestedFilename);
             sendResponse(exchange, 404, "Video Not Found", "text/plain");
         }
     }
 
 
-    private void serveFile(HttpExchange exchange, Path filePath, String contentType) throws IOException {
-        if (!Files.exists(filePath) || !Files.isRegularFile(filePath)) {
-            System.err.println("File not found for serving: " + filePath);
+    // Cluster mode, a video stored on another node: send the viewer there (307), or with
+    // consumer.cluster.serve=proxy fetch it from there, passing range and validator headers on
+    private void serveFromNode(HttpExchange exchange, ClusterNode node, String fileName) throws IOException {
+        URI uri = node.httpUri("/videos/" + fileName, null);
+        if (!clusterProxy) {
+            exchange.getResponseHeaders().set("Location", uri.toASCIIString());
+            exchange.getResponseHeaders().set("Cache-Control", "no-store"); // The video may still move to its owner
+            exchange.sendResponseHeaders(307, -1); // Temporary Redirect
+            exchange.close();
+            return;
+        }
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).header(PROXIED_HEADER, "1");
+        for (String header : PROXIED_REQUEST_HEADERS) {
+            String value = exchange.getRequestHeaders().getFirst(header);
+            if (value != null) {
+                request.header(header, value);
+            }
+        }
+        HttpResponse<InputStream> response;
+        try {
+            response = cluster.getHttpClient().send(request.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + uri);
+        } catch (IOException e) {
+            Log.warn("Could not fetch {} from {}: {}", fileName, node, e.getMessage());
+            sendResponse(exchange, 502, "Bad Gateway", "text/plain");
+            return;
+        }
+
+        long sent = 0;
+        try (InputStream body = response.body()) {
+            for (String header : PROXIED_RESPONSE_HEADERS) {
+                response.headers().firstValue(header).ifPresent(value -> exchange.getResponseHeaders().set(header, value));
+            }
+            int status = response.statusCode();
+            OptionalLong length = response.headers().firstValueAsLong("Content-Length");
+            if (status == 304 || (length.isPresent() && length.getAsLong() == 0)) {
+                exchange.sendResponseHeaders(status, -1); // No body
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(status, length.orElse(0)); // 0 = chunked
+            try (OutputStream os = exchange.getResponseBody()) {
+                String client = throttle != null ? exchange.getRemoteAddress().getAddress().getHostAddress() : null;
+                byte[] buffer = new byte[SERVE_BUFFER_SIZE];
+                int read;
+                while ((read = body.read(buffer)) > 0) {
+                    if (throttle != null) {
+                        throttle.acquire(client, read);
+                    }
+                    os.write(buffer, 0, read);
+                    sent += read;
+                }
+            }
+        } finally {
+            metrics.bytesServed(sent);
+        }
+        if (SERVED_LOG.sample()) {
+            Log.info("Served: {} through {}", fileName, node);
+        }
+    }
+
+    // index.html and script.js: from memory, gzipped if the client accepts it. They are always
+    // revalidated (no-cache), so an edited GUI shows up at once and an unchanged one costs a 304.
+    private void serveStatic(HttpExchange exchange, Path filePath, String contentType) throws IOException {
+        StaticFileCache.Entry file = staticFiles.get(filePath);
+        if (file == null) {
+            Log.warn("File not found for serving: {}", filePath);
             sendResponse(exchange, 404, "Not Found", "text/plain");
             return;
         }
+        boolean gzip = file.getGzip() != null && acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        String etag = file.getEtag(gzip);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Vary", "Accept-Encoding");
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", httpDate(file.getLastModified()));
+        headers.set("Cache-Control", "no-cache");
+        if (isNotModified(exchange, etag, file.getLastModified())) {
+            exchange.sendResponseHeaders(304, -1); // Not Modified
+            exchange.close();
+            return;
+        }
+        if (gzip) {
+            headers.set("Content-Encoding", "gzip");
+        }
+        sendResponse(exchange, 200, gzip ? file.getGzip() : file.getBytes(), contentType);
+    }
 
-        File file = filePath.toFile();
-        long fileSize = file.length();
+    // Videos: validators (ETag, Last-Modified) for conditional requests, and Range requests for
+    // seeking: a-b, a-, suffix -n and several ranges at once (multipart/byteranges).
+    private void serveFile(HttpExchange exchange, Path filePath, String contentType) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            Log.warn("File not found for serving: {}", filePath);
+            sendResponse(exchange, 404, "Not Found", "text/plain");
+            return;
+        }
 
-        exchange.getResponseHeaders().set("Content-Type", contentType);
-        // Support range requests for seeking (important for video)
-        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        long fileSize = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = etagOf(attributes);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Accept-Ranges", "bytes"); // Range requests are used for seeking (important for video)
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", httpDate(lastModified));
+        headers.set("Cache-Control", videoCacheControl);
+        if (isNotModified(exchange, etag, lastModified)) {
+            exchange.sendResponseHeaders(304, -1); // Not Modified: the client's copy is current
+            exchange.close();
+            return;
+        }
 
-        // Handle Range requests (simplified)
+        // If-Range: a range of a file that changed since the client's copy is useless, send it whole
         String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
-        long start = 0;
-        long end = fileSize - 1;
-        boolean isRangeRequest = false;
-
-        if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
-            String[] ranges = rangeHeader.substring("bytes=".length()).split("-");
-            try {
-                start = Long.parseLong(ranges[0]);
-                if (ranges.length > 1) {
-                    end = Long.parseLong(ranges[1]);
+        List<ByteRanges.Range> ranges = rangeHeader != null && ifRangeMatches(exchange, etag, lastModified)
+                ? ByteRanges.parse(rangeHeader, fileSize)
+                : null;
+        if (ranges != null && ranges.isEmpty()) {
+            headers.set("Content-Range", "bytes */" + fileSize);
+            sendResponse(exchange, 416, "Range Not Satisfiable", "text/plain");
+            return;
+        }
+        boolean partial = ranges != null;
+        if (!partial) {
+            ranges = List.of(new ByteRanges.Range(0, fileSize - 1));
+        }
+
+        // Several ranges: each part gets its own header, the parts are split by a boundary
+        byte[][] partHeaders = null;
+        byte[] closing = null;
+        long contentLength = 0;
+        if (ranges.size() > 1) {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+            partHeaders = new byte[ranges.size()][];
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRanges.Range range = ranges.get(i);
+                partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                        + "\r\nContent-Range: bytes " + range.getStart() + "-" + range.getEnd() + "/" + fileSize + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                contentLength += partHeaders[i].length;
+            }
+            closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += closing.length;
+            headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        } else {
+            headers.set("Content-Type", contentType);
+        }
+        long firstByte = ranges.get(0).getStart();
+        long lastByte = ranges.get(ranges.size() - 1).getEnd();
+        for (ByteRanges.Range range : ranges) {
+            contentLength += range.length();
+        }
+
+        if (partial && partHeaders == null) {
+            headers.set("Content-Range", "bytes " + firstByte + "-" + lastByte + "/" + fileSize);
+        }
+        exchange.sendResponseHeaders(partial ? 206 : 200, contentLength == 0 ? -1 : contentLength); // 206 Partial Content
+
+        // Stream the ranges
+        long sent = 0;
+        try (OutputStream os = exchange.getResponseBody();
+             FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer head = null;
+            if (headCache != null && firstByte < headCache.getHeadBytes()) {
+                head = headCache.getOrLoad(filePath, fileChannel, fileSize, lastModified);
+            }
+            MappedByteBuffer mapped = null;
+            if (mappedFileCache != null && (head == null || lastByte >= head.limit())) {
+                mapped = mappedFileCache.get(filePath, fileChannel, fileSize, lastModified);
+            }
+            String client = throttle != null ? exchange.getRemoteAddress().getAddress().getHostAddress() : null;
+            byte[] buffer = new byte[(int) Math.min(SERVE_BUFFER_SIZE, Math.max(1, contentLength))];
+            for (int i = 0; i < ranges.size(); i++) {
+                if (partHeaders != null) {
+                    os.write(partHeaders[i]);
+                    sent += partHeaders[i].length;
                 }
-                // Basic validation
-                if (start < 0 || start >= fileSize || end < start || end >= fileSize) {
-                    throw new NumberFormatException("Invalid range");
+                ByteRanges.Range range = ranges.get(i);
+                long copied = copyRange(os, fileChannel, head, mapped, buffer, range.getStart(), range.length(), client);
+                sent += copied;
+                if (copied < range.length()) {
+                    break; // File shrank while serving
                 }
-                isRangeRequest = true;
-            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-                System.err.println("Invalid Range header: " + rangeHeader);
-                // Ignore range request if invalid, serve full file with 200 OK
-                isRangeRequest = false;
-                start = 0;
-                end = fileSize -1;
+            }
+            if (closing != null && sent == contentLength - closing.length) {
+                os.write(closing);
+                sent += closing.length;
+            }
+        } finally {
+            metrics.bytesServed(sent);
+        } // Streams are closed here
+        if (SERVED_LOG.sample()) {
+            if (partHeaders != null) {
+                Log.info("Served: {} {} ranges", filePath, ranges.size());
+            } else if (partial) {
+                Log.info("Served: {} Range: {}-{}", filePath, firstByte, lastByte);
+            } else {
+                Log.info("Served: {} Full file", filePath);
             }
         }
+    }
 
-        long contentLength = (end - start) + 1;
-
-        if (isRangeRequest) {
-            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
-            exchange.sendResponseHeaders(206, contentLength); // Partial Content
-        } else {
-            exchange.sendResponseHeaders(200, contentLength); // OK
+    // Copies bytes [start, start + length) of the file; returns how many were sent
+    private long copyRange(OutputStream os, FileChannel fileChannel, ByteBuffer head, MappedByteBuffer mapped, byte[] buffer,
+                           long start, long length, String client) throws IOException {
+        long position = start; // Positional reads: no skip, no shared file pointer
+        long bytesRemaining = length;
+        while (bytesRemaining > 0) {
+            int chunk = (int) Math.min(buffer.length, bytesRemaining);
+            if (head != null && position < head.limit()) {
+                chunk = Math.min(chunk, head.limit() - (int) position);
+                head.get((int) position, buffer, 0, chunk); // Cached head: no disk access
+            } else if (mapped != null) {
+                mapped.get((int) position, buffer, 0, chunk); // Absolute get: safe on the shared mapping
+            } else {
+                chunk = fileChannel.read(ByteBuffer.wrap(buffer, 0, chunk), position);
+                if (chunk == -1) {
+                    break; // File shrank while serving
+                }
+            }
+            if (throttle != null) {
+                throttle.acquire(client, chunk); // Rate limits (consumer.serve.*KbPerSec)
+            }
+            os.write(buffer, 0, chunk);
+            position += chunk;
+            bytesRemaining -= chunk;
         }
+        return length - bytesRemaining;
+    }
 
+    // --- Conditional requests ---
 
-        // Stream the file content (respecting range if applicable)
-        try (OutputStream os = exchange.getResponseBody();
-             FileInputStream fis = new FileInputStream(file)) {
-            if (start > 0) {
-                fis.skip(start); // Skip to the start byte
+    // Strong validator: size, modification time and, where the file system has one, the file's
+    // identity, which changes when an upload replaces the file by a rename
+    private static String etagOf(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + (fileKey != null ? "-" + Integer.toHexString(fileKey.hashCode()) : "") + "\"";
+    }
+
+    // If-None-Match wins over If-Modified-Since; both only ever turn a 200 into a 304
+    private static boolean isNotModified(HttpExchange exchange, String etag, long lastModified) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || stripWeak(tag).equals(etag)) { // Weak comparison
+                    return true;
+                }
             }
+            return false;
+        }
+        long since = parseHttpDate(exchange.getRequestHeaders().getFirst("If-Modified-Since"));
+        return since >= 0 && lastModified / 1000 <= since / 1000; // HTTP dates have whole seconds
+    }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long bytesRemaining = contentLength;
-            while (bytesRemaining > 0 && (bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, bytesRemaining))) != -1) {
-                os.write(buffer, 0, bytesRead);
-                bytesRemaining -= bytesRead;
+    // If-Range needs an exact match: the same strong ETag, or the Last-Modified date as sent
+    private static boolean ifRangeMatches(HttpExchange exchange, String etag, long lastModified) {
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag); // A weak tag never matches
+        }
+        long date = parseHttpDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+    }
+
+    // Milliseconds, or -1 if missing or not a date
+    private static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // Accept-Encoding lists gzip (or *) without q=0
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
             }
-        } // Streams are closed here
-        System.out.println("Served: " + filePath + (isRangeRequest ? (" Range: " + start + "-" + end) : " Full file") );
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            return quality > 0;
+        }
+        return false;
     }
 
     private void sendResponse(HttpExchange exchange, int statusCode, String responseBody, String contentType) throws IOException {
-        byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+        sendResponse(exchange, statusCode, responseBody.getBytes(StandardCharsets.UTF_8), contentType);
+    }
+
+    private void sendResponse(HttpExchange exchange, int statusCode, byte[] responseBytes, String contentType) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
         exchange.sendResponseHeaders(statusCode, responseBytes.length);
         try (OutputStream os = exchange.getResponseBody()) {
             os.write(responseBytes);
         }
+        metrics.bytesServed(responseBytes.length);
     }
 }
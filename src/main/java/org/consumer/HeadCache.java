@@ -0,0 +1,150 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap copies of the first bytes of recently used videos, bounded by a total byte budget
+ * (least recently used heads are dropped first). Hover previews only play the start of a file,
+ * so most of their range requests are answered from here without touching the disk.
+ * <p>
+ * Heads are filled on the first request that needs one, or by {@link IncomingFile} while the
+ * upload passes through when filling at ingest is enabled.
+ */
+public class HeadCache {
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final ByteBuffer head; // Direct, read-only
+
+        Entry(long size, long lastModified, ByteBuffer head) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.head = head;
+        }
+    }
+
+    private final long budgetBytes;
+    private final int headBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order = LRU
+    private long cachedBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder ingestFills = new LongAdder();
+
+    public HeadCache(long budgetBytes, int headBytes) {
+        this.budgetBytes = budgetBytes;
+        this.headBytes = headBytes;
+    }
+
+    /** How many leading bytes of each file are kept. */
+    public int getHeadBytes() {
+        return headBytes;
+    }
+
+    /** Whether the head of a file of {@code size} bytes could be cached at all (it fits the budget). */
+    public boolean admits(long size) {
+        return size > 0 && Math.min(size, headBytes) <= budgetBytes;
+    }
+
+    /**
+     * Returns the cached head of the file, reading it from {@code channel} on a miss. A cached
+     * head is only used while size and mtime are unchanged. The returned buffer is shared: use
+     * absolute gets only; its limit is the number of bytes cached. Returns null, without reading,
+     * for a file whose head the cache would not admit.
+     */
+    public ByteBuffer getOrLoad(Path file, FileChannel channel, long size, long lastModified) throws IOException {
+        if (!admits(size)) {
+            return null; // Empty, or a head bigger than the whole budget: serve it from the file
+        }
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    hits.increment();
+                    return entry.head;
+                }
+                remove(file); // Stale: the file was replaced
+            }
+        }
+        misses.increment();
+
+        // Read outside the lock; a concurrent miss on the same file just reads it twice
+        ByteBuffer head = ByteBuffer.allocateDirect((int) Math.min(size, headBytes));
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) == -1) {
+                break; // File shrank
+            }
+        }
+        head.flip();
+        return put(file, size, lastModified, head);
+    }
+
+    /**
+     * Caches a head captured while the file was being written ({@code head} flipped, from offset 0),
+     * copied off-heap; the caller's buffer can be dropped right after.
+     */
+    public void putFromIngest(Path file, long size, long lastModified, ByteBuffer head) {
+        ingestFills.increment();
+        put(file, size, lastModified, ByteBuffer.allocateDirect(head.remaining()).put(head).flip());
+    }
+
+    private synchronized ByteBuffer put(Path file, long size, long lastModified, ByteBuffer head) {
+        ByteBuffer shared = head.asReadOnlyBuffer();
+        Entry previous = entries.put(file, new Entry(size, lastModified, shared));
+        if (previous != null) {
+            cachedBytes -= previous.head.capacity();
+        }
+        cachedBytes += shared.capacity();
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > budgetBytes && eldest.hasNext()) {
+            Map.Entry<Path, Entry> evicted = eldest.next();
+            cachedBytes -= evicted.getValue().head.capacity();
+            eldest.remove(); // The direct memory is freed when the buffer is collected
+            evictions.increment();
+        }
+        return shared;
+    }
+
+    public synchronized void remove(Path file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            cachedBytes -= entry.head.capacity();
+        }
+    }
+
+    /** Counters for sizing the cache, as a JSON object. */
+    public String statsJson() {
+        int entryCount;
+        long bytes;
+        synchronized (this) {
+            entryCount = entries.size();
+            bytes = cachedBytes;
+        }
+        return "{\"budgetBytes\":" + budgetBytes + ",\"headBytes\":" + headBytes
+                + ",\"entries\":" + entryCount + ",\"cachedBytes\":" + bytes
+                + ",\"hits\":" + hits.sum() + ",\"misses\":" + misses.sum()
+                + ",\"evictions\":" + evictions.sum() + ",\"ingestFills\":" + ingestFills.sum() + "}";
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,115 @@
+package org.consumer;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor for the HTTP server ({@code -Dconsumer.http.executor=bounded}): a fixed number
+ * of request threads and a limited queue in front of them.
+ * <p>
+ * The JDK server only closes the connection when its executor rejects a request, so requests that
+ * do not fit are handed to a small overflow pool instead. There the request is still parsed, but
+ * {@link #isOverloaded()} is true and the handler answers 503 with a Retry-After at once. Only when
+ * the overflow pool is full as well is the connection closed without an answer.
+ * <p>
+ * Thread count and queue limit can be changed while running (see {@link AdminHttpHandler}).
+ */
+public class HttpRequestExecutor extends ThreadPoolExecutor {
+
+    private static final int OVERFLOW_THREADS = 2;
+    private static final int OVERFLOW_QUEUE = 1024; // Requests waiting for their 503
+    private static final ThreadLocal<Boolean> OVERLOADED = ThreadLocal.withInitial(() -> false);
+
+    private final ThreadPoolExecutor overflow;
+    private volatile int queueLimit;
+
+    public HttpRequestExecutor(int threads, int queueLimit) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), namedThreads("http-request-"));
+        allowCoreThreadTimeOut(true); // Idle request threads go away, as with the cached pool
+        this.queueLimit = queueLimit;
+        this.overflow = new ThreadPoolExecutor(OVERFLOW_THREADS, OVERFLOW_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(OVERFLOW_QUEUE), namedThreads("http-overload-"));
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Whether the current request did not fit in the queue and should be answered with 503. */
+    public static boolean isOverloaded() {
+        return OVERLOADED.get();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // The queue limit is checked without a lock: a burst may overshoot it by a few requests
+        if (isShutdown() || getQueue().size() < queueLimit || getActiveCount() < getCorePoolSize()) {
+            super.execute(command);
+            return;
+        }
+        overflow.execute(() -> { // Throws RejectedExecutionException when full: the server closes the connection
+            OVERLOADED.set(true);
+            try {
+                command.run();
+            } finally {
+                OVERLOADED.set(false);
+            }
+        });
+    }
+
+    // --- Runtime changes ---
+
+    public int getThreads() {
+        return getMaximumPoolSize();
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    public synchronized void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (threads > getMaximumPoolSize()) {
+            setMaximumPoolSize(threads); // Grow the maximum first: core may never exceed it
+            setCorePoolSize(threads);
+        } else {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads);
+        }
+    }
+
+    public void setQueueLimit(int queueLimit) {
+        this.queueLimit = Math.max(0, queueLimit);
+    }
+
+    String statsJson() {
+        return "{\"threads\":" + getMaximumPoolSize()
+                + ",\"active\":" + getActiveCount()
+                + ",\"queued\":" + getQueue().size()
+                + ",\"queueLimit\":" + queueLimit + "}";
+    }
+
+    @Override
+    public void shutdown() {
+        overflow.shutdown();
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        overflow.shutdownNow();
+        return super.shutdownNow();
+    }
+}
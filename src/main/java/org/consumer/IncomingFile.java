@@ -0,0 +1,466 @@
+package org.consumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Destination of a single upload: owns a temp file while the body is being received and decides
+ * on {@link #finish()} whether it is committed under its real name (and listed) or deleted as
+ * partial. The real name therefore only ever refers to a complete file, even after a crash or
+ * while the same name is being uploaded again. For a chunked upload the body is one chunk,
+ * written into the shared part file instead.
+ */
+public class IncomingFile implements Closeable {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final AtomicLong TEMP_SEQUENCE = new AtomicLong(); // Keeps concurrent uploads of one name apart
+    private static final long CHUNKS_CLOSED_WAIT_MILLIS = 10_000; // For duplicate chunks still being written
+
+    private final String fileName;
+    private final long fileSize;
+    private final StorageVolumes.Volume volume; // Where the body is written
+    private final Path outputFile;
+    private final Path tempFile; // Where the body is written; null for a chunk
+    private final IngestContext context;
+    private final FileChannel fileChannel;
+    private final String expectedHash; // Announced by the producer, or null
+    private final MessageDigest digest; // null unless dedup is on or a hash was announced
+    private final ChunkedUpload chunkedUpload; // null unless this body is one chunk
+    private final int chunkIndex;
+    private final ByteBuffer head; // Leading bytes kept for the head cache (on the heap until committed), or null
+    private final long openedNanos = System.nanoTime(); // Right after the header was parsed
+    private long bytesReceived = 0;
+    private boolean closed = false;
+    private boolean published = false;
+    private boolean stored = false; // Result of finish()
+    private StorageVolumes.Volume storedOn; // Volume holding the name once stored (differs when linked)
+
+    private IncomingFile(UploadHeader header, StorageVolumes.Volume volume, Path tempFile, IngestContext context, FileChannel fileChannel, MessageDigest digest, ChunkedUpload chunkedUpload) {
+        this.fileName = header.getFileName();
+        this.fileSize = header.getFileSize();
+        this.volume = volume;
+        this.storedOn = volume;
+        this.outputFile = volume.resolve(fileName);
+        this.tempFile = tempFile;
+        this.context = context;
+        this.fileChannel = fileChannel;
+        this.expectedHash = header.getContentHashHex();
+        this.digest = digest;
+        this.chunkedUpload = chunkedUpload;
+        this.chunkIndex = header.getChunkIndex();
+        HeadCache headCache = context.getHeadCache();
+        this.head = headCache != null && chunkedUpload == null && headCache.admits(fileSize)
+                ? ByteBuffer.allocate((int) Math.min(fileSize, headCache.getHeadBytes()))
+                : null;
+        volume.uploadOpened();
+    }
+
+    public static IncomingFile open(IngestContext context, UploadHeader header) throws IOException {
+        String fileName = header.getFileName();
+        long fileSize = header.getFileSize();
+        if (header.isChunked()) {
+            ChunkedUpload upload = context.getChunkedUploads().begin(header);
+            Log.info("Receiving chunk {} of {} ({} bytes)", header.getChunkIndex(), fileName, fileSize);
+            return new IncomingFile(header, upload.getVolume(), null, context, upload.openChunk(header.getChunkIndex()), null, upload);
+        }
+        StorageVolumes.Volume volume = context.getStorage().place(fileName, fileSize);
+        Log.info("Receiving file: {} ({} bytes) -> {}", fileName, fileSize, volume.resolve(fileName));
+        MessageDigest digest = null;
+        if (context.getDedupIndex() != null || header.hasContentHash()) {
+            digest = newContentDigest();
+        }
+        // The old file (possibly hard-linked under other names) stays untouched until the rename
+        Path tempFile = tempFolderOf(volume.getFolder()).resolve(fileName + "." + TEMP_SEQUENCE.incrementAndGet() + TEMP_SUFFIX);
+        Files.createDirectories(tempFile.getParent());
+        FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if (context.getOptions().isPreallocate() && fileSize > 0) {
+            try {
+                // Reserve the final length up front so the file is not extended on every write
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+                throw e;
+            }
+        }
+        return new IncomingFile(header, volume, tempFile, context, channel, digest, null);
+    }
+
+    /** Temp files of uploads in progress, on the same file system as the volume folder so they can be renamed into it. */
+    public static Path tempFolderOf(Path volumeFolder) {
+        return IngestContext.stateFolderOf(volumeFolder).resolve("incoming");
+    }
+
+    /** Deletes temp files left behind by uploads that were cut off by a crash; call before accepting uploads. */
+    public static int deleteLeftoverTempFiles(Path volumeFolder) throws IOException {
+        Path tempFolder = tempFolderOf(volumeFolder);
+        if (!Files.isDirectory(tempFolder)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempFolder, "*" + TEMP_SUFFIX)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Producer announced a content hash: if that content is already stored, publish the name as a
+     * link/alias of it right away so the body never has to be sent.
+     *
+     * @return true if the upload was satisfied as a duplicate
+     */
+    public static boolean tryLinkDuplicate(IngestContext context, UploadHeader header) throws IOException {
+        DedupIndex dedupIndex = context.getDedupIndex();
+        if (dedupIndex == null || !header.hasContentHash()) {
+            return false;
+        }
+        String storedName = dedupIndex.findStored(header.getContentHashHex());
+        if (storedName == null) {
+            return false;
+        }
+        StorageVolumes.Volume storedOn = storedName.equals(header.getFileName())
+                ? context.getStorage().locationOf(storedName)
+                : linkToStored(context, header.getFileName(), storedName);
+        Log.info("Skipped body of {}: same content as {}", header.getFileName(), storedName);
+        context.publish(storedOn, header.getFileName(), header.getContentHashHex());
+        return true;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public StorageVolumes.Volume getVolume() {
+        return volume;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long remaining() {
+        return fileSize - bytesReceived;
+    }
+
+    public boolean isChunk() {
+        return chunkedUpload != null;
+    }
+
+    /** True once {@link #finish()} has added the file to the uploaded list. */
+    public boolean isPublished() {
+        return published;
+    }
+
+    /** Writes all remaining bytes of {@code src} at the current end of the file. */
+    public void write(ByteBuffer src) throws IOException {
+        if (digest != null) {
+            digest.update(src.duplicate()); // Hash while the bytes are in flight
+        }
+        if (head != null && head.hasRemaining()) {
+            ByteBuffer leading = src.duplicate();
+            leading.limit(leading.position() + Math.min(leading.remaining(), head.remaining()));
+            head.put(leading); // Keep the start of the video for hover previews
+        }
+        long permitNanos = context.acquireWritePermit(volume);
+        try {
+            while (src.hasRemaining()) {
+                bytesReceived += fileChannel.write(src);
+            }
+        } finally {
+            context.releaseWritePermit(volume, permitNanos);
+        }
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Moves the rest of the body from {@code source} into the file through {@code buffer}
+     * (ideally direct, so bytes never pass through the Java heap). Stops at end of stream.
+     */
+    public void receiveFrom(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (remaining() > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining()));
+            if (source.read(buffer) == -1) {
+                break; // Producer closed early; finish() reports the mismatch
+            }
+            buffer.flip();
+            write(buffer);
+        }
+    }
+
+    /**
+     * Closes the file and checks that the whole body arrived. A complete file is added to the
+     * uploaded list; a partial one is deleted.
+     *
+     * @return true if the file was saved
+     */
+    public boolean finish() {
+        stored = finishUpload();
+        context.getMetrics().uploadFinished(stored, bytesReceived, System.nanoTime() - openedNanos);
+        return stored;
+    }
+
+    /** Reply byte acknowledging a chunk once {@link #finish()} has run. */
+    public byte chunkReply() {
+        if (!stored) {
+            return UploadProtocol.REPLY_CHUNK_FAILED;
+        }
+        return published ? UploadProtocol.REPLY_FILE_COMPLETE : UploadProtocol.REPLY_CHUNK_STORED;
+    }
+
+    /** Status byte of the session ack frame once {@link #finish()} has run. */
+    public byte ackStatus() {
+        if (chunkedUpload != null) {
+            return chunkReply();
+        }
+        return stored ? UploadProtocol.REPLY_FILE_SAVED : UploadProtocol.REPLY_FILE_FAILED;
+    }
+
+    private boolean finishUpload() {
+        if (chunkedUpload != null) {
+            return finishChunk();
+        }
+        String hash;
+        try {
+            if (bytesReceived != fileSize) {
+                Log.error("File size mismatch for {}. Expected {}, received {}. Deleting partial file.", fileName, fileSize, bytesReceived);
+                return false;
+            }
+            hash = digest == null ? null : HexFormat.of().formatHex(digest.digest());
+            if (hash != null && expectedHash != null && !expectedHash.equals(hash)) {
+                Log.error("Content hash mismatch for {}. Expected {}, received {}. Deleting file.", fileName, expectedHash, hash);
+                return false;
+            }
+            if (hash == null || !linkIfStored(hash)) {
+                try {
+                    context.handOverToAliases(fileName); // Aliases of the old file keep their content
+                    context.getGroupCommit(volume).commit(fileChannel, tempFile, outputFile); // Durable, then renamed into place
+                } catch (IOException e) {
+                    Log.error("Could not commit {}: {}", fileName, e.getMessage());
+                    return false;
+                }
+                if (hash != null && context.getDedupIndex() != null) {
+                    try {
+                        context.getDedupIndex().recordStored(hash, fileName);
+                    } catch (IOException e) {
+                        Log.warn("Could not record {} in the dedup index: {}", fileName, e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            close();
+            try { Files.deleteIfExists(tempFile); } catch (IOException delEx) { /* Ignore delete error */ }
+        }
+        Log.info("Successfully received and saved: {}", fileName);
+        cacheHead();
+        // Add to the list *after* successful save
+        context.publish(storedOn, fileName, hash);
+        published = true;
+        return true;
+    }
+
+    /**
+     * Records a complete chunk; the chunk that completes the file checks the assembled part file,
+     * moves it into place and publishes it. An incomplete chunk is simply not recorded, so it can
+     * be resent.
+     *
+     * @return true if the chunk was stored
+     */
+    private boolean finishChunk() {
+        if (bytesReceived != fileSize) {
+            close();
+            Log.error("Chunk {} of {} incomplete. Expected {}, received {}. Chunk must be resent.", chunkIndex, fileName, fileSize, bytesReceived);
+            return false;
+        }
+        try {
+            try {
+                context.getGroupCommit(volume).commit(fileChannel, null, null); // A chunk is only recorded once its bytes are durable
+            } finally {
+                close();
+            }
+            if (!chunkedUpload.markReceived(chunkIndex)) {
+                Log.info("Stored chunk {} of {} ({}/{})", chunkIndex, fileName, chunkedUpload.receivedChunks(), chunkedUpload.chunkCount());
+                return true;
+            }
+        } catch (IOException e) {
+            Log.error("Could not store chunk {} of {}: {}", chunkIndex, fileName, e.getMessage());
+            return false;
+        }
+        return completeChunkedUpload();
+    }
+
+    // Run by the chunk that filled the bitmap: the stored file is only touched once the part file checks out
+    private boolean completeChunkedUpload() {
+        String hash = null;
+        boolean linked = false;
+        try {
+            if (!chunkedUpload.awaitChunksClosed(CHUNKS_CLOSED_WAIT_MILLIS)) {
+                throw new IOException("other chunks are still being written");
+            }
+            Path partFile = chunkedUpload.getPartFile();
+            if (context.getDedupIndex() != null || expectedHash != null) {
+                // Chunks arrive out of order, so the content is hashed once it is assembled
+                hash = hashOf(partFile);
+                if (expectedHash != null && !expectedHash.equals(hash)) {
+                    Log.error("Content hash mismatch for {}. Expected {}, received {}. Discarding the chunks.", fileName, expectedHash, hash);
+                    chunkedUpload.discard();
+                    context.getChunkedUploads().completed(chunkedUpload);
+                    return false;
+                }
+            }
+            linked = hash != null && linkIfStored(hash);
+            if (linked) {
+                Files.deleteIfExists(partFile);
+            } else {
+                context.handOverToAliases(fileName); // Aliases of the old file keep their content
+                context.getGroupCommit(volume).commit(null, partFile, outputFile);
+            }
+        } catch (IOException e) {
+            Log.error("Could not complete {}: {}. A resent chunk tries again.", fileName, e.getMessage());
+            chunkedUpload.completionFailed();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            chunkedUpload.completionFailed();
+            return false;
+        }
+        chunkedUpload.committed();
+        context.getChunkedUploads().completed(chunkedUpload);
+        if (hash != null && context.getDedupIndex() != null && !linked) {
+            try {
+                context.getDedupIndex().recordStored(hash, fileName);
+            } catch (IOException e) {
+                Log.warn("Could not record {} in the dedup index: {}", fileName, e.getMessage());
+            }
+        }
+        Log.info("All chunks received, saved: {}", fileName);
+        context.publish(storedOn, fileName, hash);
+        published = true;
+        return true;
+    }
+
+    // Hands the captured head to the cache before the file is listed, so the first preview hits it
+    private void cacheHead() {
+        if (head == null || head.hasRemaining()) {
+            return;
+        }
+        try {
+            long lastModified = Files.getLastModifiedTime(outputFile).toMillis();
+            context.getHeadCache().putFromIngest(outputFile, fileSize, lastModified, head.flip());
+        } catch (IOException e) {
+            // Stored as an alias (no file of its own): served through the stored file's head
+        }
+    }
+
+    private static String hashOf(Path file) throws IOException {
+        MessageDigest digest = newContentDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Dedup: if the same content is already stored under another name, points this name at it
+     * instead of committing the new copy (the temp file is then simply deleted).
+     *
+     * @return true if the name was linked
+     */
+    private boolean linkIfStored(String hash) {
+        DedupIndex dedupIndex = context.getDedupIndex();
+        if (dedupIndex == null) {
+            return false;
+        }
+        String storedName = dedupIndex.findStored(hash);
+        if (storedName == null || storedName.equals(fileName)) {
+            return false;
+        }
+        try {
+            storedOn = linkToStored(context, fileName, storedName);
+            context.getGroupCommit(storedOn).syncDirectory(storedOn.getFolder());
+        } catch (IOException e) {
+            Log.warn("Could not deduplicate {}, keeping full copy: {}", fileName, e.getMessage());
+            return false;
+        }
+        Log.info("{} has the same content as {}, stored as a link.", fileName, storedName);
+        return true;
+    }
+
+    /**
+     * Makes fileName point at storedName's content: a hard link next to the stored file if
+     * possible, an alias record otherwise. An earlier file of fileName, on any volume, is deleted,
+     * unless aliases point at it: then one of them takes it over.
+     *
+     * @return the volume of the stored file
+     */
+    private static StorageVolumes.Volume linkToStored(IngestContext context, String fileName, String storedName) throws IOException {
+        StorageVolumes storage = context.getStorage();
+        StorageVolumes.Volume storedVolume = storage.locationOf(storedName);
+        if (storedVolume == null) {
+            throw new NoSuchFileException(storedName);
+        }
+        context.handOverToAliases(fileName);
+        Path existing = storage.locate(fileName);
+        if (existing != null) {
+            Files.deleteIfExists(existing);
+        }
+        Path link = storedVolume.resolve(fileName);
+        Files.deleteIfExists(link);
+        try {
+            Files.createLink(link, storedVolume.resolve(storedName));
+            context.getDedupIndex().recordReplaced(fileName);
+        } catch (UnsupportedOperationException | IOException e) {
+            context.getDedupIndex().recordAlias(fileName, storedName);
+        }
+        return storedVolume;
+    }
+
+    private static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Required of every Java platform
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        volume.uploadClosed();
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            // Ignore closing error
+        }
+        if (chunkedUpload != null) {
+            chunkedUpload.chunkClosed();
+        }
+    }
+}
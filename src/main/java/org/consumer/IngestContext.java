@@ -0,0 +1,193 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * State shared by every upload, whichever ingest mode received it: where files go, the catalog
+ * they are published to, and the startup options.
+ */
+public class IngestContext {
+
+    private final StorageVolumes storage;
+    private final VideoCatalog catalog;
+    private final ConsumerOptions options;
+    private final boolean writeSlotsAreWorkers; // Virtual mode: time in a write slot is worker time
+    private final DedupIndex dedupIndex; // null unless dedup is on
+    private final ChunkedUploads chunkedUploads;
+    private final Map<StorageVolumes.Volume, GroupCommit> groupCommits = new HashMap<>(); // One per volume, fixed at startup
+    private final HeadCache headCache; // null unless heads are cached at ingest
+    private final ConsumerMetrics metrics;
+    private final AdmissionControl admission;
+    private final ClusterForwarder clusterForwarder; // null unless cluster mode
+
+    public IngestContext(StorageVolumes storage, VideoCatalog catalog, ConsumerOptions options, DedupIndex dedupIndex, HeadCache headCache, ConsumerMetrics metrics, AdmissionControl admission, ClusterForwarder clusterForwarder) {
+        this.storage = storage;
+        this.catalog = catalog;
+        this.options = options;
+        this.writeSlotsAreWorkers = options.getIngestMode() == ConsumerOptions.IngestMode.VIRTUAL;
+        this.dedupIndex = dedupIndex;
+        this.chunkedUploads = new ChunkedUploads(storage);
+        for (StorageVolumes.Volume volume : storage.getVolumes()) {
+            groupCommits.put(volume, new GroupCommit(options.isFsync(), "volume-" + volume.getIndex() + "-commit"));
+        }
+        this.headCache = headCache;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.clusterForwarder = clusterForwarder;
+    }
+
+    /** Hidden folder inside the output folder for the consumer's own bookkeeping files. */
+    public static Path stateFolderOf(Path outputFolderPath) {
+        return outputFolderPath.resolve(".consumer");
+    }
+
+    public StorageVolumes getStorage() {
+        return storage;
+    }
+
+    public VideoCatalog getCatalog() {
+        return catalog;
+    }
+
+    public ConsumerOptions getOptions() {
+        return options;
+    }
+
+    public DedupIndex getDedupIndex() {
+        return dedupIndex;
+    }
+
+    public ChunkedUploads getChunkedUploads() {
+        return chunkedUploads;
+    }
+
+    /** Commits renames into {@code volume}; every volume has its own, so a slow disk only delays its own uploads. */
+    public GroupCommit getGroupCommit(StorageVolumes.Volume volume) {
+        return groupCommits.get(volume);
+    }
+
+    /** Stops the committers; later commits run on the caller's thread. */
+    public void closeGroupCommits() {
+        for (GroupCommit groupCommit : groupCommits.values()) {
+            groupCommit.close();
+        }
+    }
+
+    public HeadCache getHeadCache() {
+        return headCache;
+    }
+
+    public ConsumerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Lists a committed upload: records it in the manifest of the volume that holds it (with its
+     * size and modification time as stored, and its content hash if known) and adds it to the
+     * catalog. An earlier copy of the name on another volume is deleted.
+     */
+    public void publish(StorageVolumes.Volume volume, String fileName, String hash) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(volume.resolve(fileName), BasicFileAttributes.class);
+            volume.getManifest().recordAdded(fileName, attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+            StorageVolumes.Volume previous = storage.stored(volume, fileName);
+            if (previous != null) {
+                Files.deleteIfExists(previous.resolve(fileName));
+                previous.getManifest().recordRemoved(fileName);
+            }
+        } catch (NoSuchFileException e) {
+            // Stored as a dedup alias: no file of its own to record (or hand to another node)
+            forgetFile(fileName);
+            catalog.add(fileName);
+            return;
+        } catch (IOException e) {
+            Log.warn("Could not record {} in the catalog manifest: {}", fileName, e.getMessage());
+        }
+        catalog.add(fileName);
+        if (clusterForwarder != null) {
+            clusterForwarder.published(volume, fileName); // Another node may own the name
+        }
+    }
+
+    /** Drops the location of a name whose file was deleted (it is about to become a dedup alias). */
+    void forgetFile(String fileName) {
+        StorageVolumes.Volume volume = storage.locationOf(fileName);
+        if (volume == null) {
+            return;
+        }
+        storage.removed(volume, fileName);
+        try {
+            volume.getManifest().recordRemoved(fileName);
+        } catch (IOException e) {
+            // The reconciliation scan at the next start corrects it
+        }
+    }
+
+    /**
+     * Called before {@code fileName}'s file is deleted or replaced: if dedup aliases point at it,
+     * the file is renamed to the first of them, which holds it from then on for all of them. Only
+     * {@code fileName} then changes what it serves.
+     */
+    void handOverToAliases(String fileName) throws IOException {
+        if (dedupIndex == null || !dedupIndex.hasAliases(fileName)) {
+            return;
+        }
+        StorageVolumes.Volume volume = storage.locationOf(fileName);
+        List<String> aliases = dedupIndex.aliasesOf(fileName);
+        if (volume == null || aliases.isEmpty()) {
+            return;
+        }
+        String heir = aliases.get(0);
+        Path heirFile = volume.resolve(heir);
+        Files.move(volume.resolve(fileName), heirFile, StandardCopyOption.ATOMIC_MOVE);
+        getGroupCommit(volume).syncDirectory(volume.getFolder());
+        dedupIndex.recordHandOver(fileName, heir);
+        forgetFile(fileName);
+        BasicFileAttributes attributes = Files.readAttributes(heirFile, BasicFileAttributes.class);
+        volume.getManifest().recordAdded(heir, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+        storage.stored(volume, heir);
+        Log.info("{} is replaced; its content stays for {} alias(es) as {}.", fileName, aliases.size(), heir);
+    }
+
+    /**
+     * Waits for a disk write slot of {@code volume} when writers are limited per volume.
+     *
+     * @return when the slot was taken, to pass to {@link #releaseWritePermit}
+     */
+    long acquireWritePermit(StorageVolumes.Volume volume) throws IOException {
+        Semaphore slots = volume.getWriteSlots();
+        if (slots != null) {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a disk write slot");
+            }
+        }
+        return System.nanoTime();
+    }
+
+    void releaseWritePermit(StorageVolumes.Volume volume, long acquiredNanos) {
+        Semaphore slots = volume.getWriteSlots();
+        if (slots != null) {
+            slots.release();
+            if (writeSlotsAreWorkers) {
+                metrics.workerBusy(System.nanoTime() - acquiredNanos); // The c write slots are the workers here
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.consumer;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging for the runtime messages of the consumer (the interactive prompts and the
+ * startup summary still go straight to the console).
+ * <p>
+ * A log call stores its level, thread, time, a message template and up to four arguments in a
+ * preallocated slot of a fixed ring buffer and returns; a single background thread formats the
+ * events ({@code {}} in the template is replaced by the next argument) and writes them in batches.
+ * Callers never wait for the console: when the ring is full the event is dropped and counted.
+ * High-frequency events can be thinned out with a {@link Sampler}.
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 8192; // Power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // One slot of the ring; filled by the thread that claimed it, read by the writer thread
+    private static final class Event {
+        volatile long sequence = -1; // Set last: the slot holds event number `sequence`
+        long timeMillis;
+        Level level;
+        String thread;
+        String template;
+        int argCount;
+        Object arg0, arg1, arg2, arg3;
+    }
+
+    private static final Event[] RING = new Event[CAPACITY];
+    private static final AtomicLong CLAIMED = new AtomicLong(); // Next sequence to hand out
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile long consumed = 0; // Next sequence the writer will read
+    private static volatile Level threshold = Level.INFO;
+    private static volatile int sampleEvery = 1;
+    private static volatile boolean writerParked = false;
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Event();
+        }
+        WRITER = new Thread(Log::drainForever, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /** Applies the level and sampling switches from the startup options. */
+    public static void configure(ConsumerOptions options) {
+        threshold = options.getLogLevel();
+        sampleEvery = options.getLogSampleEvery();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0 && level != Level.OFF;
+    }
+
+    /** Events lost because the ring was full. */
+    public static long getDroppedCount() {
+        return DROPPED.get();
+    }
+
+    /** Lets through one in every {@code consumer.log.sampleEvery} calls (all of them by default). */
+    public static final class Sampler {
+        private final AtomicLong calls = new AtomicLong();
+
+        public boolean sample() {
+            int every = sampleEvery;
+            return every <= 1 || calls.getAndIncrement() % every == 0;
+        }
+    }
+
+    // --- Logging calls (fixed arities, so no varargs array per call) ---
+
+    public static void debug(String template) { log(Level.DEBUG, template, 0, null, null, null, null); }
+    public static void debug(String template, Object a) { log(Level.DEBUG, template, 1, a, null, null, null); }
+    public static void debug(String template, Object a, Object b) { log(Level.DEBUG, template, 2, a, b, null, null); }
+    public static void debug(String template, Object a, Object b, Object c) { log(Level.DEBUG, template, 3, a, b, c, null); }
+    public static void debug(String template, Object a, Object b, Object c, Object d) { log(Level.DEBUG, template, 4, a, b, c, d); }
+
+    public static void info(String template) { log(Level.INFO, template, 0, null, null, null, null); }
+    public static void info(String template, Object a) { log(Level.INFO, template, 1, a, null, null, null); }
+    public static void info(String template, Object a, Object b) { log(Level.INFO, template, 2, a, b, null, null); }
+    public static void info(String template, Object a, Object b, Object c) { log(Level.INFO, template, 3, a, b, c, null); }
+    public static void info(String template, Object a, Object b, Object c, Object d) { log(Level.INFO, template, 4, a, b, c, d); }
+
+    public static void warn(String template) { log(Level.WARN, template, 0, null, null, null, null); }
+    public static void warn(String template, Object a) { log(Level.WARN, template, 1, a, null, null, null); }
+    public static void warn(String template, Object a, Object b) { log(Level.WARN, template, 2, a, b, null, null); }
+    public static void warn(String template, Object a, Object b, Object c) { log(Level.WARN, template, 3, a, b, c, null); }
+    public static void warn(String template, Object a, Object b, Object c, Object d) { log(Level.WARN, template, 4, a, b, c, d); }
+
+    public static void error(String template) { log(Level.ERROR, template, 0, null, null, null, null); }
+    public static void error(String template, Object a) { log(Level.ERROR, template, 1, a, null, null, null); }
+    public static void error(String template, Object a, Object b) { log(Level.ERROR, template, 2, a, b, null, null); }
+    public static void error(String template, Object a, Object b, Object c) { log(Level.ERROR, template, 3, a, b, c, null); }
+    public static void error(String template, Object a, Object b, Object c, Object d) { log(Level.ERROR, template, 4, a, b, c, d); }
+
+    private static void log(Level level, String template, int argCount, Object a, Object b, Object c, Object d) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - consumed >= CAPACITY) {
+                DROPPED.incrementAndGet(); // Writer is behind: never wait for it
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+
+        Event event = RING[(int) (sequence & MASK)];
+        event.timeMillis = System.currentTimeMillis();
+        event.level = level;
+        event.thread = Thread.currentThread().getName();
+        event.template = template;
+        event.argCount = argCount;
+        event.arg0 = a;
+        event.arg1 = b;
+        event.arg2 = c;
+        event.arg3 = d;
+        event.sequence = sequence; // Publish
+        if (writerParked) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    // --- Writer thread ---
+
+    private static final StringBuilder outBatch = new StringBuilder(MAX_BATCH_CHARS);
+    private static final StringBuilder errBatch = new StringBuilder(MAX_BATCH_CHARS);
+    private static long reportedDrops = 0;
+
+    private static void drainForever() {
+        while (true) {
+            if (drainAvailable()) {
+                continue;
+            }
+            writerParked = true;
+            if (!isEventReady()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100)); // Timeout covers a missed unpark
+            }
+            writerParked = false;
+        }
+    }
+
+    private static boolean isEventReady() {
+        long next = consumed;
+        return RING[(int) (next & MASK)].sequence == next;
+    }
+
+    /** Writes everything published so far; returns false if there was nothing. */
+    private static synchronized boolean drainAvailable() {
+        boolean any = false;
+        while (isEventReady()) {
+            long next = consumed;
+            Event event = RING[(int) (next & MASK)];
+            StringBuilder batch = event.level.compareTo(Level.WARN) >= 0 ? errBatch : outBatch;
+            format(batch, event);
+            event.template = null; // Release the arguments before the slot is reused
+            event.arg0 = event.arg1 = event.arg2 = event.arg3 = null;
+            consumed = next + 1;
+            any = true;
+            if (outBatch.length() + errBatch.length() >= MAX_BATCH_CHARS) {
+                writeBatches();
+            }
+        }
+        long drops = DROPPED.get();
+        if (drops != reportedDrops) {
+            errBatch.append(TIME_FORMAT.format(Instant.now())).append(" WARN  [log-writer] ")
+                    .append(drops - reportedDrops).append(" log events dropped (buffer full)\n");
+            reportedDrops = drops;
+        }
+        writeBatches();
+        return any;
+    }
+
+    private static void format(StringBuilder batch, Event event) {
+        batch.append(TIME_FORMAT.format(Instant.ofEpochMilli(event.timeMillis))).append(' ');
+        String levelName = event.level.name();
+        batch.append(levelName);
+        for (int i = levelName.length(); i < 5; i++) {
+            batch.append(' ');
+        }
+        batch.append(" [").append(event.thread).append("] ");
+        String template = event.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < event.argCount && (at = template.indexOf("{}", from)) >= 0) {
+            batch.append(template, from, at).append(argument(event, arg++));
+            from = at + 2;
+        }
+        batch.append(template, from, template.length()).append('\n');
+    }
+
+    private static Object argument(Event event, int index) {
+        switch (index) {
+            case 0: return event.arg0;
+            case 1: return event.arg1;
+            case 2: return event.arg2;
+            default: return event.arg3;
+        }
+    }
+
+    private static void writeBatches() {
+        write(System.out, outBatch);
+        write(System.err, errBatch);
+    }
+
+    private static void write(PrintStream stream, StringBuilder batch) {
+        if (batch.length() > 0) {
+            stream.print(batch);
+            stream.flush();
+            batch.setLength(0);
+        }
+    }
+
+    /** Writes out everything logged so far (at shutdown), waiting at most a couple of seconds. */
+    public static void flush() {
+        long target = CLAIMED.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (consumed < target && System.nanoTime() < deadline) {
+            if (!drainAvailable()) {
+                Thread.onSpinWait(); // A claimed slot is still being filled
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared read-only memory mappings of recently served files, bounded by a total byte budget
+ * (least recently used mappings are dropped first). Lets range requests copy straight out of
+ * the page cache without a read system call.
+ */
+public class MappedFileCache {
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final MappedByteBuffer buffer;
+
+        Entry(long size, long lastModified, MappedByteBuffer buffer) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+    }
+
+    private final long budgetBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order = LRU
+    private long mappedBytes = 0;
+
+    public MappedFileCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns a mapping of the whole file, creating it if needed, or null if the file is too
+     * large for the budget. A cached mapping is only reused while size and mtime are unchanged.
+     * The returned buffer is shared: use absolute gets only.
+     */
+    public MappedByteBuffer get(Path file, FileChannel channel, long size, long lastModified) throws IOException {
+        if (size == 0 || size > budgetBytes || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    return entry.buffer;
+                }
+                remove(file); // Stale: the file was replaced
+            }
+        }
+
+        // Map outside the lock; a concurrent miss on the same file just maps it twice
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        synchronized (this) {
+            Entry previous = entries.put(file, new Entry(size, lastModified, buffer));
+            if (previous != null) {
+                mappedBytes -= previous.size;
+            }
+            mappedBytes += size;
+            Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+            while (mappedBytes > budgetBytes && eldest.hasNext()) {
+                Map.Entry<Path, Entry> evicted = eldest.next();
+                if (evicted.getKey().equals(file)) {
+                    continue;
+                }
+                mappedBytes -= evicted.getValue().size;
+                eldest.remove(); // The mapping itself is released when the buffer is collected
+            }
+        }
+        return buffer;
+    }
+
+    public synchronized void remove(Path file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            mappedBytes -= entry.size;
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking upload listener (opt-in with {@code -Dconsumer.ingest=nio}).
+ * <p>
+ * One selector thread accepts connections and parses the upload header of each one incrementally;
+ * body bytes are handed to the writer pool (c threads) for the disk writes, or with several storage
+ * volumes to the writer threads of the volume the file goes to. A connection stops
+ * reading while one of its writes is in flight, so a slow disk pushes back on that producer only.
+ * At most q uploads are open at once; connections beyond that are closed right away, just like
+ * when the blocking connection queue is full.
+ * <p>
+ * Replies go out without blocking: what the send buffer does not take is queued on the connection
+ * and flushed by the selector when the socket is writable. A session producer that does not read
+ * its acks is not read from either once more than {@link #MAX_PENDING_REPLY_BYTES} are queued.
+ */
+public class NioIngestServer implements Runnable {
+
+    private static final int BODY_BUFFER_SIZE = 64 * 1024; // Per-connection read buffer
+    private static final int MAX_PENDING_REPLY_BYTES = 64 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final IngestContext context;
+    private final ExecutorService writerPool;
+    private final int maxConnections;
+
+    // Work posted by writer threads that must run on the selector thread
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile int openConnections = 0; // Only changed by the selector thread
+    private volatile boolean running = true;
+
+    public NioIngestServer(int listenPort, IngestContext context, ExecutorService writerPool, int maxConnections) throws IOException {
+        this.context = context;
+        this.writerPool = writerPool;
+        this.maxConnections = maxConnections;
+        context.getMetrics().setQueueDepthGauge(() -> openConnections);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(listenPort));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                selector.select();
+                runSelectorTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                        continue;
+                    }
+                    UploadConnection connection = (UploadConnection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                Log.error("Error in upload selector loop: {}", e.getMessage());
+            }
+        } finally {
+            shutdownConnections();
+        }
+        Log.info("Upload selector stopped.");
+    }
+
+    /** Port the listener is bound to (the chosen one when configured as 0). */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Stops the selector loop; safe to call from any thread. */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void runSelectorTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void postToSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void acceptConnections() {
+        SocketChannel clientChannel;
+        while (true) {
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (IOException e) {
+                Log.error("Error accepting connection: {}", e.getMessage());
+                return;
+            }
+            if (clientChannel == null) {
+                return; // No more pending connections
+            }
+
+            SocketAddress remote = remoteAddress(clientChannel);
+            if (openConnections >= maxConnections) {
+                Log.info("Connection rejected from {} - Too many open uploads ({}/{})", remote, openConnections, maxConnections);
+                context.getMetrics().connectionRejected();
+                try {
+                    clientChannel.configureBlocking(true); // Not registered yet; the reply is written off this thread
+                    context.getAdmission().reject(clientChannel.socket(), openConnections);
+                } catch (IOException e) {
+                    try { clientChannel.close(); } catch (IOException ce) { /* Ignore close error */ }
+                }
+                continue;
+            }
+            try {
+                clientChannel.configureBlocking(false);
+                SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+                key.attach(new UploadConnection(clientChannel, key, remote));
+                openConnections++;
+                context.getMetrics().connectionAccepted(openConnections);
+                Log.info("Connection accepted from {} ({}/{} open)", remote, openConnections, maxConnections);
+            } catch (IOException e) {
+                Log.error("Error registering connection from {}: {}", remote, e.getMessage());
+                try { clientChannel.close(); } catch (IOException ce) { /* Ignore close error */ }
+            }
+        }
+    }
+
+    private void shutdownConnections() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof UploadConnection) {
+                    ((UploadConnection) key.attachment()).close();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Already closed
+        }
+        try { serverChannel.close(); } catch (IOException e) { /* Ignore */ }
+        try { selector.close(); } catch (IOException e) { /* Ignore */ }
+    }
+
+    private static SocketAddress remoteAddress(SocketChannel channel) {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Per-connection state machine: header (see {@link UploadHeader}), then body; in session mode
+     * back to the header after each upload. Reads happen on the selector thread; opening, writing
+     * and finishing the file on the writer pool, which also starts sending the replies.
+     */
+    private class UploadConnection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SocketAddress remote;
+
+        // Bytes after the current header stay here, so pipelined session headers are not lost
+        private final ByteBuffer header = ByteBuffer.allocate(UploadProtocol.MAX_HEADER_SIZE);
+        private ByteBuffer body;
+        private UploadHeader uploadHeader; // null while the header is incomplete
+        private long bodyBytesRead = 0;
+        private int uploadsInSession = 0;
+
+        // Written by writer threads, read by the selector thread
+        private volatile IncomingFile incomingFile;
+        private volatile boolean writerBusy = false;
+        private volatile boolean closed = false;
+
+        // Replies the send buffer has not taken yet, in order (guarded by pendingReplies)
+        private final ArrayDeque<ByteBuffer> pendingReplies = new ArrayDeque<>();
+        private int pendingReplyBytes = 0;
+
+        // Selector thread only
+        private boolean reading = true; // OP_READ wanted
+        private boolean writing = false; // OP_WRITE wanted: replies are queued
+        private boolean closeWhenFlushed = false;
+        private boolean continueWhenFlushed = false; // Next session upload waits for the acks to drain
+
+        UploadConnection(SocketChannel channel, SelectionKey key, SocketAddress remote) {
+            this.channel = channel;
+            this.key = key;
+            this.remote = remote;
+        }
+
+        void onReadable() {
+            try {
+                if (uploadHeader == null) {
+                    readHeader();
+                } else {
+                    readBody();
+                }
+            } catch (IOException e) {
+                Log.error("Error handling connection from {}: {}", remote, e.getMessage());
+                close();
+            }
+        }
+
+        private void readHeader() throws IOException {
+            if (channel.read(header) == -1) {
+                if (uploadsInSession > 0 && header.position() == 0) {
+                    close(); // Session producer closed the connection between uploads
+                    return;
+                }
+                throw new IOException("Connection closed before the upload header was complete");
+            }
+            parseHeader();
+        }
+
+        private void parseHeader() throws IOException {
+            header.flip();
+            UploadHeader parsed = UploadHeader.tryParse(header);
+            if (parsed == null) {
+                header.compact(); // Wait for more bytes
+                if (!header.hasRemaining()) {
+                    throw new IOException("Upload header too large");
+                }
+                return;
+            }
+            uploadHeader = parsed;
+            long fileSize = parsed.getFileSize();
+            int bodyBufferSize = (int) Math.min(BODY_BUFFER_SIZE, Math.max(1, fileSize));
+            if (body == null || body.capacity() < bodyBufferSize) {
+                body = ByteBuffer.allocateDirect(bodyBufferSize);
+            }
+            body.clear();
+
+            // Bytes read past the header are the start of the body (and maybe of the next header)
+            int leftover = (int) Math.min(header.remaining(), fileSize);
+            int readLimit = header.limit();
+            header.limit(header.position() + leftover);
+            body.put(header);
+            body.flip();
+            header.limit(readLimit);
+            header.compact();
+            bodyBytesRead = leftover;
+
+            // Opening (and truncating) the file is disk work: do it on a writer
+            pauseReading();
+            submitToWriter(() -> startUpload(parsed));
+        }
+
+        private void startUpload(UploadHeader parsed) throws IOException {
+            if (parsed.isChunkStatusQuery()) {
+                // Resuming producer asks which chunks we already have
+                byte[] bitmap = context.getChunkedUploads().chunkBitmap(parsed.getFileName());
+                sendReply(ByteBuffer.allocate(Integer.BYTES + bitmap.length).putInt(bitmap.length).put(bitmap).flip());
+                endUpload(parsed, true, UploadProtocol.REPLY_FILE_SAVED);
+                return;
+            }
+            if (parsed.hasContentHash()) {
+                boolean duplicate = IncomingFile.tryLinkDuplicate(context, parsed);
+                sendReply(duplicate ? UploadProtocol.REPLY_DUPLICATE : UploadProtocol.REPLY_SEND_BODY);
+                if (duplicate) {
+                    endUpload(parsed, true, UploadProtocol.REPLY_FILE_SAVED);
+                    return;
+                }
+            }
+            incomingFile = IncomingFile.open(context, parsed);
+            if (body.hasRemaining()) {
+                incomingFile.write(body);
+            }
+            if (bodyBytesRead == parsed.getFileSize()) {
+                completeOnWriter();
+            } else {
+                resumeReading();
+            }
+        }
+
+        private void sendReply(byte reply) throws IOException {
+            sendReply(ByteBuffer.wrap(new byte[] { reply }));
+        }
+
+        // Any thread: writes what the send buffer takes now, the selector sends the rest when it can
+        private void sendReply(ByteBuffer reply) throws IOException {
+            synchronized (pendingReplies) {
+                if (pendingReplies.isEmpty()) {
+                    channel.write(reply);
+                }
+                if (!reply.hasRemaining()) {
+                    return;
+                }
+                pendingReplies.add(reply);
+                pendingReplyBytes += reply.remaining();
+            }
+            postToSelector(this::watchWritable);
+        }
+
+        // True once every queued reply is in the send buffer
+        private boolean flushReplies() throws IOException {
+            synchronized (pendingReplies) {
+                while (!pendingReplies.isEmpty()) {
+                    ByteBuffer reply = pendingReplies.peek();
+                    pendingReplyBytes -= channel.write(reply);
+                    if (reply.hasRemaining()) {
+                        return false;
+                    }
+                    pendingReplies.poll();
+                }
+                return true;
+            }
+        }
+
+        private int pendingReplyBytes() {
+            synchronized (pendingReplies) {
+                return pendingReplyBytes;
+            }
+        }
+
+        /** Selector thread: replies were queued, send them when the socket is writable. */
+        private void watchWritable() {
+            if (closed || writing) {
+                return;
+            }
+            writing = true;
+            updateInterest();
+        }
+
+        void onWritable() {
+            try {
+                if (!flushReplies()) {
+                    return;
+                }
+            } catch (IOException e) {
+                Log.error("Could not send reply to {}: {}", remote, e.getMessage());
+                close();
+                return;
+            }
+            writing = false;
+            updateInterest();
+            if (closeWhenFlushed) {
+                close();
+            } else if (continueWhenFlushed) {
+                continueWhenFlushed = false;
+                continueSession();
+            }
+        }
+
+        /** Selector thread: closes once the queued replies are sent. */
+        private void closeAfterReplies() {
+            if (closed) {
+                return;
+            }
+            if (pendingReplyBytes() == 0) {
+                close();
+            } else {
+                closeWhenFlushed = true;
+                watchWritable();
+            }
+        }
+
+        private void readBody() throws IOException {
+            long fileSize = uploadHeader.getFileSize();
+            body.clear();
+            body.limit((int) Math.min(body.capacity(), fileSize - bodyBytesRead));
+            int bytesRead = channel.read(body);
+            if (bytesRead == -1) {
+                // Producer went away early: let the writer finish (it deletes the partial file)
+                pauseReading();
+                submitToWriter(this::completeOnWriter);
+                return;
+            }
+            if (bytesRead == 0) {
+                return;
+            }
+            bodyBytesRead += bytesRead;
+            body.flip();
+
+            // 4. Hand the bytes to a writer; no more reads on this connection until it is done
+            pauseReading();
+            boolean lastChunk = bodyBytesRead == fileSize;
+            submitToWriter(() -> {
+                incomingFile.write(body);
+                if (lastChunk) {
+                    completeOnWriter();
+                } else {
+                    resumeReading();
+                }
+            });
+        }
+
+        private void completeOnWriter() {
+            IncomingFile file = incomingFile;
+            incomingFile = null;
+            if (file == null) {
+                postToSelector(this::close);
+                return;
+            }
+            file.finish();
+            if (file.isChunk() && !uploadHeader.isSession()) {
+                try {
+                    sendReply(file.chunkReply());
+                } catch (IOException e) {
+                    // Producer is gone; it will ask for the chunk map when it resumes
+                }
+            }
+            endUpload(uploadHeader, bodyBytesRead == uploadHeader.getFileSize(), file.ackStatus());
+        }
+
+        /** Writer side of the end of an upload: ack and go back to the header in a session, else close. */
+        private void endUpload(UploadHeader finished, boolean bodyComplete, byte status) {
+            if (!finished.isSession() || !bodyComplete) {
+                postToSelector(this::closeAfterReplies); // A chunk reply may still be queued
+                return;
+            }
+            if (!finished.isChunkStatusQuery()) {
+                try {
+                    sendReply(ByteBuffer.wrap(UploadProtocol.ackFrame(status, finished.getFileName())));
+                } catch (IOException e) {
+                    Log.error("Could not acknowledge {} to {}: {}", finished.getFileName(), remote, e.getMessage());
+                    postToSelector(this::close);
+                    return;
+                }
+            }
+            postToSelector(this::nextUpload);
+        }
+
+        /** Selector thread: start on the next header of a session, possibly already buffered. */
+        private void nextUpload() {
+            if (closed) {
+                return;
+            }
+            uploadHeader = null;
+            uploadsInSession++;
+            writerBusy = false;
+            if (pendingReplyBytes() > MAX_PENDING_REPLY_BYTES) {
+                continueWhenFlushed = true; // The producer is not reading its acks
+                return;
+            }
+            continueSession();
+        }
+
+        private void continueSession() {
+            try {
+                if (header.position() > 0) {
+                    parseHeader();
+                }
+            } catch (IOException e) {
+                Log.error("Error handling connection from {}: {}", remote, e.getMessage());
+                close();
+                return;
+            }
+            if (uploadHeader == null) {
+                reading = true;
+                updateInterest();
+            }
+        }
+
+        private void pauseReading() {
+            writerBusy = true;
+            reading = false;
+            updateInterest();
+        }
+
+        private void resumeReading() {
+            writerBusy = false;
+            postToSelector(() -> {
+                if (closed) {
+                    abandonFile();
+                } else {
+                    reading = true;
+                    updateInterest();
+                }
+            });
+        }
+
+        /** Selector thread only. */
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((reading ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        private void submitToWriter(WriterStep step) {
+            try {
+                writerFor(incomingFile).execute(() -> {
+                    long busySince = System.nanoTime();
+                    try {
+                        step.run();
+                    } catch (IOException e) {
+                        Log.error("Error handling connection from {}: {}", remote, e.getMessage());
+                        IncomingFile file = incomingFile;
+                        incomingFile = null;
+                        if (file != null) {
+                            file.finish(); // Deletes the partial file
+                        }
+                        postToSelector(this::close);
+                    } finally {
+                        context.getMetrics().workerBusy(System.nanoTime() - busySince);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Writer pool is shutting down
+                writerBusy = false;
+                close();
+            }
+        }
+
+        /** Finishes a file left behind by a connection that closed while no write was in flight. */
+        private void abandonFile() {
+            IncomingFile file = incomingFile;
+            if (file == null || writerBusy) {
+                return; // The in-flight writer step will finish it
+            }
+            incomingFile = null;
+            try {
+                writerFor(file).execute(file::finish);
+            } catch (RejectedExecutionException e) {
+                file.finish();
+            }
+        }
+
+        // Once the file is open its writes go to its volume, so a slow disk only holds up its own uploads
+        private ExecutorService writerFor(IncomingFile file) {
+            ExecutorService volumePool = file == null ? null : file.getVolume().getWriterPool();
+            return volumePool != null ? volumePool : writerPool;
+        }
+
+        /** Selector thread only. */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openConnections--;
+            context.getAdmission().connectionDrained();
+            key.cancel();
+            try { channel.close(); } catch (IOException e) { /* Ignore closing error */ }
+            abandonFile();
+        }
+    }
+
+    @FunctionalInterface
+    private interface WriterStep {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,196 @@
+package org.consumer;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Rate limits for serving files: one token bucket for all viewers together and one per client
+ * address, so a few viewers scrubbing through large videos cannot take the whole link and disk
+ * away from uploads and from each other.
+ * <p>
+ * With the {@code ingest} priority the global rate is lowered further while uploads are being
+ * received. Every limit can be changed while running (see {@link AdminHttpHandler}); 0 means
+ * unlimited. A sender takes its bytes from the buckets up front and then sleeps off any debt, so
+ * concurrent streams of one client share its rate in the order they asked.
+ */
+public class ServeThrottle {
+
+    public enum Priority { EQUAL, INGEST }
+
+    private static final long IDLE_CLIENT_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long PURGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long MIN_BURST_BYTES = 64 * 1024; // One serve buffer
+
+    // Bytes per second refilled up to a burst of a quarter second; may go into debt
+    static class TokenBucket {
+        private long bytesPerSecond; // 0 = unlimited
+        private double tokens;
+        private long refilledNanos = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            setRate(bytesPerSecond);
+            this.tokens = burst();
+        }
+
+        synchronized void setRate(long bytesPerSecond) {
+            refill(System.nanoTime());
+            this.bytesPerSecond = bytesPerSecond;
+            tokens = Math.min(tokens, burst());
+        }
+
+        /** Takes {@code bytes}; returns how long the caller must wait before sending them. */
+        synchronized long reserve(long bytes) {
+            if (bytesPerSecond <= 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+
+        synchronized long idleNanos(long now) {
+            return now - refilledNanos;
+        }
+
+        private void refill(long now) {
+            if (bytesPerSecond > 0) {
+                tokens = Math.min(burst(), tokens + (now - refilledNanos) * bytesPerSecond / 1e9);
+            }
+            refilledNanos = now;
+        }
+
+        private double burst() {
+            return Math.max(MIN_BURST_BYTES, bytesPerSecond / 4.0);
+        }
+    }
+
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final IntSupplier uploadsInProgress;
+    private final ConsumerMetrics metrics;
+    private final AtomicLong lastPurgeNanos = new AtomicLong(System.nanoTime());
+
+    private volatile long globalBytesPerSecond;
+    private volatile long clientBytesPerSecond;
+    private volatile long ingestingBytesPerSecond;
+    private volatile Priority priority;
+    private volatile boolean ingestLimitApplied = false;
+
+    public ServeThrottle(ConsumerOptions options, IntSupplier uploadsInProgress, ConsumerMetrics metrics) {
+        this.globalBytesPerSecond = options.getServeGlobalBytesPerSecond();
+        this.clientBytesPerSecond = options.getServeClientBytesPerSecond();
+        this.ingestingBytesPerSecond = options.getServeIngestingBytesPerSecond();
+        this.priority = options.getServePriority();
+        this.uploadsInProgress = uploadsInProgress;
+        this.metrics = metrics;
+        this.global = new TokenBucket(globalBytesPerSecond);
+    }
+
+    /**
+     * Waits until {@code bytes} may be sent to {@code client}.
+     *
+     * @throws InterruptedIOException if the serving thread is interrupted (shutdown)
+     */
+    public void acquire(String client, int bytes) throws InterruptedIOException {
+        applyIngestPriority();
+        long wait = global.reserve(bytes);
+        if (clientBytesPerSecond > 0) {
+            TokenBucket bucket = clients.computeIfAbsent(client, key -> new TokenBucket(clientBytesPerSecond));
+            wait = Math.max(wait, bucket.reserve(bytes));
+            purgeIdleClients();
+        }
+        if (wait > 0) {
+            metrics.serveThrottled(wait);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    // Lowers the global rate while uploads are running (ingest priority), and restores it after
+    private void applyIngestPriority() {
+        boolean limit = priority == Priority.INGEST && ingestingBytesPerSecond > 0 && uploadsInProgress.getAsInt() > 0;
+        if (limit != ingestLimitApplied) {
+            ingestLimitApplied = limit;
+            global.setRate(effectiveGlobalRate(limit));
+        }
+    }
+
+    private long effectiveGlobalRate(boolean ingesting) {
+        long rate = globalBytesPerSecond;
+        if (ingesting) {
+            rate = rate > 0 ? Math.min(rate, ingestingBytesPerSecond) : ingestingBytesPerSecond;
+        }
+        return rate;
+    }
+
+    private void purgeIdleClients() {
+        long now = System.nanoTime();
+        long last = lastPurgeNanos.get();
+        if (now - last < PURGE_INTERVAL_NANOS || !lastPurgeNanos.compareAndSet(last, now)) {
+            return;
+        }
+        Iterator<TokenBucket> buckets = clients.values().iterator();
+        while (buckets.hasNext()) {
+            if (buckets.next().idleNanos(now) > IDLE_CLIENT_NANOS) {
+                buckets.remove(); // A returning client starts with a full bucket, as it would after a minute anyway
+            }
+        }
+    }
+
+    // --- Runtime changes ---
+
+    public long getGlobalBytesPerSecond() {
+        return globalBytesPerSecond;
+    }
+
+    public long getClientBytesPerSecond() {
+        return clientBytesPerSecond;
+    }
+
+    public long getIngestingBytesPerSecond() {
+        return ingestingBytesPerSecond;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setGlobalBytesPerSecond(long bytesPerSecond) {
+        globalBytesPerSecond = Math.max(0, bytesPerSecond);
+        global.setRate(effectiveGlobalRate(ingestLimitApplied));
+    }
+
+    public void setClientBytesPerSecond(long bytesPerSecond) {
+        clientBytesPerSecond = Math.max(0, bytesPerSecond);
+        for (TokenBucket bucket : clients.values()) {
+            bucket.setRate(clientBytesPerSecond);
+        }
+    }
+
+    public void setIngestingBytesPerSecond(long bytesPerSecond) {
+        ingestingBytesPerSecond = Math.max(0, bytesPerSecond);
+        global.setRate(effectiveGlobalRate(ingestLimitApplied));
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    String statsJson() {
+        return "{\"globalKbPerSec\":" + globalBytesPerSecond / 1024
+                + ",\"clientKbPerSec\":" + clientBytesPerSecond / 1024
+                + ",\"ingestingKbPerSec\":" + ingestingBytesPerSecond / 1024
+                + ",\"priority\":\"" + priority.name().toLowerCase() + "\""
+                + ",\"ingestLimitActive\":" + ingestLimitApplied
+                + ",\"clients\":" + clients.size() + "}";
+    }
+}
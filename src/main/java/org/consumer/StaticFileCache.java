@@ -0,0 +1,107 @@
+package org.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The GUI files ({@code index.html}, {@code script.js}) kept in memory together with a gzip
+ * variant compressed once when the file is loaded, so a page load neither reads the disk nor
+ * compresses anything.
+ * <p>
+ * The file on disk is checked at most once a second and reloaded when its size or modification
+ * time changed, so an edited GUI is picked up without a restart.
+ */
+public class StaticFileCache {
+
+    private static final long CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** One loaded file and its validators. */
+    public static final class Entry {
+        private final byte[] bytes;
+        private final byte[] gzip; // null if compressing does not make it smaller
+        private final String etag;
+        private final long size;
+        private final long lastModified;
+        private volatile long checkedNanos = System.nanoTime();
+
+        private Entry(byte[] bytes, long size, long lastModified) {
+            this.bytes = bytes;
+            this.size = size;
+            this.lastModified = lastModified;
+            byte[] compressed = gzip(bytes);
+            this.gzip = compressed.length < bytes.length ? compressed : null;
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            this.etag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length);
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public byte[] getGzip() {
+            return gzip;
+        }
+
+        /** Strong ETag of the plain or the gzip variant (each representation needs its own). */
+        public String getEtag(boolean gzipped) {
+            return "\"" + etag + (gzipped ? "-gz" : "") + "\"";
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /** The current content of {@code file}, or null if it does not exist. */
+    public Entry get(Path file) throws IOException {
+        Entry entry = entries.get(file);
+        long now = System.nanoTime();
+        if (entry != null && now - entry.checkedNanos < CHECK_NANOS) {
+            return entry;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            entries.remove(file);
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (entry != null && entry.size == attributes.size() && entry.lastModified == lastModified) {
+            entry.checkedNanos = now;
+            return entry;
+        }
+        entry = new Entry(Files.readAllBytes(file), attributes.size(), lastModified);
+        entries.put(file, entry); // Two threads may load it at once; either copy is fine
+        Log.debug("Loaded {} into memory ({} bytes, gzip {})", file, entry.bytes.length, entry.gzip != null ? entry.gzip.length : "-");
+        return entry;
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            { def.setLevel(Deflater.BEST_COMPRESSION); } // Compressed once per change, so take the smallest
+        }) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by in-memory streams
+        }
+        return out.toByteArray();
+    }
+}
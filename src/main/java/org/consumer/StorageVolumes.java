@@ -0,0 +1,293 @@
+package org.consumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The folders videos are stored in (opt-in with {@code -Dconsumer.volumes=...}): the output
+ * folder first, then any extra folders, ideally each on a disk of its own.
+ * <p>
+ * Each volume keeps its own {@code .consumer} folder with its temp files, part files of chunked
+ * uploads and catalog manifest, so a file is always renamed within one disk and a volume can be
+ * moved as a whole. The dedup index stays with the first volume. Where a new name is stored is
+ * decided by the placement: {@code hash} picks the volume by rendezvous hashing of the name (the
+ * same name always maps to the same volume, and adding a volume only moves the names it wins),
+ * {@code space} picks the volume with the fewest uploads in progress, then the most free space.
+ * Both skip volumes without room for the file. A name that is already stored stays on its volume.
+ * <p>
+ * Each volume can have its own write slots, and in nio mode its own writer threads, so a slow disk
+ * only holds up the uploads that go to it.
+ */
+public class StorageVolumes implements Closeable {
+
+    public enum Placement { HASH, SPACE }
+
+    private static final long SPACE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SPACE_RESERVE_BYTES = 64L * 1024 * 1024; // Kept free on every volume
+
+    /** One storage folder. */
+    public static class Volume {
+        private final int index;
+        private final Path folder;
+        private final long seed; // Rendezvous hashing weight of this volume
+        private final CatalogManifest manifest;
+        private final FileStore store;
+        private final AtomicInteger openUploads = new AtomicInteger();
+        private Semaphore writeSlots; // null = writes are not limited per volume
+        private ExecutorService writerPool; // nio mode with several volumes, else null
+        private volatile long usableBytes = Long.MAX_VALUE;
+        private volatile long usableCheckedNanos = System.nanoTime() - SPACE_CHECK_NANOS;
+
+        private Volume(int index, Path folder) throws IOException {
+            this.index = index;
+            this.folder = folder;
+            this.seed = mix(folder.toAbsolutePath().normalize().toString().hashCode());
+            Files.createDirectories(folder);
+            this.store = Files.getFileStore(folder);
+            this.manifest = CatalogManifest.load(IngestContext.stateFolderOf(folder));
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Path getFolder() {
+            return folder;
+        }
+
+        public Path resolve(String fileName) {
+            return folder.resolve(fileName);
+        }
+
+        public CatalogManifest getManifest() {
+            return manifest;
+        }
+
+        /** Writer threads of this volume in nio mode, or null to use the shared pool. */
+        public ExecutorService getWriterPool() {
+            return writerPool;
+        }
+
+        public Semaphore getWriteSlots() {
+            return writeSlots;
+        }
+
+        public int getOpenUploads() {
+            return openUploads.get();
+        }
+
+        void uploadOpened() {
+            openUploads.incrementAndGet();
+        }
+
+        void uploadClosed() {
+            openUploads.decrementAndGet();
+        }
+
+        /** Free space for new files, refreshed at most once a second. */
+        public long getUsableBytes() {
+            long now = System.nanoTime();
+            if (now - usableCheckedNanos >= SPACE_CHECK_NANOS) {
+                usableCheckedNanos = now;
+                try {
+                    usableBytes = store.getUsableSpace();
+                } catch (IOException e) {
+                    usableBytes = 0; // Treat an unreadable volume as full
+                }
+            }
+            return usableBytes;
+        }
+
+        boolean hasRoomFor(long bytes) {
+            return getUsableBytes() >= bytes + SPACE_RESERVE_BYTES;
+        }
+    }
+
+    private final List<Volume> volumes;
+    private final Placement placement;
+    private final ConcurrentHashMap<String, Volume> locations = new ConcurrentHashMap<>(); // Name -> volume holding its file
+
+    private StorageVolumes(List<Volume> volumes, Placement placement) {
+        this.volumes = Collections.unmodifiableList(volumes);
+        this.placement = placement;
+    }
+
+    /** Opens the volumes (creating missing folders) and loads their manifests; the first folder is the primary one. */
+    public static StorageVolumes open(List<Path> folders, Placement placement) throws IOException {
+        List<Volume> volumes = new ArrayList<>();
+        try {
+            for (Path folder : folders) {
+                volumes.add(new Volume(volumes.size(), folder));
+            }
+        } catch (IOException e) {
+            volumes.forEach(volume -> volume.manifest.close());
+            throw new IOException(folders.get(volumes.size()) + ": " + e.getMessage(), e);
+        }
+        StorageVolumes storage = new StorageVolumes(volumes, placement);
+        for (Volume volume : volumes) {
+            for (String name : volume.manifest.getNames()) {
+                storage.locations.putIfAbsent(name, volume); // A name on two volumes is served from the first
+            }
+        }
+        return storage;
+    }
+
+    /** Limits concurrent disk writes to {@code slots} per volume. */
+    public void limitWrites(int slots) {
+        for (Volume volume : volumes) {
+            volume.writeSlots = new Semaphore(slots);
+        }
+    }
+
+    /** Gives every volume writer threads of its own (nio mode); they are stopped by the caller. */
+    public void startWriterPools(int threads) {
+        for (Volume volume : volumes) {
+            volume.writerPool = Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "volume-" + volume.index + "-writer"));
+        }
+    }
+
+    public List<Volume> getVolumes() {
+        return volumes;
+    }
+
+    /** The output folder: holds the state that is not per volume (dedup index). */
+    public Volume getPrimary() {
+        return volumes.get(0);
+    }
+
+    public boolean isSingle() {
+        return volumes.size() == 1;
+    }
+
+    /** Adds every name the manifests list to the catalog, volume by volume. */
+    public void listInto(VideoCatalog catalog) {
+        for (Volume volume : volumes) {
+            for (String name : volume.manifest.getNames()) {
+                catalog.add(name);
+            }
+        }
+    }
+
+    /** Volume a new upload of {@code fileName} ({@code size} bytes) is written to. */
+    public Volume place(String fileName, long size) {
+        if (isSingle()) {
+            return volumes.get(0);
+        }
+        Volume current = locations.get(fileName);
+        if (current != null && current.hasRoomFor(size)) {
+            return current; // Replace it where it is, so links and the old copy stay together
+        }
+        Volume best = null;
+        if (placement == Placement.SPACE) {
+            for (Volume volume : volumes) {
+                if (volume.hasRoomFor(size) && (best == null || volume.getOpenUploads() < best.getOpenUploads()
+                        || (volume.getOpenUploads() == best.getOpenUploads() && volume.getUsableBytes() > best.getUsableBytes()))) {
+                    best = volume;
+                }
+            }
+        } else {
+            long nameHash = mix(hash64(fileName));
+            long bestScore = 0;
+            for (Volume volume : volumes) {
+                long score = mix(nameHash ^ volume.seed);
+                if (volume.hasRoomFor(size) && (best == null || Long.compareUnsigned(score, bestScore) > 0)) {
+                    best = volume;
+                    bestScore = score;
+                }
+            }
+        }
+        if (best == null) {
+            best = current != null ? current : volumes.get(0); // Everything is full: the write will fail there
+        }
+        return best;
+    }
+
+    /** The file holding {@code fileName}, or null if no volume has it. */
+    public Path locate(String fileName) {
+        Volume volume = locations.get(fileName);
+        return volume == null ? null : volume.resolve(fileName);
+    }
+
+    public Volume locationOf(String fileName) {
+        return locations.get(fileName);
+    }
+
+    /**
+     * Records that {@code volume} now holds the file of {@code fileName}.
+     *
+     * @return the volume that held it before, if it was another one
+     */
+    public Volume stored(Volume volume, String fileName) {
+        Volume previous = locations.put(fileName, volume);
+        return previous == volume ? null : previous;
+    }
+
+    /** Records a file found on {@code volume}; a name already stored elsewhere keeps its location. */
+    public void found(Volume volume, String fileName) {
+        locations.putIfAbsent(fileName, volume);
+    }
+
+    /**
+     * Records that {@code volume} no longer holds {@code fileName}.
+     *
+     * @return true if no volume holds it any more
+     */
+    public boolean removed(Volume volume, String fileName) {
+        locations.remove(fileName, volume);
+        return !locations.containsKey(fileName);
+    }
+
+    // --- Metrics ---
+
+    String statsJson() {
+        StringBuilder json = new StringBuilder(128 * volumes.size()).append('[');
+        for (Volume volume : volumes) {
+            if (volume.index > 0) {
+                json.append(',');
+            }
+            json.append("{\"path\":\"").append(volume.folder.toAbsolutePath().toString().replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"files\":").append(volume.manifest.size())
+                    .append(",\"openUploads\":").append(volume.getOpenUploads())
+                    .append(",\"usableBytes\":").append(volume.getUsableBytes()).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    // --- Hashing ---
+
+    static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Finalizer of SplitMix64: spreads every input bit over the whole result
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    @Override
+    public void close() {
+        for (Volume volume : volumes) {
+            volume.manifest.close();
+        }
+    }
+}
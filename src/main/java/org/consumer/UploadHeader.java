@@ -0,0 +1,155 @@
+package org.consumer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+
+/**
+ * A parsed upload header (see {@link UploadProtocol}). The same parser serves the blocking
+ * workers (reading a stream) and the selector loop (reading whatever has arrived in a buffer).
+ */
+public class UploadHeader {
+
+    private final int flags;
+    private final byte[] contentHash; // null unless FLAG_CONTENT_HASH
+    private final String fileName;
+    private final long fileSize; // Length of the body on this connection
+
+    // FLAG_CHUNKED fields
+    private final long totalSize;
+    private final int chunkSize;
+    private final int chunkIndex;
+
+    private UploadHeader(int flags, byte[] contentHash, String fileName, long fileSize, long totalSize, int chunkSize, int chunkIndex) {
+        this.flags = flags;
+        this.contentHash = contentHash;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.chunkIndex = chunkIndex;
+    }
+
+    /** Reads a complete header, blocking until it has arrived. */
+    public static UploadHeader read(DataInputStream in) throws IOException {
+        return parse(new Source() {
+            public int readInt() throws IOException { return in.readInt(); }
+            public long readLong() throws IOException { return in.readLong(); }
+            public void readFully(byte[] bytes) throws IOException { in.readFully(bytes); }
+        });
+    }
+
+    /**
+     * Parses a header from the readable bytes of {@code buffer}. Returns null (position unchanged)
+     * if the header is not complete yet; otherwise the buffer is positioned at the first body byte.
+     * Invalid headers fail as soon as the offending field is visible.
+     */
+    public static UploadHeader tryParse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        try {
+            return parse(new Source() {
+                public int readInt() { return buffer.getInt(); }
+                public long readLong() { return buffer.getLong(); }
+                public void readFully(byte[] bytes) { buffer.get(bytes); }
+            });
+        } catch (BufferUnderflowException e) {
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    private static UploadHeader parse(Source in) throws IOException {
+        int flags = 0;
+        byte[] contentHash = null;
+        long totalSize = -1;
+        int chunkSize = 0;
+        int chunkIndex = 0;
+
+        // 1. Read filename length (or the extended header marker)
+        int fileNameLength = in.readInt();
+        if (fileNameLength == UploadProtocol.EXTENDED_MAGIC) {
+            flags = in.readInt();
+            UploadProtocol.checkFlags(flags);
+            if ((flags & UploadProtocol.FLAG_CONTENT_HASH) != 0) {
+                contentHash = new byte[UploadProtocol.CONTENT_HASH_LENGTH];
+                in.readFully(contentHash);
+            }
+            if ((flags & UploadProtocol.FLAG_CHUNKED) != 0) {
+                totalSize = in.readLong();
+                chunkSize = in.readInt();
+                chunkIndex = in.readInt();
+                UploadProtocol.checkChunkFields(totalSize, chunkSize, chunkIndex);
+            }
+            fileNameLength = in.readInt();
+        }
+        UploadProtocol.checkFileNameLength(fileNameLength);
+
+        // 2. Read filename bytes
+        byte[] fileNameBytes = new byte[fileNameLength];
+        in.readFully(fileNameBytes);
+        String fileName = UploadProtocol.sanitizeFileName(fileNameBytes);
+
+        // 3. Read file size
+        long fileSize = in.readLong();
+        UploadProtocol.checkFileSize(fileSize);
+
+        if (totalSize < 0) {
+            totalSize = fileSize; // Not chunked: the body is the whole file
+        }
+        return new UploadHeader(flags, contentHash, fileName, fileSize, totalSize, chunkSize, chunkIndex);
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasContentHash() {
+        return contentHash != null;
+    }
+
+    /** Announced SHA-256 as lowercase hex, or null. */
+    public String getContentHashHex() {
+        return contentHash == null ? null : HexFormat.of().formatHex(contentHash);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public boolean isSession() {
+        return (flags & UploadProtocol.FLAG_SESSION) != 0;
+    }
+
+    public boolean isChunked() {
+        return (flags & UploadProtocol.FLAG_CHUNKED) != 0;
+    }
+
+    public boolean isChunkStatusQuery() {
+        return isChunked() && chunkIndex == UploadProtocol.CHUNK_STATUS_QUERY;
+    }
+
+    /** Size of the whole file (equals {@link #getFileSize()} unless chunked). */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    private interface Source {
+        int readInt() throws IOException;
+        long readLong() throws IOException;
+        void readFully(byte[] bytes) throws IOException;
+    }
+}
@@ -0,0 +1,108 @@
+package org.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by every ingest path.
+ * <p>
+ * A legacy producer sends: int filename length, filename bytes (UTF-8), long file size, file content.
+ * <p>
+ * An extended header starts with {@link #EXTENDED_MAGIC} in place of the filename length (it is
+ * larger than any legal length, so legacy producers can never send it by accident), followed by
+ * an int of feature flags, the fields of each flag in flag order, and then the legacy header.
+ */
+public final class UploadProtocol {
+
+    public static final int MAX_FILENAME_LENGTH = 1024;
+
+    // Upper bound of any header, legacy or extended; the non-blocking reader buffers this much
+    public static final int MAX_HEADER_SIZE = 4096;
+
+    public static final int EXTENDED_MAGIC = 0x50335846; // "P3XF"
+
+    // Flag: a SHA-256 of the content (32 bytes) follows the flags. The consumer answers with one
+    // reply byte before the body: REPLY_SEND_BODY, or REPLY_DUPLICATE if it already has that content
+    // (the producer then skips the body).
+    public static final int FLAG_CONTENT_HASH = 1;
+    public static final int CONTENT_HASH_LENGTH = 32;
+
+    // Flag: the body is one chunk of a larger file. Fields: long total file size, int chunk size,
+    // int chunk index (chunk i covers bytes [i * chunkSize, min((i + 1) * chunkSize, total))). The
+    // legacy file size field carries the length of this chunk. Chunks of one file may arrive in any
+    // order over any number of connections; the file is published once every chunk is present.
+    // After the chunk body the consumer replies REPLY_CHUNK_STORED, REPLY_FILE_COMPLETE or
+    // REPLY_CHUNK_FAILED. Chunk index -1 (with length 0) asks which chunks are present instead: the
+    // reply is an int byte count followed by a bitmap (bit i = chunk i, least significant bit first).
+    public static final int FLAG_CHUNKED = 2;
+    public static final int CHUNK_STATUS_QUERY = -1;
+
+    // Flag: session mode. The connection stays open after this upload and the next header follows
+    // the body directly; the producer ends the session by closing the connection between uploads.
+    // Each upload is answered with an ack frame (byte status, int name length, stored name UTF-8),
+    // in order, so the producer can send the next file without waiting. The status is
+    // REPLY_FILE_SAVED / REPLY_FILE_FAILED, or the chunk reply for a chunk (which then is not sent
+    // on its own). A chunk status query is answered with the bitmap only.
+    public static final int FLAG_SESSION = 4;
+
+    public static final int KNOWN_FLAGS = FLAG_CONTENT_HASH | FLAG_CHUNKED | FLAG_SESSION;
+
+    public static final byte REPLY_SEND_BODY = 0;
+    public static final byte REPLY_DUPLICATE = 1;
+    public static final byte REPLY_CHUNK_STORED = 2;
+    public static final byte REPLY_FILE_COMPLETE = 3;
+    public static final byte REPLY_CHUNK_FAILED = 4;
+    public static final byte REPLY_FILE_SAVED = 5;
+    public static final byte REPLY_FILE_FAILED = 6;
+
+    // Sent instead of any other reply, right after accepting, when the consumer has no room for
+    // the connection: REPLY_BUSY, then an int retry-after hint in milliseconds, then the connection
+    // is closed. A producer that sees its connection end before the reply it expected can read
+    // the socket for this frame and wait that long before reconnecting (legacy producers just see
+    // the close, as before).
+    public static final byte REPLY_BUSY = 7;
+
+    private UploadProtocol() {
+    }
+
+    public static byte[] ackFrame(byte status, String fileName) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + Integer.BYTES + name.length).put(status).putInt(name.length).put(name).array();
+    }
+
+    public static void checkFileNameLength(int fileNameLength) throws IOException {
+        if (fileNameLength <= 0 || fileNameLength > MAX_FILENAME_LENGTH) { // Basic sanity check
+            throw new IOException("Invalid filename length received: " + fileNameLength);
+        }
+    }
+
+    public static void checkFlags(int flags) throws IOException {
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported upload header flags: 0x" + Integer.toHexString(flags));
+        }
+    }
+
+    public static String sanitizeFileName(byte[] fileNameBytes) throws IOException {
+        String fileName = new String(fileNameBytes, StandardCharsets.UTF_8);
+
+        // Sanitize filename (important for security!)
+        fileName = fileName.replaceAll("[^a-zA-Z0-9.\\-_]", "_"); // Replace unsafe chars
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+            throw new IOException("Invalid filename after sanitization.");
+        }
+        return fileName;
+    }
+
+    public static void checkChunkFields(long totalSize, int chunkSize, int chunkIndex) throws IOException {
+        if (totalSize < 0 || chunkSize <= 0 || chunkIndex < CHUNK_STATUS_QUERY) {
+            throw new IOException("Invalid chunk fields received: total " + totalSize + ", chunk size " + chunkSize + ", index " + chunkIndex);
+        }
+    }
+
+    public static void checkFileSize(long fileSize) throws IOException {
+        if (fileSize < 0) {
+            throw new IOException("Invalid file size received: " + fileSize);
+        }
+    }
+}
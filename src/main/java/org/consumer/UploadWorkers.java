@@ -0,0 +1,165 @@
+package org.consumer;
+
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connection queue and worker threads of blocking ingest mode.
+ * <p>
+ * With {@code consumer.workers.max} above c the pool is elastic: when a connection has waited in
+ * the queue longer than {@code consumer.workers.targetWaitMs}, another worker is started (at most
+ * one per target interval, up to the maximum), and workers beyond c stop again after sitting idle.
+ */
+public class UploadWorkers {
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Queue entry: the socket and when it was queued
+    private static class Pending {
+        final Socket socket;
+        final long queuedNanos;
+
+        Pending(Socket socket, long queuedNanos) {
+            this.socket = socket;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private static final Pending STOP = new Pending(null, 0); // Queued by stop(), one per worker
+
+    private final BlockingQueue<Pending> queue;
+    private final IngestContext context;
+    private final ExecutorService pool;
+    private final int coreWorkers;
+    private final int maxWorkers;
+    private final long targetWaitNanos;
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private final AtomicLong lastGrowthNanos = new AtomicLong(System.nanoTime());
+
+    /** {@code pool} must be able to run {@code maxWorkers} tasks at once. */
+    public UploadWorkers(int queueSize, int coreWorkers, IngestContext context, ExecutorService pool) {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.context = context;
+        this.pool = pool;
+        this.coreWorkers = coreWorkers;
+        this.maxWorkers = Math.max(coreWorkers, context.getOptions().getMaxWorkers());
+        this.targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(context.getOptions().getTargetQueueWaitMillis());
+    }
+
+    public boolean isElastic() {
+        return maxWorkers > coreWorkers;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public void start() {
+        for (int i = 0; i < coreWorkers; i++) {
+            startWorker();
+        }
+    }
+
+    /**
+     * Lets the workers handle what is already queued and then end. Workers that cannot be told
+     * within a second each (queue full and every worker stuck) are left to the pool shutdown.
+     */
+    public void stop() {
+        try {
+            for (int i = liveWorkers.get(); i > 0; i--) {
+                if (!queue.offer(STOP, 1, TimeUnit.SECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Queues an accepted connection; false if the queue is full. */
+    public boolean offer(Socket socket) {
+        long now = System.nanoTime();
+        boolean queued = queue.offer(new Pending(socket, now));
+        if (isElastic()) {
+            // Workers stuck on slow uploads take nothing off the queue, so also look at its head here
+            Pending oldest = queue.peek();
+            if (oldest != null && now - oldest.queuedNanos > targetWaitNanos) {
+                grow(now, now - oldest.queuedNanos);
+            }
+        }
+        return queued;
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    public int getLiveWorkers() {
+        return liveWorkers.get();
+    }
+
+    private boolean startWorker() {
+        liveWorkers.incrementAndGet();
+        try {
+            pool.execute(new FileHandlerTask(this, context));
+            return true;
+        } catch (RejectedExecutionException e) {
+            liveWorkers.decrementAndGet(); // Shutting down
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the next connection. Returns null when the calling worker should stop: it has
+     * been idle and there are more workers than c, or the pool is stopping.
+     */
+    Socket next() throws InterruptedException {
+        Pending pending;
+        if (!isElastic()) {
+            pending = queue.take();
+        } else {
+            while ((pending = queue.poll(IDLE_NANOS, TimeUnit.NANOSECONDS)) == null) {
+                int live = liveWorkers.get();
+                if (live > coreWorkers && liveWorkers.compareAndSet(live, live - 1)) {
+                    Log.info("Worker idle, stopping ({} workers left).", live - 1);
+                    return null;
+                }
+            }
+        }
+
+        if (pending == STOP) {
+            liveWorkers.decrementAndGet();
+            return null;
+        }
+
+        long now = System.nanoTime();
+        long waited = now - pending.queuedNanos;
+        context.getMetrics().queueWait(waited);
+        context.getAdmission().connectionDrained();
+        if (waited > targetWaitNanos && isElastic()) {
+            grow(now, waited);
+        }
+        return pending.socket;
+    }
+
+    private void grow(long now, long waited) {
+        long last = lastGrowthNanos.get();
+        int live = liveWorkers.get();
+        if (live >= maxWorkers || now - last < targetWaitNanos) {
+            return; // Full size, or the last added worker has not had time to make a difference
+        }
+        if (!lastGrowthNanos.compareAndSet(last, now)) {
+            return; // Another worker is growing the pool
+        }
+        if (startWorker()) {
+            Log.info("Connection waiting {} ms in the queue, started another worker ({}/{}).",
+                    TimeUnit.NANOSECONDS.toMillis(waited), live + 1, maxWorkers);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.consumer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The list of videos served to the GUI. Membership checks are lock-free; additions and removals
+ * take a short lock, bump the version and are kept in a bounded change log so clients can ask for
+ * what changed since the version they have. The full list is serialized at most once per version.
+ * <p>
+ * Clients get versions as tokens {@code <epoch>-<version>} ({@link #tokenOf}), where the epoch is
+ * random per instance: a token from before a restart never matches, however the numbers compare.
+ */
+public class VideoCatalog {
+
+    private static final int MAX_RETAINED_CHANGES = 10_000;
+
+    private final Set<String> names = ConcurrentHashMap.newKeySet(); // Lock-free contains
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private final LinkedHashSet<String> ordered = new LinkedHashSet<>(); // Catalog order
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long oldestDeltaVersion; // Deltas can be computed from this version on
+
+    private final String epoch = String.format("%08x", ThreadLocalRandom.current().nextInt());
+    private volatile long version;
+    private volatile Snapshot snapshot;
+
+    public VideoCatalog() {
+        this.version = System.currentTimeMillis();
+        this.oldestDeltaVersion = version;
+    }
+
+    /** Adds a video; returns false if it was already listed. */
+    public boolean add(String name) {
+        if (names.contains(name)) {
+            return false; // Re-upload of a listed name: no lock needed
+        }
+        synchronized (this) {
+            if (!ordered.add(name)) {
+                return false;
+            }
+            names.add(name);
+            record(name, true);
+        }
+        fireChanged();
+        return true;
+    }
+
+    /** Removes a video; returns false if it was not listed. */
+    public boolean remove(String name) {
+        if (!names.contains(name)) {
+            return false;
+        }
+        synchronized (this) {
+            if (!ordered.remove(name)) {
+                return false;
+            }
+            names.remove(name);
+            record(name, false);
+        }
+        fireChanged();
+        return true;
+    }
+
+    /** Runs {@code listener} after every change, on the thread that made it; it must not block. */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /** The version as given to clients (JSON, ETags, event ids). */
+    public String tokenOf(long version) {
+        return epoch + "-" + version;
+    }
+
+    public String getVersionToken() {
+        return tokenOf(version);
+    }
+
+    /**
+     * The version of a token from a client, or 0 if another instance (an earlier run) issued it:
+     * that is older than any delta, so the client is told to reload.
+     *
+     * @throws NumberFormatException if it is not a version token
+     */
+    public long versionOf(String token) {
+        int dash = token.lastIndexOf('-');
+        long tokenVersion = Long.parseLong(token.substring(dash + 1));
+        return dash > 0 && token.substring(0, dash).equals(epoch) ? tokenVersion : 0;
+    }
+
+    /** The current list and its JSON, shared by every reader until the next change. */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current != null && current.version == version) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current == null || current.version != version) {
+                current = new Snapshot(version, ordered.toArray(new String[0]));
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Net additions and removals after {@code since}, or null if that version is unknown or older
+     * than the retained change log (the client must then reload the whole list).
+     */
+    public synchronized Delta changesSince(long since) {
+        if (since < oldestDeltaVersion || since > version) {
+            return null;
+        }
+        Map<String, Boolean> net = new LinkedHashMap<>();
+        for (Change change : changes) {
+            if (change.version > since) {
+                net.remove(change.name); // Keep the last change of each name, in order
+                net.put(change.name, change.added);
+            }
+        }
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        net.forEach((name, wasAdded) -> (wasAdded ? added : removed).add(name));
+        return new Delta(version, added, removed);
+    }
+
+    private void record(String name, boolean added) {
+        long next = version + 1;
+        changes.addLast(new Change(next, name, added));
+        if (changes.size() > MAX_RETAINED_CHANGES) {
+            oldestDeltaVersion = changes.removeFirst().version;
+        }
+        version = next;
+    }
+
+    private void fireChanged() {
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+
+    static String toJsonArray(List<String> values) {
+        StringBuilder json = new StringBuilder(values.size() * 24 + 2).append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(values.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append('"'); // Basic JSON escaping
+        }
+        return json.append(']').toString();
+    }
+
+    private static class Change {
+        final long version;
+        final String name;
+        final boolean added;
+
+        Change(long version, String name, boolean added) {
+            this.version = version;
+            this.name = name;
+            this.added = added;
+        }
+    }
+
+    public static class Snapshot {
+
+        private final long version;
+        private final List<String> names;
+        private final byte[] json;
+
+        private Snapshot(long version, String[] names) {
+            this.version = version;
+            this.names = List.of(names);
+            this.json = toJsonArray(this.names).getBytes(StandardCharsets.UTF_8);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        /** The whole list as a JSON array of names. */
+        public byte[] getJson() {
+            return json;
+        }
+    }
+
+    public static class Delta {
+
+        private final long version;
+        private final List<String> added;
+        private final List<String> removed;
+
+        private Delta(long version, List<String> added, List<String> removed) {
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<String> getAdded() {
+            return added;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package org.consumer;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server-Sent Events stream of catalog changes ({@code /api/events}).
+ * <p>
+ * A subscribing request only sends the response headers and returns, so no HTTP thread stays
+ * parked on an open stream. One broadcaster thread then queues events for every stream: when the
+ * catalog changes it sends each viewer the delta since the version that viewer has, as
+ * {@code event: changes} with the new version token as the event id (the same JSON as
+ * {@code /api/videos?since=}). A browser that reconnects sends that id back as Last-Event-ID and
+ * gets what it missed, or {@code event: reset} if it is too far behind.
+ * <p>
+ * Each stream has a small queue written by one of at most {@link #MAX_SENDERS} sender threads
+ * only while it has events, so a viewer that stops reading never holds up the others. A viewer
+ * with {@link #MAX_QUEUED_EVENTS} events queued, or whose write has not returned for
+ * {@link #MAX_WRITE_MILLIS}, is dropped: the HTTP server has no write timeout, so its sender is
+ * interrupted, which closes the connection and frees the thread.
+ */
+public class VideoEvents implements Closeable {
+
+    private static final long HEARTBEAT_MILLIS = 15_000; // Also how fast dead viewers are noticed
+    private static final int RETRY_MILLIS = 5_000;
+    static final int MAX_QUEUED_EVENTS = 64;
+    static final long MAX_WRITE_MILLIS = 10_000;
+    static final int MAX_SENDERS = 16;
+
+    private final VideoCatalog catalog;
+    private final long heartbeatMillis;
+    private final long maxWriteMillis;
+    private final Queue<Subscriber> newSubscribers = new ConcurrentLinkedQueue<>();
+    private final List<Subscriber> subscribers = new ArrayList<>(); // Broadcaster thread only
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final Thread broadcaster;
+    private final ThreadPoolExecutor senders;
+    private boolean wakeUpPending = false; // Guarded by this
+    private volatile boolean closed = false;
+
+    public VideoEvents(VideoCatalog catalog) {
+        this(catalog, HEARTBEAT_MILLIS, MAX_WRITE_MILLIS);
+    }
+
+    // Shorter timings for tests
+    VideoEvents(VideoCatalog catalog, long heartbeatMillis, long maxWriteMillis) {
+        this.catalog = catalog;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxWriteMillis = maxWriteMillis;
+        // Streams waiting for a sender only fall behind; idle senders end after a while
+        this.senders = new ThreadPoolExecutor(MAX_SENDERS, MAX_SENDERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "video-events-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+        senders.allowCoreThreadTimeOut(true);
+        catalog.addChangeListener(this::wakeUp);
+        broadcaster = new Thread(this::run, "video-events");
+        broadcaster.setDaemon(true);
+        broadcaster.start();
+    }
+
+    /**
+     * Opens an event stream on the exchange and hands it to the broadcaster.
+     *
+     * @param since catalog version the viewer already has, or -1 for "from now on"
+     */
+    public void subscribe(HttpExchange exchange, long since) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // Chunked, open-ended
+        Subscriber subscriber = new Subscriber(exchange, since < 0 ? catalog.getVersion() : since);
+        openStreams.incrementAndGet();
+        if (closed) {
+            subscriber.drop();
+            return;
+        }
+        newSubscribers.add(subscriber);
+        wakeUp();
+    }
+
+    /** Event streams not closed yet. */
+    int openStreams() {
+        return openStreams.get();
+    }
+
+    /** Sender threads writing right now. */
+    int busySenders() {
+        return senders.getActiveCount();
+    }
+
+    private synchronized void wakeUp() {
+        wakeUpPending = true;
+        notifyAll();
+    }
+
+    private void run() {
+        long lastHeartbeat = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                synchronized (this) {
+                    long waitMillis = lastHeartbeat + heartbeatMillis - System.currentTimeMillis();
+                    while (!wakeUpPending && !closed && waitMillis > 0) {
+                        wait(waitMillis);
+                        waitMillis = lastHeartbeat + heartbeatMillis - System.currentTimeMillis();
+                    }
+                    wakeUpPending = false;
+                }
+
+                Subscriber subscriber;
+                while ((subscriber = newSubscribers.poll()) != null) {
+                    if (subscriber.offer("retry: " + RETRY_MILLIS + "\n\n")) {
+                        subscribers.add(subscriber);
+                    }
+                }
+
+                boolean heartbeat = System.currentTimeMillis() - lastHeartbeat >= heartbeatMillis;
+                if (heartbeat) {
+                    lastHeartbeat = System.currentTimeMillis();
+                }
+                broadcast(heartbeat);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscribers.forEach(Subscriber::drop);
+            subscribers.clear();
+            newSubscribers.forEach(Subscriber::drop);
+        }
+    }
+
+    private void broadcast(boolean heartbeat) {
+        long version = catalog.getVersion();
+        Map<Long, Event> eventsBySince = new HashMap<>(); // Viewers at the same version share one event
+        Iterator<Subscriber> it = subscribers.iterator();
+        while (it.hasNext()) {
+            Subscriber subscriber = it.next();
+            boolean sent;
+            if (subscriber.version != version) {
+                Event event = eventsBySince.computeIfAbsent(subscriber.version, this::changesEvent);
+                sent = subscriber.offer(event.text);
+                subscriber.version = event.version;
+            } else {
+                sent = !heartbeat || subscriber.offer(": ping\n\n"); // Comment line: ignored by the browser
+            }
+            if (!sent) {
+                it.remove();
+            }
+        }
+    }
+
+    private Event changesEvent(long since) {
+        VideoCatalog.Delta delta = catalog.changesSince(since);
+        if (delta == null) {
+            long version = catalog.getVersion();
+            return new Event(version, "id: " + catalog.tokenOf(version) + "\nevent: reset\ndata: {}\n\n");
+        }
+        String token = catalog.tokenOf(delta.getVersion());
+        return new Event(delta.getVersion(), "id: " + token + "\nevent: changes\ndata: {\"version\":\"" + token
+                + "\",\"added\":" + VideoCatalog.toJsonArray(delta.getAdded())
+                + ",\"removed\":" + VideoCatalog.toJsonArray(delta.getRemoved()) + "}\n\n");
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        wakeUp();
+        try {
+            broadcaster.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        senders.shutdown();
+    }
+
+    private static class Event {
+        final long version;
+        final String text;
+
+        Event(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    private class Subscriber {
+
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        long version; // Catalog version this viewer has seen; broadcaster thread only
+
+        // Guarded by this
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        private boolean sending = false; // A sender task is draining the queue
+        private Thread sender; // The thread running that task, once it runs
+        private long writeStartedMillis = 0; // 0 while no write is in progress
+        private boolean dropped = false;
+        private boolean exchangeClosed = false;
+
+        Subscriber(HttpExchange exchange, long version) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.version = version;
+        }
+
+        /** Broadcaster: queues an event; false if the viewer is gone or too far behind (then dropped). */
+        boolean offer(String event) {
+            boolean behind;
+            synchronized (this) {
+                if (dropped) {
+                    return false;
+                }
+                boolean stalled = writeStartedMillis > 0 && System.currentTimeMillis() - writeStartedMillis > maxWriteMillis;
+                behind = stalled || queue.size() >= MAX_QUEUED_EVENTS;
+                if (!behind) {
+                    queue.add(event);
+                    if (sending) {
+                        return true;
+                    }
+                    sending = true;
+                }
+            }
+            if (behind) {
+                Log.info("Dropping an event stream that stopped reading.");
+                drop();
+                return false;
+            }
+            try {
+                senders.execute(this::drain);
+                return true;
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    sending = false;
+                }
+                drop(); // Shutting down
+                return false;
+            }
+        }
+
+        // Sender thread: writes until the queue is empty; a write may block, but only this viewer waits
+        private void drain() {
+            synchronized (this) {
+                sender = Thread.currentThread();
+            }
+            try {
+                String event;
+                while ((event = next()) != null) {
+                    out.write(event.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Also how an interrupted write ends (ClosedByInterruptException)
+                synchronized (this) {
+                    dropped = true;
+                    queue.clear();
+                    sending = false;
+                }
+            }
+            boolean closeNow;
+            synchronized (this) {
+                sender = null;
+                writeStartedMillis = 0;
+                closeNow = dropped && !sending;
+            }
+            Thread.interrupted(); // An interrupt that came between writes must not reach the next stream
+            if (closeNow) {
+                closeExchange();
+            }
+        }
+
+        // Next event to write; null (and the sender stops) when there is none or the viewer was dropped
+        private synchronized String next() {
+            writeStartedMillis = 0;
+            String event = dropped ? null : queue.poll();
+            if (event == null) {
+                sending = false;
+            } else {
+                writeStartedMillis = System.currentTimeMillis();
+            }
+            return event;
+        }
+
+        /**
+         * Ends the stream. A write in progress may never return on its own, so its sender is
+         * interrupted: that closes the connection and the sender closes the exchange.
+         */
+        void drop() {
+            boolean closeNow;
+            synchronized (this) {
+                dropped = true;
+                queue.clear();
+                closeNow = !sending;
+                if (sender != null) {
+                    sender.interrupt();
+                }
+            }
+            if (closeNow) {
+                closeExchange();
+            }
+        }
+
+        private void closeExchange() {
+            synchronized (this) {
+                if (exchangeClosed) {
+                    return;
+                }
+                exchangeClosed = true;
+            }
+            openStreams.decrementAndGet();
+            try { out.close(); } catch (IOException e) { /* Ignore closing error */ }
+            exchange.close();
+        }
+    }
+}
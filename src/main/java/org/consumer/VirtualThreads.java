@@ -0,0 +1,46 @@
+package org.consumer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads without requiring a newer JDK to build: the project compiles
+ * against Java 17, and {@code Executors.newVirtualThreadPerTaskExecutor()} is looked up at runtime.
+ */
+public final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null; // Runtime older than Java 21
+        }
+    }
+
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * One new virtual thread per task. On runtimes without virtual threads this falls back to a
+     * cached pool of platform threads, so the mode still works, just without the cheap threads.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String purpose) {
+        if (isSupported()) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("Could not create virtual thread executor for {}: {}", purpose, e.getMessage());
+            }
+        } else {
+            Log.warn("Virtual threads need Java 21+ (running {}), using platform threads for {}.", Runtime.version(), purpose);
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,126 @@
+package org.consumer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangesTest {
+
+    private static void assertRange(ByteRanges.Range range, long start, long end) {
+        assertEquals(start, range.getStart(), "start");
+        assertEquals(end, range.getEnd(), "end");
+    }
+
+    @Test
+    void singleRange() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=100-199", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 100, 199);
+        assertEquals(100, ranges.get(0).length());
+    }
+
+    @Test
+    void openEndedRangeRunsToTheEndOfTheFile() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=900-", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 900, 999);
+    }
+
+    @Test
+    void endBeyondTheFileIsClamped() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=900-5000", 1000);
+        assertRange(ranges.get(0), 900, 999);
+    }
+
+    @Test
+    void suffixRangeIsTheLastBytes() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=-100", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 900, 999);
+    }
+
+    @Test
+    void suffixLongerThanTheFileIsTheWholeFile() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=-5000", 1000);
+        assertRange(ranges.get(0), 0, 999);
+    }
+
+    @Test
+    void emptySuffixIsUnsatisfiable() {
+        assertEquals(List.of(), ByteRanges.parse("bytes=-0", 1000));
+    }
+
+    @Test
+    void emptySuffixIsSkippedNextToSatisfiableRanges() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=-0, 0-9", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+    }
+
+    @Test
+    void startBeyondTheFileIsUnsatisfiable() {
+        assertEquals(List.of(), ByteRanges.parse("bytes=1000-1100", 1000));
+        assertEquals(List.of(), ByteRanges.parse("bytes=0-", 0));
+    }
+
+    @Test
+    void unsatisfiablePiecesOfAListAreDropped() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=5000-6000,0-9", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+    }
+
+    @Test
+    void multipleRangesAreSorted() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=500-599, 0-9, -10", 1000);
+        assertEquals(3, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+        assertRange(ranges.get(1), 500, 599);
+        assertRange(ranges.get(2), 990, 999);
+    }
+
+    @Test
+    void overlappingAndAdjacentRangesAreMerged() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=50-149,0-99,150-199,300-399,350-", 1000);
+        assertEquals(2, ranges.size());
+        assertRange(ranges.get(0), 0, 199);
+        assertRange(ranges.get(1), 300, 999);
+    }
+
+    @Test
+    void repeatedRangeIsSentOnce() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=0-99,0-99,0-99", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 99);
+    }
+
+    @Test
+    void tooManyRangesServeTheWholeFile() {
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i <= ByteRanges.MAX_RANGES; i++) {
+            header.append(i > 0 ? "," : "").append(i * 10).append('-').append(i * 10 + 1);
+        }
+        assertNull(ByteRanges.parse(header.toString(), 1000));
+    }
+
+    @Test
+    void malformedHeadersAreIgnored() {
+        assertNull(ByteRanges.parse(null, 1000));
+        assertNull(ByteRanges.parse("items=0-9", 1000));
+        assertNull(ByteRanges.parse("bytes=", 1000));
+        assertNull(ByteRanges.parse("bytes=10", 1000));
+        assertNull(ByteRanges.parse("bytes=20-10", 1000));
+        assertNull(ByteRanges.parse("bytes=+5-10", 1000));
+        assertNull(ByteRanges.parse("bytes=a-b", 1000));
+        assertNull(ByteRanges.parse("bytes=0-9,x", 1000));
+        assertNull(ByteRanges.parse("bytes=0-99999999999999999999", 1000));
+    }
+
+    @Test
+    void unitIsCaseInsensitive() {
+        List<ByteRanges.Range> ranges = ByteRanges.parse("Bytes=0-0", 1000);
+        assertRange(ranges.get(0), 0, 0);
+    }
+}
@@ -0,0 +1,215 @@
+package org.consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedUploadTest {
+
+    @TempDir
+    Path folder;
+
+    private StorageVolumes storage;
+    private StorageVolumes.Volume volume;
+    private Path partialFolder;
+
+    @BeforeEach
+    void openStorage() throws IOException {
+        storage = StorageVolumes.open(List.of(folder), StorageVolumes.Placement.HASH);
+        volume = storage.getPrimary();
+        partialFolder = folder.resolve("partial");
+    }
+
+    @AfterEach
+    void closeStorage() {
+        storage.close();
+    }
+
+    private static UploadHeader chunkHeader(String name, long length, long total, int chunkSize, int index) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(UploadProtocol.MAX_HEADER_SIZE)
+                .putInt(UploadProtocol.EXTENDED_MAGIC).putInt(UploadProtocol.FLAG_CHUNKED)
+                .putLong(total).putInt(chunkSize).putInt(index)
+                .putInt(nameBytes.length).put(nameBytes).putLong(length);
+        buffer.flip();
+        return UploadHeader.tryParse(buffer);
+    }
+
+    @Test
+    void chunksInAnyOrderCompleteTheFileOnce() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 1050, 100);
+        assertEquals(11, upload.chunkCount());
+        for (int index = 10; index > 0; index--) {
+            assertFalse(upload.markReceived(index));
+        }
+        assertEquals(10, upload.receivedChunks());
+        assertTrue(upload.markReceived(0));
+        assertFalse(upload.markReceived(0), "a resent last chunk completes nothing");
+        assertThrows(IOException.class, () -> upload.openChunk(3), "no chunks are opened once complete");
+    }
+
+    @Test
+    void chunkLengths() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 1050, 100);
+        assertEquals(100, upload.chunkLength(0));
+        assertEquals(50, upload.chunkLength(10));
+        assertThrows(IOException.class, () -> upload.chunkLength(11));
+        assertThrows(IOException.class, () -> upload.chunkLength(-1));
+    }
+
+    @Test
+    void emptyFileIsOneEmptyChunk() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "empty.mp4", 0, 100);
+        assertEquals(1, upload.chunkCount());
+        assertEquals(0, upload.chunkLength(0));
+        assertTrue(upload.markReceived(0));
+    }
+
+    @Test
+    void partFileIsPreallocated() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 1050, 100);
+        assertEquals(1050, Files.size(upload.getPartFile()));
+    }
+
+    @Test
+    void bitmapIsLeastSignificantBitFirst() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 2000, 100);
+        assertArrayEquals(new byte[0], upload.chunkBitmap());
+        upload.markReceived(0);
+        upload.markReceived(3);
+        upload.markReceived(9);
+        assertArrayEquals(new byte[] {0b1001, 0b10}, upload.chunkBitmap());
+    }
+
+    @Test
+    void resumesFromTheSavedBitmap() throws IOException {
+        ChunkedUpload first = ChunkedUpload.create(volume, partialFolder, "a.mp4", 1050, 100);
+        first.markReceived(1);
+        first.markReceived(7);
+
+        ChunkedUpload resumed = ChunkedUpload.load(volume, partialFolder, "a.mp4");
+        assertNotNull(resumed);
+        assertTrue(resumed.matches(1050, 100));
+        assertFalse(resumed.matches(1050, 200));
+        assertArrayEquals(first.chunkBitmap(), resumed.chunkBitmap());
+        assertEquals(2, resumed.receivedChunks());
+        assertEquals(first.getPartFile(), resumed.getPartFile());
+    }
+
+    @Test
+    void nothingToResumeWithoutBothFiles() throws IOException {
+        assertNull(ChunkedUpload.load(volume, partialFolder, "missing.mp4"));
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 1050, 100);
+        Files.delete(upload.getPartFile());
+        assertNull(ChunkedUpload.load(volume, partialFolder, "a.mp4"));
+    }
+
+    @Test
+    void completeBitmapIsKeptUntilCommitted() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 200, 100);
+        upload.markReceived(0);
+        assertTrue(upload.markReceived(1));
+        ChunkedUpload afterCrash = ChunkedUpload.load(volume, partialFolder, "a.mp4");
+        assertEquals(2, afterCrash.receivedChunks());
+
+        upload.committed();
+        assertNull(ChunkedUpload.load(volume, partialFolder, "a.mp4"));
+    }
+
+    @Test
+    void failedCompletionIsRetriedByTheNextChunk() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 200, 100);
+        upload.markReceived(0);
+        assertTrue(upload.markReceived(1));
+        upload.completionFailed();
+        assertTrue(upload.markReceived(1));
+    }
+
+    @Test
+    void completionWaitsForOpenChunks() throws Exception {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 200, 100);
+        FileChannel channel = upload.openChunk(1);
+        assertEquals(100, channel.position());
+        assertTrue(upload.hasOpenChunks());
+        assertFalse(upload.awaitChunksClosed(10));
+        channel.close();
+        upload.chunkClosed();
+        assertFalse(upload.hasOpenChunks());
+        assertTrue(upload.awaitChunksClosed(10));
+    }
+
+    @Test
+    void discardedUploadRefusesChunks() throws IOException {
+        ChunkedUpload upload = ChunkedUpload.create(volume, partialFolder, "a.mp4", 200, 100);
+        upload.discard();
+        assertFalse(Files.exists(upload.getPartFile()));
+        assertThrows(IOException.class, () -> upload.openChunk(0));
+        assertThrows(IOException.class, () -> upload.markReceived(0));
+        assertNull(ChunkedUpload.load(volume, partialFolder, "a.mp4"));
+    }
+
+    @Test
+    void registryResumesAfterARestart() throws IOException {
+        ChunkedUpload upload = new ChunkedUploads(storage).begin(chunkHeader("a.mp4", 100, 1050, 100, 4));
+        upload.markReceived(4);
+
+        ChunkedUploads restarted = new ChunkedUploads(storage);
+        assertArrayEquals(new byte[] {0b10000}, restarted.chunkBitmap("a.mp4"));
+        ChunkedUpload resumed = restarted.begin(chunkHeader("a.mp4", 100, 1050, 100, 5));
+        assertEquals(1, resumed.receivedChunks());
+        assertArrayEquals(new byte[0], restarted.chunkBitmap("other.mp4"));
+    }
+
+    @Test
+    void registryRestartsOnADifferentLayout() throws IOException {
+        ChunkedUploads uploads = new ChunkedUploads(storage);
+        ChunkedUpload upload = uploads.begin(chunkHeader("a.mp4", 100, 1050, 100, 0));
+        upload.markReceived(0);
+
+        ChunkedUpload restarted = uploads.begin(chunkHeader("a.mp4", 200, 1050, 200, 0));
+        assertNotSame(upload, restarted);
+        assertEquals(0, restarted.receivedChunks());
+        assertThrows(IOException.class, () -> upload.markReceived(1), "chunks of the old layout fail");
+    }
+
+    @Test
+    void registryDoesNotRestartUnderOpenChunks() throws IOException {
+        ChunkedUploads uploads = new ChunkedUploads(storage);
+        ChunkedUpload upload = uploads.begin(chunkHeader("a.mp4", 100, 1050, 100, 0));
+        try (FileChannel channel = upload.openChunk(0)) {
+            assertThrows(IOException.class, () -> uploads.begin(chunkHeader("a.mp4", 200, 1050, 200, 0)));
+        } finally {
+            upload.chunkClosed();
+        }
+    }
+
+    @Test
+    void registryChecksTheChunkLength() throws IOException {
+        ChunkedUploads uploads = new ChunkedUploads(storage);
+        assertThrows(IOException.class, () -> uploads.begin(chunkHeader("a.mp4", 100, 1050, 100, 10)));
+        assertThrows(IOException.class, () -> uploads.begin(chunkHeader("a.mp4", 100, 1050, 100, 11)));
+        assertEquals(50, uploads.begin(chunkHeader("a.mp4", 50, 1050, 100, 10)).chunkLength(10));
+    }
+
+    @Test
+    void completedUploadIsForgotten() throws IOException {
+        ChunkedUploads uploads = new ChunkedUploads(storage);
+        ChunkedUpload upload = uploads.begin(chunkHeader("a.mp4", 100, 100, 100, 0));
+        assertTrue(upload.markReceived(0));
+        upload.committed();
+        uploads.completed(upload);
+        assertArrayEquals(new byte[0], uploads.chunkBitmap("a.mp4"));
+        assertEquals(0, uploads.begin(chunkHeader("a.mp4", 100, 100, 100, 0)).receivedChunks(), "the next upload of the name starts over");
+    }
+}
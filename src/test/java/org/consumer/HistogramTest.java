@@ -0,0 +1,94 @@
+package org.consumer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+
+    @Test
+    void emptyHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.valueAtPercentile(50));
+        assertEquals(0, histogram.countAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int value = 0; value < 8; value++) {
+            histogram.record(value);
+        }
+        assertEquals(3, histogram.valueAtPercentile(50));
+        assertEquals(7, histogram.valueAtPercentile(100));
+        assertEquals(0, histogram.valueAtPercentile(0));
+        assertEquals(4, histogram.countAtOrBelow(3));
+    }
+
+    @Test
+    void countSumMeanAndMax() {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(60);
+        assertEquals(3, histogram.getCount());
+        assertEquals(90, histogram.getSum());
+        assertEquals(30.0, histogram.getMean());
+        assertEquals(60, histogram.getMax());
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.valueAtPercentile(100));
+        assertEquals(1, histogram.countAtOrBelow(0));
+    }
+
+    @Test
+    void percentileIsTheUpperBoundOfItsBucket() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000); // Bucket [960, 1023]
+        histogram.record(2000);
+        assertEquals(1023, histogram.valueAtPercentile(50));
+        assertEquals(2000, histogram.valueAtPercentile(100)); // Capped at the maximum
+    }
+
+    @Test
+    void bucketsAreWithinAnEighthOfTheValue() {
+        for (int exponent = 3; exponent < 62; exponent++) {
+            for (long value : new long[] {1L << exponent, (1L << exponent) + 1, (3L << exponent) / 2, (1L << (exponent + 1)) - 1}) {
+                Histogram histogram = new Histogram();
+                histogram.record(value);
+                histogram.record(Long.MAX_VALUE); // Keeps the bound from being capped at value
+                long upper = histogram.valueAtPercentile(50);
+                assertTrue(upper >= value, "bucket of " + value + " ends at " + upper);
+                assertTrue(upper - value <= value / 8, "bucket of " + value + " ends at " + upper);
+            }
+        }
+    }
+
+    @Test
+    void largestValueFitsTheTopBucket() {
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.valueAtPercentile(100));
+        assertEquals(1, histogram.countAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    void countAtOrBelowOnlyCountsWholeBuckets() {
+        Histogram histogram = new Histogram();
+        histogram.record(5);
+        histogram.record(100); // Bucket [96, 103]
+        histogram.record(1000); // Bucket [960, 1023]
+        assertEquals(1, histogram.countAtOrBelow(7));
+        assertEquals(1, histogram.countAtOrBelow(102));
+        assertEquals(2, histogram.countAtOrBelow(103));
+        assertEquals(2, histogram.countAtOrBelow(1000));
+        assertEquals(3, histogram.countAtOrBelow(1023));
+    }
+}
@@ -0,0 +1,152 @@
+package org.consumer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadHeaderTest {
+
+    private static final byte[] HASH = new byte[UploadProtocol.CONTENT_HASH_LENGTH];
+
+    static {
+        Arrays.fill(HASH, (byte) 0xab);
+    }
+
+    private static byte[] legacyHeader(String name, long size) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Integer.BYTES + nameBytes.length + Long.BYTES)
+                .putInt(nameBytes.length).put(nameBytes).putLong(size).array();
+    }
+
+    private static byte[] chunkHeader(int flags, String name, long length, long total, int chunkSize, int index) {
+        byte[] legacy = legacyHeader(name, length);
+        ByteBuffer buffer = ByteBuffer.allocate(UploadProtocol.MAX_HEADER_SIZE).putInt(UploadProtocol.EXTENDED_MAGIC).putInt(flags);
+        if ((flags & UploadProtocol.FLAG_CONTENT_HASH) != 0) {
+            buffer.put(HASH);
+        }
+        if ((flags & UploadProtocol.FLAG_CHUNKED) != 0) {
+            buffer.putLong(total).putInt(chunkSize).putInt(index);
+        }
+        buffer.put(legacy).flip();
+        return Arrays.copyOf(buffer.array(), buffer.limit());
+    }
+
+    private static UploadHeader parse(byte[] header) throws IOException {
+        return UploadHeader.tryParse(ByteBuffer.wrap(header));
+    }
+
+    @Test
+    void legacyHeader() throws IOException {
+        UploadHeader header = parse(legacyHeader("clip.mp4", 1234));
+        assertEquals("clip.mp4", header.getFileName());
+        assertEquals(1234, header.getFileSize());
+        assertEquals(1234, header.getTotalSize());
+        assertEquals(0, header.getFlags());
+        assertFalse(header.hasContentHash());
+        assertNull(header.getContentHashHex());
+        assertFalse(header.isChunked());
+        assertFalse(header.isSession());
+    }
+
+    @Test
+    void streamAndBufferParseTheSameHeader() throws IOException {
+        byte[] bytes = chunkHeader(UploadProtocol.KNOWN_FLAGS, "a.mp4", 100, 1000, 100, 3);
+        UploadHeader fromStream = UploadHeader.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        UploadHeader fromBuffer = parse(bytes);
+        assertEquals(fromStream.getFileName(), fromBuffer.getFileName());
+        assertEquals(fromStream.getFlags(), fromBuffer.getFlags());
+        assertEquals(fromStream.getContentHashHex(), fromBuffer.getContentHashHex());
+        assertEquals(fromStream.getChunkIndex(), fromBuffer.getChunkIndex());
+    }
+
+    @Test
+    void extendedHeaderWithEveryFlag() throws IOException {
+        UploadHeader header = parse(chunkHeader(UploadProtocol.KNOWN_FLAGS, "big.mp4", 100, 1050, 100, 10));
+        assertTrue(header.hasContentHash());
+        assertEquals("ab".repeat(UploadProtocol.CONTENT_HASH_LENGTH), header.getContentHashHex());
+        assertTrue(header.isChunked());
+        assertTrue(header.isSession());
+        assertFalse(header.isChunkStatusQuery());
+        assertEquals(100, header.getFileSize());
+        assertEquals(1050, header.getTotalSize());
+        assertEquals(100, header.getChunkSize());
+        assertEquals(10, header.getChunkIndex());
+    }
+
+    @Test
+    void hashOnlyHeaderIsNotChunked() throws IOException {
+        UploadHeader header = parse(chunkHeader(UploadProtocol.FLAG_CONTENT_HASH, "a.mp4", 500, 0, 0, 0));
+        assertTrue(header.hasContentHash());
+        assertFalse(header.isChunked());
+        assertEquals(500, header.getTotalSize());
+    }
+
+    @Test
+    void chunkStatusQuery() throws IOException {
+        UploadHeader header = parse(chunkHeader(UploadProtocol.FLAG_CHUNKED, "a.mp4", 0, 1000, 100, UploadProtocol.CHUNK_STATUS_QUERY));
+        assertTrue(header.isChunkStatusQuery());
+    }
+
+    @Test
+    void incompleteHeaderLeavesTheBufferUntouched() throws IOException {
+        byte[] bytes = chunkHeader(UploadProtocol.FLAG_CONTENT_HASH | UploadProtocol.FLAG_CHUNKED, "a.mp4", 100, 1000, 100, 2);
+        for (int length = 0; length < bytes.length; length++) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            assertNull(UploadHeader.tryParse(buffer), "parsed from " + length + " bytes");
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    void bufferIsLeftAtTheFirstBodyByte() throws IOException {
+        byte[] header = legacyHeader("a.mp4", 3);
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + 3).put(header).put(new byte[] {1, 2, 3});
+        buffer.flip();
+        assertNotNull(UploadHeader.tryParse(buffer));
+        assertEquals(header.length, buffer.position());
+        assertEquals(1, buffer.get());
+    }
+
+    @Test
+    void unsafeCharactersInTheNameAreReplaced() throws IOException {
+        assertEquals(".._etc_passwd", parse(legacyHeader("../etc/passwd", 1)).getFileName());
+        assertEquals("my_clip__1_.mp4", parse(legacyHeader("my clip (1).mp4", 1)).getFileName());
+    }
+
+    @Test
+    void invalidHeadersFail() {
+        assertThrows(IOException.class, () -> parse(legacyHeader("..", 1)));
+        assertThrows(IOException.class, () -> parse(legacyHeader("a.mp4", -1)));
+        assertThrows(IOException.class, () -> parse(ByteBuffer.allocate(4).putInt(0).array()));
+        assertThrows(IOException.class, () -> parse(ByteBuffer.allocate(4).putInt(UploadProtocol.MAX_FILENAME_LENGTH + 1).array()));
+        assertThrows(IOException.class, () -> parse(chunkHeader(8, "a.mp4", 1, 0, 0, 0)));
+        assertThrows(IOException.class, () -> parse(chunkHeader(UploadProtocol.FLAG_CHUNKED, "a.mp4", 1, 1000, 0, 0)));
+        assertThrows(IOException.class, () -> parse(chunkHeader(UploadProtocol.FLAG_CHUNKED, "a.mp4", 1, -1, 100, 0)));
+        assertThrows(IOException.class, () -> parse(chunkHeader(UploadProtocol.FLAG_CHUNKED, "a.mp4", 1, 1000, 100, -2)));
+    }
+
+    @Test
+    void invalidFieldFailsBeforeTheRestHasArrived() {
+        // Unknown flags are rejected from the first 8 bytes, not only once the name would be complete
+        byte[] start = ByteBuffer.allocate(8).putInt(UploadProtocol.EXTENDED_MAGIC).putInt(8).array();
+        assertThrows(IOException.class, () -> parse(start));
+    }
+
+    @Test
+    void ackFrameLayout() {
+        ByteBuffer frame = ByteBuffer.wrap(UploadProtocol.ackFrame(UploadProtocol.REPLY_FILE_SAVED, "a.mp4"));
+        assertEquals(UploadProtocol.REPLY_FILE_SAVED, frame.get());
+        assertEquals(5, frame.getInt());
+        byte[] name = new byte[5];
+        frame.get(name);
+        assertEquals("a.mp4", new String(name, StandardCharsets.UTF_8));
+        assertFalse(frame.hasRemaining());
+    }
+}
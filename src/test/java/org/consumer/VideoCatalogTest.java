@@ -0,0 +1,122 @@
+package org.consumer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VideoCatalogTest {
+
+    @Test
+    void noChangesSinceTheCurrentVersion() {
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("a.mp4");
+        VideoCatalog.Delta delta = catalog.changesSince(catalog.getVersion());
+        assertEquals(List.of(), delta.getAdded());
+        assertEquals(List.of(), delta.getRemoved());
+        assertEquals(catalog.getVersion(), delta.getVersion());
+    }
+
+    @Test
+    void additionsAndRemovalsSinceAVersion() {
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("a.mp4");
+        catalog.add("b.mp4");
+        long since = catalog.getVersion();
+        catalog.add("c.mp4");
+        catalog.remove("a.mp4");
+        catalog.add("d.mp4");
+
+        VideoCatalog.Delta delta = catalog.changesSince(since);
+        assertEquals(List.of("c.mp4", "d.mp4"), delta.getAdded());
+        assertEquals(List.of("a.mp4"), delta.getRemoved());
+        assertEquals(catalog.getVersion(), delta.getVersion());
+    }
+
+    @Test
+    void onlyTheLastChangeOfANameCounts() {
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("a.mp4");
+        long since = catalog.getVersion();
+        catalog.remove("a.mp4");
+        catalog.add("b.mp4");
+        catalog.add("a.mp4"); // Removed and added again: listed, now after b
+
+        VideoCatalog.Delta delta = catalog.changesSince(since);
+        assertEquals(List.of("b.mp4", "a.mp4"), delta.getAdded());
+        assertEquals(List.of(), delta.getRemoved());
+    }
+
+    @Test
+    void unchangedCallsDoNotBumpTheVersion() {
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("a.mp4");
+        long version = catalog.getVersion();
+        assertFalse(catalog.add("a.mp4"));
+        assertFalse(catalog.remove("b.mp4"));
+        assertEquals(version, catalog.getVersion());
+    }
+
+    @Test
+    void unknownVersionsNeedAFullReload() {
+        VideoCatalog catalog = new VideoCatalog();
+        long start = catalog.getVersion();
+        catalog.add("a.mp4");
+        assertNull(catalog.changesSince(catalog.getVersion() + 1), "from the future");
+        assertNull(catalog.changesSince(start - 1), "before the change log");
+        assertNull(catalog.changesSince(0));
+        assertNotNull(catalog.changesSince(start));
+    }
+
+    @Test
+    void oldChangesAreDroppedFromTheLog() {
+        VideoCatalog catalog = new VideoCatalog();
+        long start = catalog.getVersion();
+        for (int i = 0; i <= 10_000; i++) {
+            catalog.add("v" + i + ".mp4");
+        }
+        assertNull(catalog.changesSince(start));
+        VideoCatalog.Delta delta = catalog.changesSince(start + 1);
+        assertEquals(10_000, delta.getAdded().size());
+        assertEquals("v1.mp4", delta.getAdded().get(0));
+    }
+
+    @Test
+    void snapshotIsSharedUntilTheNextChange() {
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("a.mp4");
+        VideoCatalog.Snapshot snapshot = catalog.snapshot();
+        assertSame(snapshot, catalog.snapshot());
+        assertEquals("[\"a.mp4\"]", new String(snapshot.getJson()));
+
+        catalog.add("b.mp4");
+        assertNotSame(snapshot, catalog.snapshot());
+        assertEquals(List.of("a.mp4", "b.mp4"), catalog.snapshot().getNames());
+    }
+
+    @Test
+    void versionTokensRoundTrip() {
+        VideoCatalog catalog = new VideoCatalog();
+        catalog.add("a.mp4");
+        assertEquals(catalog.getVersion(), catalog.versionOf(catalog.getVersionToken()));
+        assertEquals(catalog.getVersionToken(), catalog.tokenOf(catalog.getVersion()));
+    }
+
+    @Test
+    void tokensOfAnotherInstanceAreOlderThanAnyDelta() {
+        VideoCatalog catalog = new VideoCatalog();
+        VideoCatalog earlierRun = new VideoCatalog();
+        assertEquals(0, catalog.versionOf(earlierRun.tokenOf(catalog.getVersion())));
+        assertEquals(0, catalog.versionOf(Long.toString(catalog.getVersion())), "bare version without epoch");
+        assertNull(catalog.changesSince(catalog.versionOf(earlierRun.getVersionToken())));
+    }
+
+    @Test
+    void malformedTokensAreRejected() {
+        VideoCatalog catalog = new VideoCatalog();
+        assertThrows(NumberFormatException.class, () -> catalog.versionOf("abc"));
+        assertThrows(NumberFormatException.class, () -> catalog.versionOf("0badcafe-"));
+        assertThrows(NumberFormatException.class, () -> catalog.versionOf(""));
+    }
+}
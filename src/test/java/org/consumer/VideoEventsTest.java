@@ -0,0 +1,120 @@
+package org.consumer;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VideoEventsTest {
+
+    private VideoCatalog catalog;
+    private VideoEvents events;
+    private HttpServer server;
+    private ExecutorService httpThreads;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        catalog = new VideoCatalog();
+        events = new VideoEvents(catalog, 100, 300);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/events", exchange -> events.subscribe(exchange, -1));
+        httpThreads = Executors.newCachedThreadPool();
+        server.setExecutor(httpThreads);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        events.close();
+        server.stop(0);
+        httpThreads.shutdownNow();
+    }
+
+    private Socket openStream(int receiveBufferBytes) throws IOException {
+        Socket socket = new Socket();
+        if (receiveBufferBytes > 0) {
+            socket.setReceiveBufferSize(receiveBufferBytes); // Before connecting, so the window stays small
+        }
+        socket.connect(new InetSocketAddress("127.0.0.1", server.getAddress().getPort()));
+        socket.getOutputStream().write("GET /api/events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMillis, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out waiting until " + what);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void viewerThatNeverReadsIsDisconnectedAndFreesItsSender() throws Exception {
+        Socket stalled = openStream(4096);
+        Socket healthy = openStream(0);
+        await(() -> events.openStreams() == 2, 5000, "both streams are open");
+
+        // Looks for the last change as the bytes arrive; the churn below sends megabytes
+        AtomicBoolean gotLastChange = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            String tail = "";
+            try (InputStream in = healthy.getInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    String text = tail + new String(buffer, 0, n, StandardCharsets.UTF_8);
+                    if (text.contains("last.mp4")) {
+                        gotLastChange.set(true);
+                    }
+                    tail = text.substring(Math.max(0, text.length() - 16));
+                }
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        });
+        reader.start();
+
+        // Big changes until the stalled viewer's socket buffers are full and it is dropped
+        String padding = "x".repeat(4000);
+        long deadline = System.currentTimeMillis() + 20_000;
+        for (int i = 0; events.openStreams() > 1; i++) {
+            assertTrue(System.currentTimeMillis() < deadline, "the stalled viewer was never disconnected");
+            catalog.add(i + padding);
+            catalog.remove(i + padding);
+        }
+
+        // Its write was blocked for good; the drop must have ended it, without the viewer reading
+        await(() -> events.busySenders() == 0, 5000, "no sender is left writing");
+        assertEquals(1, events.openStreams());
+        assertTrue(reader.isAlive(), "the healthy viewer is still connected");
+
+        catalog.add("last.mp4");
+        await(gotLastChange::get, 10_000, "the healthy viewer gets the next change");
+
+        stalled.close();
+        healthy.close();
+        reader.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @Test
+    void closingEndsEveryStream() throws Exception {
+        Socket socket = openStream(0);
+        await(() -> events.openStreams() == 1, 5000, "the stream is open");
+        events.close();
+        assertEquals(0, events.openStreams());
+        socket.close();
+    }
+}